@@ -0,0 +1,100 @@
+package me.cortex.nvidium.managers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//High region churn, every op adds or removes a section of a random region and then rebuilds that regions header,
+// compares the old 256 slot scan against the occupancy mask kept by RegionManager
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionBoundsBenchmark {
+    private static final int OPS = 10000;
+
+    @Param({"256", "4096"})
+    public int regionCount;
+
+    private final int[] opRegion = new int[OPS];
+    private final int[] opPos = new int[OPS];
+
+    private boolean[][] scanOccupied;
+    private RegionOccupancy[] occupancies;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random r = new Random(1234);
+        for (int i = 0; i < OPS; i++) {
+            this.opRegion[i] = r.nextInt(this.regionCount);
+            this.opPos[i] = r.nextInt(256);
+        }
+        this.scanOccupied = new boolean[this.regionCount][256];
+        this.occupancies = new RegionOccupancy[this.regionCount];
+        for (int i = 0; i < this.regionCount; i++) {
+            this.occupancies[i] = new RegionOccupancy();
+            //Start half full, like a loaded region at the edge of the render distance
+            for (int j = 0; j < 128; j++) {
+                int pos = r.nextInt(256);
+                this.scanOccupied[i][pos] = true;
+                this.occupancies[i].set(pos);
+            }
+        }
+        if (this.scan() != this.occupancy()) {
+            throw new IllegalStateException("Bounds differ");
+        }
+    }
+
+    @Benchmark
+    public long scan() {
+        long hash = 0;
+        for (int i = 0; i < OPS; i++) {
+            boolean[] occupied = this.scanOccupied[this.opRegion[i]];
+            occupied[this.opPos[i]] = !occupied[this.opPos[i]];
+            int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+            int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+            int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+            int lastIdx = 0;
+            for (int j = 0; j < 256; j++) {
+                if (!occupied[j]) continue;
+                int x = j&7;
+                int y = j>>>6;
+                int z = (j>>>3)&7;
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                minZ = Math.min(minZ, z);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+                maxZ = Math.max(maxZ, z);
+                lastIdx = j;
+            }
+            if (lastIdx == 0 && !occupied[0]) continue;//Empty region, removed instead of committed
+            hash = hash * 31 + pack(minX, maxX, minY, maxY, minZ, maxZ, lastIdx);
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public long occupancy() {
+        long hash = 0;
+        for (int i = 0; i < OPS; i++) {
+            var occupancy = this.occupancies[this.opRegion[i]];
+            if (occupancy.contains(this.opPos[i])) {
+                occupancy.clear(this.opPos[i]);
+            } else {
+                occupancy.set(this.opPos[i]);
+            }
+            if (occupancy.isEmpty()) continue;
+            hash = hash * 31 + pack(occupancy.minX(), occupancy.maxX(), occupancy.minY(), occupancy.maxY(), occupancy.minZ(), occupancy.maxZ(), occupancy.lastIndex());
+        }
+        return hash;
+    }
+
+    private static long pack(int minX, int maxX, int minY, int maxY, int minZ, int maxZ, int lastIdx) {
+        return (long) minX | (long) maxX << 3 | (long) minY << 6 | (long) maxY << 8 | (long) minZ << 10 | (long) maxZ << 13 | (long) lastIdx << 16;
+    }
+}
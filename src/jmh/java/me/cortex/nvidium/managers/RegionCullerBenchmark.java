@@ -0,0 +1,156 @@
+package me.cortex.nvidium.managers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Per region frustum, keep distance, camera axis and distance key evaluation, one region object at a time like the
+// RegionManager methods against the struct of arrays culler, scalar and with the vector api. Regions fill a square
+// around the camera 6 regions high, the frustum is a 90 degree one looking along +x. The vector case needs the
+// jdk.incubator.vector module in the benchmark jvm, the jmh task adds it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionCullerBenchmark {
+    private static final float INV_SQRT2 = (float) (1 / Math.sqrt(2));
+    private static final float[] PLANES = {
+            1, 0, 0, -0.05f,
+            -1, 0, 0, 100000,
+            INV_SQRT2, 0, -INV_SQRT2, 0,
+            INV_SQRT2, 0, INV_SQRT2, 0,
+            INV_SQRT2, -INV_SQRT2, 0, 0,
+            INV_SQRT2, INV_SQRT2, 0, 0,
+    };
+    private static final int CAM_BLOCK_X = 0, CAM_BLOCK_Y = 70, CAM_BLOCK_Z = 0;
+    private static final float CAM_FRAC = 0.5f;
+    private static final double CAM_X = CAM_BLOCK_X + CAM_FRAC, CAM_Y = CAM_BLOCK_Y + CAM_FRAC, CAM_Z = CAM_BLOCK_Z + CAM_FRAC;
+    private static final int KEEP_DISTANCE = 36;
+
+    @Param({"10000", "50000"})
+    public int regionCount;
+
+    private record Region(int rx, int ry, int rz) {}
+
+    private Region[] regions;
+    private final RegionCullingGrid grid = new RegionCullingGrid();
+    private final RegionCuller scalar = new RegionCuller();
+    private RegionCuller vector;
+    private int[] keys;
+    private int keyCount;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.regions = new Region[this.regionCount];
+        this.keys = new int[this.regionCount];
+        int side = (int) Math.ceil(Math.sqrt(this.regionCount / 6.0));
+        for (int i = 0; i < this.regionCount; i++) {
+            int column = i / 6;
+            this.regions[i] = new Region(column % side - side / 2, i % 6 - 1, column / side - side / 2);
+            this.grid.add(i, this.regions[i].rx, this.regions[i].ry, this.regions[i].rz);
+        }
+        this.vector = RegionCuller.create();
+        if (this.vector.getClass() == RegionCuller.class) {
+            throw new IllegalStateException("Vector culler not available");
+        }
+        long expected = this.objects();
+        if (expected != this.scalar() || expected != this.vector()) {
+            throw new IllegalStateException("Results differ");
+        }
+    }
+
+    private static boolean testPlanes(float x, float y, float z, float hx, float hy, float hz) {
+        for (int p = 0; p < 24; p += 4) {
+            float a = PLANES[p], b = PLANES[p + 1], c = PLANES[p + 2];
+            if (a * x + b * y + c * z + (PLANES[p + 3] + Math.abs(a) * hx + Math.abs(b) * hy + Math.abs(c) * hz) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Relative to the camera the same way as the culler, the integer part first then the fraction
+    private static boolean isBoxVisible(int x, int y, int z, int hx, int hy, int hz) {
+        return testPlanes((x - CAM_BLOCK_X) - CAM_FRAC, (y - CAM_BLOCK_Y) - CAM_FRAC, (z - CAM_BLOCK_Z) - CAM_FRAC, hx, hy, hz);
+    }
+
+    //Same cells the culler looks at, the ones in the frustum or not entirely within the keep distance
+    private static boolean isCellVisited(int x, int y, int z, int hx, int hy, int hz) {
+        if (isBoxVisible(x, y, z, hx, hy, hz)) {
+            return true;
+        }
+        int cx = (x - 256) >> 9, cy = (y - 128) >> 8, cz = (z - 256) >> 9;
+        int camChunkX = CAM_BLOCK_X >> 4, camChunkY = CAM_BLOCK_Y >> 4, camChunkZ = CAM_BLOCK_Z >> 4;
+        return !(Math.max(Math.abs((cx << 5) + 4 - camChunkX), Math.abs((cx << 5) + 28 - camChunkX)) <= KEEP_DISTANCE &&
+                 Math.max(Math.abs((cy << 4) + 2 - camChunkY), Math.abs((cy << 4) + 14 - camChunkY)) <= KEEP_DISTANCE &&
+                 Math.max(Math.abs((cz << 5) + 4 - camChunkZ), Math.abs((cz << 5) + 28 - camChunkZ)) <= KEEP_DISTANCE);
+    }
+
+    @Benchmark
+    public long objects() {
+        int camChunkX = CAM_BLOCK_X >> 4, camChunkY = CAM_BLOCK_Y >> 4, camChunkZ = CAM_BLOCK_Z >> 4;
+        this.keyCount = 0;
+        long[] other = new long[1];
+        this.grid.forEachInVisibleCells(RegionCullerBenchmark::isCellVisited, i -> {
+            var region = this.regions[i];
+            if (Math.abs((region.rx<<3)+4-camChunkX) > KEEP_DISTANCE ||
+                Math.abs((region.ry<<2)+2-camChunkY) > KEEP_DISTANCE ||
+                Math.abs((region.rz<<3)+4-camChunkZ) > KEEP_DISTANCE) {
+                other[0] += i;
+                return;
+            }
+            if (!isBoxVisible((region.rx<<7)+(1<<6), (region.ry<<6)+(1<<5), (region.rz<<7)+(1<<6), 1<<6, 1<<5, 1<<6)) {
+                return;
+            }
+            int distance = (Math.abs((region.rx<<3)+4-camChunkX)+
+                            Math.abs((region.ry<<2)+2-camChunkY)+
+                            Math.abs((region.rz<<3)+4-camChunkZ)+
+                            Math.abs((region.rx<<3)+3-camChunkX)+
+                            Math.abs((region.ry<<2)+1-camChunkY)+
+                            Math.abs((region.rz<<3)+3-camChunkZ))>>1;
+            this.keys[this.keyCount++] = distance << 16 | i;
+            if ((region.rx<<7) <= CAM_X && CAM_X <= (region.rx+1)<<7 ||
+                (region.ry<<6) <= CAM_Y && CAM_Y <= (region.ry+1)<<6 ||
+                (region.rz<<7) <= CAM_Z && CAM_Z <= (region.rz+1)<<7) {
+                other[0] += 31L * i;
+            }
+        });
+        return hash(this.keys, this.keyCount) ^ other[0];
+    }
+
+    private long run(RegionCuller culler) {
+        culler.begin(PLANES, CAM_X, CAM_Y, CAM_Z, KEEP_DISTANCE, this.regionCount);
+        this.grid.cull(culler);
+        long other = 0;
+        var removals = culler.getRemovals();
+        for (int i = 0; i < removals.size(); i++) {
+            other += removals.getInt(i);
+        }
+        var axis = culler.getAxisRegions();
+        for (int i = 0; i < axis.size(); i++) {
+            other += 31L * axis.getInt(i);
+        }
+        return hash(culler.getVisibleKeys(), culler.getVisibleCount()) ^ other;
+    }
+
+    @Benchmark
+    public long scalar() {
+        return this.run(this.scalar);
+    }
+
+    @Benchmark
+    public long vector() {
+        return this.run(this.vector);
+    }
+
+    //Order independent, the batches visit regions in a different order to the object loop
+    private static long hash(int[] keys, int count) {
+        long hash = 0;
+        for (int i = 0; i < count; i++) {
+            hash += keys[i] * 0x9E3779B97F4A7C15L;
+        }
+        return hash;
+    }
+}
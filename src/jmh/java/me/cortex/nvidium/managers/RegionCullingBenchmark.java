@@ -0,0 +1,102 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
+import me.cortex.nvidium.util.RadixSorter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Frustum culling and front to back ordering of the loaded regions as done by RenderPipeline.renderFrame, the old
+// loop over every region id into an avl tree against the culling grid and radix sort. Regions fill a square around
+// the camera 6 regions high, the frustum is a 90 degree one looking along +x
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionCullingBenchmark {
+    @Param({"1000", "5000", "20000", "50000"})
+    public int regionCount;
+
+    private int[] rx;
+    private int[] ry;
+    private int[] rz;
+    private final RegionCullingGrid grid = new RegionCullingGrid();
+    private final RadixSorter sorter = new RadixSorter();
+    private int[] keys;
+    private int keyCount;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.rx = new int[this.regionCount];
+        this.ry = new int[this.regionCount];
+        this.rz = new int[this.regionCount];
+        this.keys = new int[this.regionCount];
+        int side = (int) Math.ceil(Math.sqrt(this.regionCount / 6.0));
+        for (int i = 0; i < this.regionCount; i++) {
+            int column = i / 6;
+            this.rx[i] = column % side - side / 2;
+            this.rz[i] = column / side - side / 2;
+            this.ry[i] = i % 6 - 1;
+            this.grid.add(i, this.rx[i], this.ry[i], this.rz[i]);
+        }
+        if (this.scan() != this.grid()) {
+            throw new IllegalStateException("Orders differ");
+        }
+    }
+
+    //Camera at the origin looking along +x with a 90 degree field of view both ways
+    private static boolean isBoxVisible(float x, float y, float z, float halfX, float halfY, float halfZ) {
+        return x + halfX > 0 &&
+               z - halfZ <= x + halfX &&
+               -(z + halfZ) <= x + halfX &&
+               y - halfY <= x + halfX &&
+               -(y + halfY) <= x + halfX;
+    }
+
+    private boolean isRegionVisible(int i) {
+        return isBoxVisible((this.rx[i]<<7)+(1<<6), (this.ry[i]<<6)+(1<<5), (this.rz[i]<<7)+(1<<6), 1<<6, 1<<5, 1<<6);
+    }
+
+    private int distance(int i) {
+        return (Math.abs((this.rx[i]<<3)+4)+
+                Math.abs((this.ry[i]<<2)+2)+
+                Math.abs((this.rz[i]<<3)+4)+
+                Math.abs((this.rx[i]<<3)+3)+
+                Math.abs((this.ry[i]<<2)+1)+
+                Math.abs((this.rz[i]<<3)+3))>>1;
+    }
+
+    @Benchmark
+    public long scan() {
+        IntSortedSet regions = new IntAVLTreeSet();
+        for (int i = 0; i < this.regionCount; i++) {
+            if (this.isRegionVisible(i)) {
+                regions.add((this.distance(i) << 16) | i);
+            }
+        }
+        long hash = 0;
+        for (int key : regions) {
+            hash = hash * 31 + (key & 0xFFFF);
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public long grid() {
+        this.keyCount = 0;
+        this.grid.forEachInVisibleCells(RegionCullingBenchmark::isBoxVisible, i -> {
+            if (this.isRegionVisible(i)) {
+                this.keys[this.keyCount++] = (this.distance(i) << 16) | i;
+            }
+        });
+        this.sorter.sort(this.keys, this.keyCount);
+        long hash = 0;
+        for (int j = 0; j < this.keyCount; j++) {
+            hash = hash * 31 + (this.keys[j] & 0xFFFF);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,105 @@
+package me.cortex.nvidium.util;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Loading a view distance worth of sections through the disk cache, cold stores every section into a fresh file like
+// the first visit of a world, warm reopens the filled file and copies every section back out like a later visit
+// Section sizes are spread like terrain, mostly small with a few large ones
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GeometryDiskCacheBenchmark {
+    private static final int QUAD_SIZE = 64;
+    private static final long CACHE_SIZE = 512L << 20;
+
+    @Param({"2048", "8192"})
+    public int sectionCount;
+
+    private Path file;
+    private int[] quads;
+    private long geometry;
+    private final short[] offsets = new short[8];
+    private long target;
+    private GeometryDiskCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var random = new Random(0);
+        this.quads = new int[this.sectionCount];
+        int maxQuads = 0;
+        for (int i = 0; i < this.sectionCount; i++) {
+            this.quads[i] = 16 + (int) (Math.pow(random.nextDouble(), 3) * 2000);
+            maxQuads = Math.max(maxQuads, this.quads[i]);
+        }
+        this.geometry = MemoryUtil.nmemAlloc((long) maxQuads * QUAD_SIZE);
+        this.target = MemoryUtil.nmemAlloc((long) maxQuads * QUAD_SIZE);
+        for (int i = 0; i < maxQuads * QUAD_SIZE; i += 8) {
+            MemoryUtil.memPutLong(this.geometry + i, random.nextLong());
+        }
+        this.file = Files.createTempFile("nvidium-geometry", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        MemoryUtil.nmemFree(this.geometry);
+        MemoryUtil.nmemFree(this.target);
+        Files.deleteIfExists(this.file);
+    }
+
+    private static long key(int i) {
+        return ((long) (i & 63) << 42) | ((long) (i >> 12) << 20) | ((i >> 6) & 63);
+    }
+
+    private void fill(GeometryDiskCache cache) {
+        for (int i = 0; i < this.sectionCount; i++) {
+            cache.store(key(i), i + 1, this.quads[i], 0, this.offsets, this.geometry, this.quads[i] * QUAD_SIZE);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void open(org.openjdk.jmh.infra.BenchmarkParams params) throws IOException {
+        boolean warm = params.getBenchmark().endsWith("warm");
+        if (!warm) {
+            Files.delete(this.file);
+        } else if (Files.size(this.file) == 0) {
+            var cache = new GeometryDiskCache(this.file, CACHE_SIZE, QUAD_SIZE, 1);
+            this.fill(cache);
+            cache.delete();
+        }
+        this.cache = new GeometryDiskCache(this.file, CACHE_SIZE, QUAD_SIZE, 1);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        this.cache.delete();
+    }
+
+    @Benchmark
+    public long cold() {
+        this.fill(this.cache);
+        return this.cache.getStores();
+    }
+
+    @Benchmark
+    public long warm() {
+        var record = new GeometryDiskCache.Record();
+        long bytes = 0;
+        for (int i = 0; i < this.sectionCount; i++) {
+            if (this.cache.lookup(key(i), i + 1, record)) {
+                MemoryUtil.memCopy(record.geometry, this.target, record.length);
+                bytes += record.length;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Section id lookups at a 32 chunk render distance, the loaded box around the camera in the hash map that
+// SectionManager used before against the toroidal grid it uses now
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SectionLookupBenchmark {
+    private static final int RENDER_DISTANCE = 32;
+    private static final int LOOKUPS = 1 << 16;
+
+    private final Long2IntOpenHashMap hashMap = new Long2IntOpenHashMap();
+    private final ToroidalLongIntMap grid = new ToroidalLongIntMap(128, 32, 128);
+    private final long[] lookups = new long[LOOKUPS];
+
+    //Same layout as ChunkSectionPos.asLong
+    private static long pack(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFL) << 42 | ((long) y & 0xFFFFFL) | ((long) z & 0x3FFFFFL) << 20;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.hashMap.defaultReturnValue(-1);
+        this.grid.defaultReturnValue(-1);
+        //Camera somewhere away from the origin so the grid wraps
+        int cx = 1000, cz = -3000;
+        this.grid.setCenter(cx, 4, cz);
+        int id = 0;
+        for (int x = cx - RENDER_DISTANCE; x <= cx + RENDER_DISTANCE; x++) {
+            for (int z = cz - RENDER_DISTANCE; z <= cz + RENDER_DISTANCE; z++) {
+                for (int y = -4; y < 20; y++) {
+                    long key = pack(x, y, z);
+                    this.hashMap.put(key, id);
+                    this.grid.put(key, id);
+                    id++;
+                }
+            }
+        }
+        Random r = new Random(1234);
+        for (int i = 0; i < LOOKUPS; i++) {
+            this.lookups[i] = pack(cx + r.nextInt(RENDER_DISTANCE * 2 + 1) - RENDER_DISTANCE, r.nextInt(24) - 4, cz + r.nextInt(RENDER_DISTANCE * 2 + 1) - RENDER_DISTANCE);
+        }
+        if (this.hashMap() != this.grid()) {
+            throw new IllegalStateException("Lookups differ");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long hashMap() {
+        long sum = 0;
+        for (long key : this.lookups) {
+            sum += this.hashMap.get(key);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long grid() {
+        long sum = 0;
+        for (long key : this.lookups) {
+            sum += this.grid.get(key);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,87 @@
+package me.cortex.nvidium.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Replays the random alloc/free/expand workload from SegmentedManager.main() against each allocator,
+// run with -prof gc to compare the allocation rate
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentedManagerBenchmark {
+    private static final int OPS = 5000;
+
+    //0 = alloc, 1 = free, 2 = expand
+    private final byte[] actions = new byte[OPS];
+    private final int[] sizes = new int[OPS];
+    private final int[] picks = new int[OPS];
+
+    private final long[] live = new long[OPS];
+
+    private final SegmentedManager current = new SegmentedManager();
+    private final LegacySegmentedManager legacy = new LegacySegmentedManager();
+    private final TLSFAllocator tlsf = new TLSFAllocator();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random r = new Random(1234);
+        int count = 0;
+        for (int i = 0; i < OPS; i++) {
+            int ac = r.nextInt(3);
+            if (ac == 0 || count == 0) {
+                this.actions[i] = 0;
+                this.sizes[i] = r.nextInt(1000) + 1;
+                count++;
+            } else if (ac == 1) {
+                this.actions[i] = 1;
+                this.picks[i] = r.nextInt(count);
+                count--;
+            } else {
+                this.actions[i] = 2;
+                this.picks[i] = r.nextInt(count);
+                this.sizes[i] = r.nextInt(10) + 1;
+            }
+        }
+    }
+
+    @Benchmark
+    public long current() {
+        return this.run(this.current);
+    }
+
+    @Benchmark
+    public long legacy() {
+        return this.run(this.legacy);
+    }
+
+    @Benchmark
+    public long tlsf() {
+        return this.run(this.tlsf);
+    }
+
+    private long run(ISegmentAllocator m) {
+        long[] live = this.live;
+        int count = 0;
+        for (int i = 0; i < OPS; i++) {
+            switch (this.actions[i]) {
+                case 0 -> live[count++] = m.alloc(this.sizes[i]);
+                case 1 -> {
+                    int idx = this.picks[i];
+                    m.free(live[idx]);
+                    live[idx] = live[--count];
+                }
+                default -> m.expand(live[this.picks[i]], this.sizes[i]);
+            }
+        }
+        long size = m.getSize();
+        while (count != 0) {
+            m.free(live[--count]);
+        }
+        return size;
+    }
+}
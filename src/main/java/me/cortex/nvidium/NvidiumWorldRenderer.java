@@ -1,18 +1,26 @@
 package me.cortex.nvidium;
 
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
 import me.cortex.nvidium.gl.RenderDevice;
 import me.cortex.nvidium.managers.AsyncOcclusionTracker;
 import me.cortex.nvidium.managers.SectionManager;
+import me.cortex.nvidium.managers.UploadScheduler;
+import me.cortex.nvidium.sodiumCompat.IRepackagedResult;
 import me.cortex.nvidium.sodiumCompat.NvidiumCompactChunkVertex;
+import me.cortex.nvidium.sodiumCompat.RepackagedSectionOutput;
+import me.cortex.nvidium.sodiumCompat.SectionGeometryCache;
 import me.cortex.nvidium.util.DownloadTaskStream;
+import me.cortex.nvidium.util.StagingRing;
+import me.cortex.nvidium.util.TickableManager;
 import me.cortex.nvidium.util.UploadingBufferStream;
-import net.caffeinemc.mods.sodium.client.SodiumClientMod;
 import net.caffeinemc.mods.sodium.client.render.chunk.ChunkRenderMatrices;
 import net.caffeinemc.mods.sodium.client.render.chunk.RenderSection;
 import net.caffeinemc.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
 import net.caffeinemc.mods.sodium.client.render.viewport.Viewport;
 import net.minecraft.client.render.Camera;
 import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.util.math.ChunkSectionPos;
 import org.jetbrains.annotations.Nullable;
 import org.joml.Matrix4fc;
 import org.joml.Matrix4x3fc;
@@ -21,6 +29,8 @@ import org.lwjgl.opengl.GL11;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.lwjgl.opengl.GL11.glGetInteger;
 import static org.lwjgl.opengl.GL11.glNewList;
@@ -31,29 +41,52 @@ public class NvidiumWorldRenderer {
 
     private final UploadingBufferStream uploadStream;
     private final DownloadTaskStream downloadStream;
+    private final StagingRing stagingRing;
+    //Runs gpu readback callbacks off the render thread, null if they run inline
+    private final ExecutorService readbackExecutor;
 
     private final SectionManager sectionManager;
     private final RenderPipeline renderPipeline;
+    private final UploadScheduler<RepackagedSectionOutput> uploadScheduler;
+    //Null if disabled
+    private final SectionGeometryCache geometryCache;
+    //Newly loaded sections waiting for their disk cache lookup, hashing a section is a few thousand block state reads
+    // so a join only looks up as many a frame as fit in CACHE_LOOKUP_NANOS. Sections whose build result arrives
+    // first are dropped, there is no point in a stand in for them
+    private final LongLinkedOpenHashSet pendingCacheLookups = new LongLinkedOpenHashSet();
+    private static final long CACHE_LOOKUP_NANOS = 500_000;
 
     private final AsyncOcclusionTracker asyncChunkTracker;
 
     //Max memory that the gpu can use to store geometry in mb
     private long max_geometry_memory;
     private long last_sample_time;
+    private long last_locality_sample_time;
+    private float arena_locality = 1;
 
     //Note: the reason that asyncChunkTracker is passed in as an already constructed object is cause of the amount of argmuents it takes to construct it
-    public NvidiumWorldRenderer(AsyncOcclusionTracker asyncChunkTracker) {
-        int frames = SodiumClientMod.options().advanced.cpuRenderAheadLimit+1;
-        //32 mb upload buffer
-        this.uploadStream = new UploadingBufferStream(device, 32000000);
-        //8 mb download buffer
-        this.downloadStream = new DownloadTaskStream(device, frames, 8000000);
+    public NvidiumWorldRenderer(ClientWorld world, int renderDistance, AsyncOcclusionTracker asyncChunkTracker) {
+        //Start with a 32 mb upload buffer and 8 mb download buffer, both resize within the configured bounds
+        this.uploadStream = new UploadingBufferStream(device, 32L<<20, (long) Nvidium.config.upload_stream_min<<20, (long) Nvidium.config.upload_stream_max<<20, Nvidium.config.upload_ring_buffer);
+        this.readbackExecutor = Nvidium.config.async_readback ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nvidium readback");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.downloadStream = new DownloadTaskStream(device, 8L<<20, (long) Nvidium.config.download_stream_min<<20, (long) Nvidium.config.download_stream_max<<20, this.readbackExecutor == null ? Runnable::run : this.readbackExecutor);
+        //64 mb ring that chunk build threads write their geometry into
+        this.stagingRing = new StagingRing(device, 64L<<20);
 
         update_allowed_memory();
         //this.sectionManager = new SectionManager(device, max_geometry_memory*1024*1024, uploadStream, 150, 24, CompactChunkVertex.STRIDE);
-        this.sectionManager = new SectionManager(device, max_geometry_memory*1024*1024, uploadStream, NvidiumCompactChunkVertex.STRIDE, this);
+        this.sectionManager = new SectionManager(device, max_geometry_memory*1024*1024, uploadStream, downloadStream, NvidiumCompactChunkVertex.STRIDE, renderDistance, this);
         this.renderPipeline = new RenderPipeline(device, uploadStream, downloadStream, sectionManager);
-
+        //Results still waiting after a second are uploaded regardless of budget so they cant pin the staging ring
+        this.uploadScheduler = new UploadScheduler<>((key, output) -> {
+            this.sectionManager.uploadChunkBuildResult(key, output);
+            output.delete();
+        }, RepackagedSectionOutput::delete, 1_000_000_000L);
+        this.geometryCache = SectionGeometryCache.open(world);
 
         this.asyncChunkTracker = asyncChunkTracker;
     }
@@ -62,9 +95,22 @@ public class NvidiumWorldRenderer {
         this.renderPipeline.enqueueRegionSort(regionId);
     }
 
+    public void onRegionCreated(int regionId) {
+        this.renderPipeline.onRegionCreated(regionId);
+    }
+
     public void delete() {
+        //Pending results may still reference the staging ring
+        uploadScheduler.clear();
+        if (geometryCache != null) {
+            geometryCache.delete();
+        }
+        stagingRing.delete();
         uploadStream.delete();
         downloadStream.delete();
+        if (readbackExecutor != null) {
+            readbackExecutor.shutdown();
+        }
         renderPipeline.delete();
         if (asyncChunkTracker != null) {
             asyncChunkTracker.delete();
@@ -78,6 +124,23 @@ public class NvidiumWorldRenderer {
     }
     public void renderFrame(Viewport viewport, ChunkRenderMatrices matrices, double x, double y, double z) {
         System.out.println("Rendering frame...");
+        sectionManager.terrainAreana.tick();
+        sectionManager.setCenter(((int) Math.floor(x))>>4, ((int) Math.floor(y))>>4, ((int) Math.floor(z))>>4);
+        processCacheLookups();
+        uploadScheduler.process(x, y, z,
+                (sx, sy, sz) -> viewport.isBoxVisible((sx<<4)+8, (sy<<4)+8, (sz<<4)+8, 8, 8, 8),
+                Nvidium.config.upload_budget * 1024L, Nvidium.config.upload_time_budget * 1_000_000L);
+        if (Nvidium.config.terrain_compaction_budget != 0) {
+            //Any geometry uploads still in the stream need to land before the geometry can be moved
+            uploadStream.commit();
+            sectionManager.compactTerrain(Nvidium.config.terrain_compaction_budget * 1024L);
+        }
+        //Bring spilled regions that are back in view in again while there is memory below the eviction margin
+        long restoreBudget = ((max_geometry_memory - 100 - Nvidium.config.memory_eviction_hysteresis) - sectionManager.terrainAreana.getUsedMB()) << 20;
+        if (Nvidium.config.upload_budget != 0) {
+            restoreBudget = Math.min(restoreBudget, Nvidium.config.upload_budget * 1024L);
+        }
+        sectionManager.restoreSpilledRegions(viewport::isBoxVisible, restoreBudget);
         renderPipeline.renderFrame(viewport, matrices, x, y, z);
 
         int error = GL11.glGetError();
@@ -85,9 +148,18 @@ public class NvidiumWorldRenderer {
             System.err.println("OpenGL error: " + error);
         }
 
-        while (sectionManager.terrainAreana.getUsedMB() > (max_geometry_memory - 100)) {
-            renderPipeline.removeARegion();
-            System.out.println("Removed a region due to memory constraints.");
+        //Past the limit evict down to the margin below it in one batch, so memory sitting right at the limit doesnt
+        // evict a region every frame
+        if (sectionManager.terrainAreana.getUsedMB() > (max_geometry_memory - 100)) {
+            long lowWater = max_geometry_memory - 100 - Nvidium.config.memory_eviction_hysteresis;
+            int evicted = 0;
+            while (sectionManager.terrainAreana.getUsedMB() > lowWater && renderPipeline.removeARegion()) {
+                evicted++;
+            }
+            renderPipeline.endEviction();
+            if (evicted != 0) {
+                Nvidium.LOGGER.info("Removed " + evicted + " regions due to memory constraints");
+            }
         }
 
         if (Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER && (System.currentTimeMillis() - last_sample_time) > 60000) {
@@ -95,6 +167,10 @@ public class NvidiumWorldRenderer {
             update_allowed_memory();
             System.out.println("Updated allowed memory to: " + max_geometry_memory + " MB");
         }
+
+        //Every frame, the pipeline returns early when nothing is visible but frees, retirements and readbacks still
+        // need to make progress
+        TickableManager.TickAll();
     }
 
     public void renderTranslucent() {
@@ -108,16 +184,55 @@ public class NvidiumWorldRenderer {
     }
 
     public void deleteSection(RenderSection section) {
+        this.pendingCacheLookups.remove(ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ()));
+        this.uploadScheduler.cancel(ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ()));
         this.sectionManager.deleteSection(section);
     }
 
+    //Queues the newly loaded section for a disk cache lookup, so its cached geometry shows up before sodium has built
+    // it. The build result replaces it once it arrives
+    public void onSectionLoaded(int x, int y, int z) {
+        if (this.geometryCache != null) {
+            this.pendingCacheLookups.add(ChunkSectionPos.asLong(x, y, z));
+        }
+    }
+
+    private void processCacheLookups() {
+        if (this.pendingCacheLookups.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        do {
+            long sectionKey = this.pendingCacheLookups.removeFirstLong();
+            int x = ChunkSectionPos.unpackX(sectionKey);
+            int y = ChunkSectionPos.unpackY(sectionKey);
+            int z = ChunkSectionPos.unpackZ(sectionKey);
+            var output = this.geometryCache.load(x, y, z);
+            if (output != null) {
+                this.uploadScheduler.enqueue(sectionKey, x, y, z, output.geometry().length(), output);
+            }
+        } while (!this.pendingCacheLookups.isEmpty() && System.nanoTime() - start < CACHE_LOOKUP_NANOS);
+    }
+
     public void uploadBuildResult(ChunkBuildOutput buildOutput) {
         buildOutput.meshes.forEach((key, value) -> {
             System.out.println("Mesh key: " + key);
             System.out.println("Vertex data length: " + value.getVertexData().getLength());
             System.out.println("Vertex counts: " + Arrays.toString(value.getVertexCounts()));
         });
-        this.sectionManager.uploadChunkBuildResult(buildOutput);
+        var output = ((IRepackagedResult) buildOutput).nVidium$getOutput();
+        RenderSection section = buildOutput.render;
+        long sectionKey = ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ());
+        this.pendingCacheLookups.remove(sectionKey);
+        if (output == null || output.quads() == 0) {
+            //Empty results are applied straight away, they also supersede any result still waiting for upload
+            this.uploadScheduler.cancel(sectionKey);
+            this.sectionManager.uploadChunkBuildResult(sectionKey, output);
+            return;
+        }
+        //Take ownership of the output, sodium destroys the build output once this returns
+        ((IRepackagedResult) buildOutput).nVidium$set(null);
+        this.uploadScheduler.enqueue(sectionKey, section.getChunkX(), section.getChunkY(), section.getChunkZ(), output.geometry().length(), output);
     }
 
 
@@ -127,10 +242,50 @@ public class NvidiumWorldRenderer {
         debugInfo.add("Memory limit: " + max_geometry_memory + " mb");
         debugInfo.add("Terrain Memory MB: " +);
         debugInfo.add(String.format("Fragmentation: %.2f", sectionManager.terrainAreana.getFragmentation()*100));
-        debugInfo.add("Regions: " + sectionManager.getRegionManager().regionCount() + "/" + sectionManager.getRegionManager().maxRegions());
+        debugInfo.add("Regions: " + sectionManager.getRegionManager().regionCount() + "/" + sectionManager.getRegionManager().regionCapacity());
          */
         debugInfo.add("Mem" + (Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER?"":" (fallback)") + ": " + (Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER?this.sectionManager.terrainAreana.getAllocatedMB():this.sectionManager.terrainAreana.getUsedMB()) + "/"+ this.max_geometry_memory + String.format(", F: %.2f", sectionManager.terrainAreana.getFragmentation()*100));
-        debugInfo.add("Regions: " + sectionManager.getRegionManager().regionCount() + "/" + sectionManager.getRegionManager().maxRegions());
+        debugInfo.add("Regions: " + sectionManager.getRegionManager().regionCount() + "/" + sectionManager.getRegionManager().regionCapacity() + " (meta: " + sectionManager.getRegionManager().getMetadataBufferBytes()/1024 + " KB)");
+        if (!Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER) {
+            debugInfo.add("Fallback buffer: " + sectionManager.terrainAreana.getAllocatedMB() + " MB");
+        }
+        String pageChurn = sectionManager.terrainAreana.getPageChurn();
+        if (pageChurn != null) {
+            debugInfo.add("Pages: " + pageChurn);
+        }
+        String pageSlack = sectionManager.terrainAreana.getPageSlack();
+        if (pageSlack != null) {
+            debugInfo.add("Page slack: " + pageSlack);
+        }
+        //Walks every section, so only resample it once a second
+        if ((System.currentTimeMillis() - last_locality_sample_time) > 1000) {
+            last_locality_sample_time = System.currentTimeMillis();
+            arena_locality = sectionManager.computeRegionLocality();
+        }
+        debugInfo.add(String.format("Arena locality: %.2f", arena_locality*100));
+        debugInfo.add(String.format("Rebuilds in place: %.2f", sectionManager.getRebuildReuseRate()*100));
+        var spillCache = sectionManager.getSpillCache();
+        if (spillCache != null) {
+            debugInfo.add(String.format("Spill cache: %d MB, %d regions, hit rate: %.2f, restored sections: %d", spillCache.getBytesHeld()/(1024*1024), spillCache.getRegionCount(), spillCache.getHitRate()*100, sectionManager.getRestoredSections()));
+        }
+        var sharedGeometry = sectionManager.getSharedGeometry();
+        if (sharedGeometry != null) {
+            debugInfo.add(String.format("Shared geometry: %d allocations, ratio: %.2f, saved: %d MB, copies: %d MB", sharedGeometry.getAllocationCount(), sharedGeometry.getDedupRatio(), sharedGeometry.getSavedQuads()*NvidiumCompactChunkVertex.STRIDE*4/(1024*1024), sharedGeometry.getCopyBytes()/(1024*1024)));
+        }
+        if (geometryCache != null) {
+            var diskCache = geometryCache.getCache();
+            debugInfo.add(String.format("Disk cache: %d/%d MB, hits: %d/%d, stores: %d", diskCache.getUsedBytes()/(1024*1024), diskCache.getSize()/(1024*1024), diskCache.getHits(), diskCache.getLookups(), diskCache.getStores()) + ", pending lookups: " + pendingCacheLookups.size());
+        }
+        debugInfo.add(String.format("Staging ring: %d/%d MB, direct: %.2f", stagingRing.getUsedBytes()/(1024*1024), stagingRing.getSize()/(1024*1024), stagingRing.getStagedRate()*100));
+        debugInfo.add("Upload copies: " + uploadStream.getLastFrameCopies() + " (merged: " + uploadStream.getLastFrameCopiesSaved() + ")");
+        debugInfo.add("Upload queue: " + uploadScheduler.getPendingCount() + " (" + uploadScheduler.getPendingBytes()/1024 + " KB), this frame: " + uploadScheduler.getLastFrameUploads() + " (" + uploadScheduler.getLastFrameBytes()/1024 + " KB), overdue: " + uploadScheduler.getLastFrameOverdue());
+        var regionManager = sectionManager.getRegionManager();
+        debugInfo.add("Section grid fallback: " + sectionManager.getGridFallbackCount());
+        debugInfo.add("Region mirrors: " + regionManager.getMirrorBytes()/1024 + "/" + regionManager.getMirrorReservedBytes()/1024 + " KB, " + (regionManager.regionCount() == 0 ? 0 : regionManager.getMirrorBytes()/regionManager.regionCount()) + " B/region");
+        debugInfo.add("Region meta: " + sectionManager.getRegionManager().getLastCommitBytes()/1024 + " KB (whole regions: " + sectionManager.getRegionManager().getLastCommitFullBytes()/1024 + " KB)");
+        debugInfo.add("Staging: up " + uploadStream.getCapacity()/(1024*1024) + " MB, down " + downloadStream.getCapacity()/(1024*1024) + " MB (resizes: " + (uploadStream.getResizeCount() + downloadStream.getResizeCount()) + ")");
+        debugInfo.add("Readback latency: " + downloadStream.getLastLatency() + " frames, in flight: " + downloadStream.getInFlightFrames());
+        debugInfo.add(String.format("Upload: %d KB, stalls: %d (%.2f ms)", uploadStream.getLastFrameBytes()/1024, uploadStream.getLastFrameStalls(), uploadStream.getLastFrameStallNanos()/1e6));
         if (this.asyncChunkTracker != null) {
             debugInfo.add("A-BFS: " + asyncChunkTracker.getIterationTime() + " Q: " + Arrays.toString(this.asyncChunkTracker.getBuildQueueSizes()));//Async BFS iteration time:, Build queue sizes:
         }
@@ -3,17 +3,21 @@ package me.cortex.nvidium;
 import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.systems.RenderSystem;
 import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import me.cortex.nvidium.api0.NvidiumAPI;
 import me.cortex.nvidium.config.StatisticsLoggingLevel;
 import me.cortex.nvidium.config.TranslucencySortingLevel;
 import me.cortex.nvidium.gl.RenderDevice;
 import me.cortex.nvidium.gl.buffers.IDeviceMappedBuffer;
+import me.cortex.nvidium.managers.RegionCuller;
+import me.cortex.nvidium.managers.RegionEvictionQueue;
 import me.cortex.nvidium.managers.RegionManager;
 import me.cortex.nvidium.managers.RegionVisibilityTracker;
 import me.cortex.nvidium.managers.SectionManager;
 import me.cortex.nvidium.renderers.*;
 import me.cortex.nvidium.util.DownloadTaskStream;
-import me.cortex.nvidium.util.TickableManager;
+import me.cortex.nvidium.util.GrowableDeviceBuffer;
+import me.cortex.nvidium.util.RadixSorter;
 import me.cortex.nvidium.util.UploadingBufferStream;
 import net.caffeinemc.mods.sodium.client.SodiumClientMod;
 import net.caffeinemc.mods.sodium.client.render.chunk.ChunkRenderMatrices;
@@ -26,6 +30,7 @@ import org.lwjgl.opengl.GL11C;
 import org.lwjgl.system.MemoryUtil;
 
 import java.lang.Math;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 
@@ -61,19 +66,39 @@ public class RenderPipeline {
     private TranslucentTerrainRasterizer translucencyTerrainRasterizer;
     private SortRegionSectionPhase regionSectionSorter;
 
-    private final IDeviceMappedBuffer sceneUniform;
+    //Everything indexed by region id grows with the region capacity, see ensureRegionCapacity
+    private final GrowableDeviceBuffer sceneUniform;
     private static final int SCENE_SIZE = (int) alignUp(4*4*4+4*4+4*4+4+4*4+4*4+8*8+3*4+3+4+8+8+(4*4*4)+4, 2);
 
-    private final IDeviceMappedBuffer regionVisibility;
-    private final IDeviceMappedBuffer sectionVisibility;
-    private final IDeviceMappedBuffer terrainCommandBuffer;
-    private final IDeviceMappedBuffer translucencyCommandBuffer;
-    private final IDeviceMappedBuffer regionSortingList;
+    private final GrowableDeviceBuffer regionVisibility;
+    private final GrowableDeviceBuffer sectionVisibility;
+    private final GrowableDeviceBuffer terrainCommandBuffer;
+    private final GrowableDeviceBuffer translucencyCommandBuffer;
+    private final GrowableDeviceBuffer regionSortingList;
     private final IDeviceMappedBuffer statisticsBuffer;
     private final IDeviceMappedBuffer transformationArray;
     private final IDeviceMappedBuffer originOffsetArray;
 
-    private final BitSet regionVisibilityTracker;
+    //Regions visible last frame, and the set being built for this frame
+    private BitSet regionVisibilityTracker;
+    private BitSet frameRegionVisibility;
+    //Produces the packed distance<<16|id keys of the visible regions, sorted with the radix sorter
+    private final RegionCuller regionCuller = RegionCuller.create();
+    private final RadixSorter regionSorter = new RadixSorter();
+    //Every region, ordered by how evictable it is under memory pressure, rescored whenever it passes the cull
+    private final RegionEvictionQueue evictionQueue = new RegionEvictionQueue();
+    //Regions younger than this many frames are not evicted, so the ones streaming in dont get thrown out straight away
+    private static final int MIN_EVICTION_AGE = 200;
+    //Regions too young to evict that an eviction batch popped off the queue, endEviction puts them back
+    private final IntArrayList deferredEvictions = new IntArrayList();
+    private final LongArrayList deferredEvictionKeys = new LongArrayList();
+    //Counts renderFrame calls, the frame each region was created in and last passed the cull
+    private int cullFrame;
+    private int[] regionCreatedFrame = new int[0];
+    private int[] regionSeenFrame = new int[0];
+    private final Vector3i lastCameraChunk = new Vector3i();
+    private final float[] frustumPlanes = new float[24];
+    private final Vector4f frustumPlane = new Vector4f();
 
     //Set of regions that need to be sorted
     private final IntSet regionsToSort = new IntOpenHashSet();
@@ -101,19 +126,22 @@ public class RenderPipeline {
         translucencyTerrainRasterizer = new TranslucentTerrainRasterizer();
         regionSectionSorter = new SortRegionSectionPhase();
 
-        int maxRegions = sectionManager.getRegionManager().maxRegions();
+        int regionCapacity = sectionManager.getRegionManager().regionCapacity();
+        int maxRegions = RegionManager.MAX_REGIONS;
 
-        sceneUniform = device.createDeviceOnlyMappedBuffer(SCENE_SIZE + maxRegions*2L);
-        regionVisibility = device.createDeviceOnlyMappedBuffer(maxRegions);
-        sectionVisibility = device.createDeviceOnlyMappedBuffer(maxRegions * 256L);
-        terrainCommandBuffer = device.createDeviceOnlyMappedBuffer(maxRegions*8L);
-        translucencyCommandBuffer = device.createDeviceOnlyMappedBuffer(maxRegions*8L);
-        regionSortingList = device.createDeviceOnlyMappedBuffer(maxRegions*2L);
+        sceneUniform = new GrowableDeviceBuffer(device, uploadStream, SCENE_SIZE + regionCapacity*2L, SCENE_SIZE + maxRegions*2L);
+        regionVisibility = new GrowableDeviceBuffer(device, uploadStream, regionCapacity, maxRegions);
+        sectionVisibility = new GrowableDeviceBuffer(device, uploadStream, regionCapacity * 256L, maxRegions * 256L);
+        terrainCommandBuffer = new GrowableDeviceBuffer(device, uploadStream, regionCapacity*8L, maxRegions*8L);
+        translucencyCommandBuffer = new GrowableDeviceBuffer(device, uploadStream, regionCapacity*8L, maxRegions*8L);
+        regionSortingList = new GrowableDeviceBuffer(device, uploadStream, regionCapacity*2L, maxRegions*2L);
+        this.regionCapacity = regionCapacity;
         this.transformationArray = device.createDeviceOnlyMappedBuffer(RegionManager.MAX_TRANSFORMATION_COUNT * (4*4*4));
         this.originOffsetArray = device.createDeviceOnlyMappedBuffer(RegionManager.MAX_TRANSFORMATION_COUNT * 8);
 
-        regionVisibilityTracker = new BitSet(maxRegions);
-        regionVisibilityTracking = new RegionVisibilityTracker(downloadStream, maxRegions);
+        regionVisibilityTracker = new BitSet(regionCapacity);
+        frameRegionVisibility = new BitSet(regionCapacity);
+        regionVisibilityTracking = new RegionVisibilityTracker(downloadStream, regionCapacity);
 
         statisticsBuffer = device.createDeviceOnlyMappedBuffer(4*4);
         stats = new Statistics();
@@ -156,74 +184,120 @@ public class RenderPipeline {
     }
 
     private int prevRegionCount;
+    private int regionCapacity;
     private int frameId;
     private boolean compiledForFog = false;
 
+    //Grows the region indexed buffers to the capacity of the region manager, the new addresses are picked up by the
+    // scene uniform written right after
+    private void ensureRegionCapacity() {
+        int capacity = sectionManager.getRegionManager().regionCapacity();
+        if (capacity == this.regionCapacity) {
+            return;
+        }
+        sceneUniform.ensureCapacity(SCENE_SIZE + capacity*2L);
+        regionVisibility.ensureCapacity(capacity);
+        sectionVisibility.ensureCapacity(capacity * 256L);
+        terrainCommandBuffer.ensureCapacity(capacity*8L);
+        translucencyCommandBuffer.ensureCapacity(capacity*8L);
+        regionSortingList.ensureCapacity(capacity*2L);
+        regionVisibilityTracking.ensureCapacity(capacity);
+        this.regionCapacity = capacity;
+    }
+
+    private void ensureFrameCapacity(int regionId) {
+        if (regionId >= this.regionSeenFrame.length) {
+            int length = Math.max(regionId + 1, sectionManager.getRegionManager().regionCapacity());
+            this.regionCreatedFrame = Arrays.copyOf(this.regionCreatedFrame, length);
+            this.regionSeenFrame = Arrays.copyOf(this.regionSeenFrame, length);
+        }
+    }
+
+    //Regions enter the eviction queue as soon as they exist, so ones that never come into view can be evicted too
+    void onRegionCreated(int regionId) {
+        ensureFrameCapacity(regionId);
+        regionCreatedFrame[regionId] = cullFrame;
+        regionSeenFrame[regionId] = cullFrame;
+        var rm = sectionManager.getRegionManager();
+        //Nothing is allocated in it yet
+        evictionQueue.update(regionId, RegionEvictionQueue.score(cullFrame,
+                rm.distance(regionId, lastCameraChunk.x, lastCameraChunk.y, lastCameraChunk.z), 0));
+    }
+
     //TODO FIXME: regions that where in frustum but are now out of frustum must have the visibility data cleared
     // this is due to funny issue of pain where the section was "visible" last frame cause it didnt get ticked
     public void renderFrame(Viewport frustum, ChunkRenderMatrices crm, double px, double py, double pz) {
+        cullFrame++;
         if (sectionManager.getRegionManager().regionCount() == 0) return;
+        ensureRegionCapacity();
 
         final int DEBUG_RENDER_LEVEL = 0;
         final boolean WRITE_DEPTH = false;
 
         Vector3i blockPos = new Vector3i((int) Math.floor(px), (int) Math.floor(py), (int) Math.floor(pz));
         Vector3i chunkPos = new Vector3i(blockPos.x >> 4, blockPos.y >> 4, blockPos.z >> 4);
+        lastCameraChunk.set(chunkPos);
 
         int screenWidth = MinecraftClient.getInstance().getWindow().getFramebufferWidth();
         int screenHeight = MinecraftClient.getInstance().getWindow().getFramebufferHeight();
 
-        int visibleRegions = 0;
-
-        long queryAddr = 0;
         var rm = sectionManager.getRegionManager();
-        short[] regionMap;
-
-        // Enqueue all the visible regions
-        IntSortedSet regions = new IntAVLTreeSet();
-        for (int i = 0; i < rm.maxRegionIndex(); i++) {
-            if (!rm.regionExists(i)) continue;
-            if ((Nvidium.config.region_keep_distance != 256 && Nvidium.config.region_keep_distance != 32) && !rm.withinSquare(Nvidium.config.region_keep_distance + 4, i, chunkPos.x, chunkPos.y, chunkPos.z)) {
-                removeRegion(i);
-                continue;
-            }
 
-            if (rm.isRegionVisible(frustum, i)) {
-                regions.add((rm.distance(i, chunkPos.x, chunkPos.y, chunkPos.z) << 16) | i);
-                visibleRegions++;
-                regionVisibilityTracker.set(i);
-
-                if (rm.isRegionInACameraAxis(i, px, py, pz)) {
-                    regionsToSort.add(i);
-                }
-            } else {
-                if (regionVisibilityTracker.get(i)) {
-                    if (Nvidium.config.enable_temporal_coherence) {
-                        nglClearNamedBufferSubData(sectionVisibility.getId(), GL_R8UI, (long) i << 8, 255, GL_RED_INTEGER, GL_UNSIGNED_BYTE, 0);
-                    }
-                }
-                regionVisibilityTracker.clear(i);
+        // Cull all the regions in one pass, only the regions of cells in the frustum or crossing the keep distance
+        // are looked at
+        int keepDistance = (Nvidium.config.region_keep_distance != 256 && Nvidium.config.region_keep_distance != 32) ? Nvidium.config.region_keep_distance + 4 : 0;
+        //Planes of the matrices the terrain is drawn with, they point inwards and are relative to the camera
+        var viewProjection = new Matrix4f(crm.projection()).mul(crm.modelView());
+        for (int p = 0; p < 6; p++) {
+            viewProjection.frustumPlane(p, frustumPlane);
+            frustumPlanes[p * 4] = frustumPlane.x;
+            frustumPlanes[p * 4 + 1] = frustumPlane.y;
+            frustumPlanes[p * 4 + 2] = frustumPlane.z;
+            frustumPlanes[p * 4 + 3] = frustumPlane.w;
+        }
+        regionCuller.begin(frustumPlanes, px, py, pz, keepDistance, regionCapacity);
+        rm.getCullingGrid().cull(regionCuller);
+        var removals = regionCuller.getRemovals();
+        for (int k = 0; k < removals.size(); k++) {
+            removeRegion(removals.getInt(k));
+        }
+        regionsToSort.addAll(regionCuller.getAxisRegions());
+        int[] visibleRegionKeys = regionCuller.getVisibleKeys();
+        int visibleRegions = regionCuller.getVisibleCount();
+        for (int k = 0; k < visibleRegions; k++) {
+            int id = visibleRegionKeys[k] & 0xFFFF;
+            frameRegionVisibility.set(id);
+            ensureFrameCapacity(id);
+            regionSeenFrame[id] = cullFrame;
+            evictionQueue.update(id, RegionEvictionQueue.score(cullFrame, visibleRegionKeys[k] >>> 16, sectionManager.getRegionQuads(id)));
+        }
+
+        //Regions that left the frustum since last frame
+        for (int i = regionVisibilityTracker.nextSetBit(0); i >= 0; i = regionVisibilityTracker.nextSetBit(i + 1)) {
+            if (!frameRegionVisibility.get(i) && Nvidium.config.enable_temporal_coherence) {
+                nglClearNamedBufferSubData(sectionVisibility.get().getId(), GL_R8UI, (long) i << 8, 255, GL_RED_INTEGER, GL_UNSIGNED_BYTE, 0);
             }
         }
+        var lastRegionVisibility = regionVisibilityTracker;
+        regionVisibilityTracker = frameRegionVisibility;
+        frameRegionVisibility = lastRegionVisibility;
+        frameRegionVisibility.clear();
 
-        regionMap = new short[regions.size()];
         if (visibleRegions == 0) return;
-        long addr = uploadStream.upload(sceneUniform, SCENE_SIZE, visibleRegions * 2);
-        queryAddr = addr;
-        int j = 0;
-        for (int i : regions) {
-            regionMap[j] = (short) i;
-            MemoryUtil.memPutShort(addr + ((long) j << 1), (short) i);
-            j++;
+        //Front to back, the id is in the low 16 bits of the key
+        regionSorter.sort(visibleRegionKeys, visibleRegions);
+        long addr = uploadStream.upload(sceneUniform.get(), SCENE_SIZE, visibleRegions * 2);
+        for (int j = 0; j < visibleRegions; j++) {
+            MemoryUtil.memPutShort(addr + ((long) j << 1), (short) visibleRegionKeys[j]);
         }
 
         if (Nvidium.config.statistics_level != StatisticsLoggingLevel.NONE) {
-            stats.frustumCount = regions.size();
+            stats.frustumCount = visibleRegions;
         }
 
         Vector3f delta = new Vector3f((float) (px - (chunkPos.x << 4)), (float) (py - (chunkPos.y << 4)), (float) (pz - (chunkPos.z << 4)));
         delta.negate();
-        addr = uploadStream.upload(sceneUniform, 0, SCENE_SIZE);
+        addr = uploadStream.upload(sceneUniform.get(), 0, SCENE_SIZE);
         new Matrix4f(crm.projection())
                 .mul(crm.modelView())
                 .translate(delta)
@@ -258,6 +332,7 @@ public class RenderPipeline {
         addr += 8;
         MemoryUtil.memPutLong(addr, regionSortingList.getDeviceAddress());
         addr += 8;
+        //Reread every frame as the fallback terrain buffer gets replaced when it is resized
         MemoryUtil.memPutLong(addr, sectionManager.terrainAreana.buffer.getDeviceAddress());
         addr += 8;
         MemoryUtil.memPutLong(addr, this.transformationArray.getDeviceAddress());
@@ -291,7 +366,7 @@ public class RenderPipeline {
         int regionSortSize = this.regionsToSort.size();
 
         if (regionSortSize != 0) {
-            long regionSortUpload = uploadStream.upload(regionSortingList, 0, regionSortSize * 2);
+            long regionSortUpload = uploadStream.upload(regionSortingList.get(), 0, regionSortSize * 2);
             for (int region : regionsToSort) {
                 MemoryUtil.memPutShort(regionSortUpload, (short) region);
                 regionSortUpload += 2;
@@ -302,8 +377,6 @@ public class RenderPipeline {
         sectionManager.commitChanges();
         uploadStream.commit();
 
-        TickableManager.TickAll();
-
         glEnableClientState(GL_UNIFORM_BUFFER_UNIFIED_NV);
         glEnableClientState(GL_VERTEX_ATTRIB_ARRAY_UNIFIED_NV);
         glEnableClientState(GL_ELEMENT_ARRAY_UNIFIED_NV);
@@ -375,10 +448,44 @@ public class RenderPipeline {
     private void removeRegion(int id) {
         sectionManager.removeRegionById(id);
         regionVisibilityTracking.resetRegion(id);
+        evictionQueue.remove(id);
+    }
+
+    //Evicts the most evictable region, false if there is nothing left that can be evicted. Young regions are skipped
+    // for the rest of the batch, endEviction must be called once the batch is done
+    public boolean removeARegion() {
+        var rm = sectionManager.getRegionManager();
+        int id;
+        while ((id = evictionQueue.peek()) != -1) {
+            long key = evictionQueue.getKey(id);
+            evictionQueue.poll();
+            //Regions can also be emptied by sodium unloading their sections, those are dropped
+            if (!rm.regionExists(id)) {
+                continue;
+            }
+            if (cullFrame - regionCreatedFrame[id] < MIN_EVICTION_AGE) {
+                deferredEvictions.add(id);
+                deferredEvictionKeys.add(key);
+                continue;
+            }
+            sectionManager.spillRegion(id);
+            removeRegion(id);
+            return true;
+        }
+        return false;
     }
 
-    public void removeARegion() {
-        removeRegion(regionVisibilityTracking.findMostLikelyLeastSeenRegion(sectionManager.getRegionManager().maxRegionIndex()));
+    //Puts the regions skipped by removeARegion back into the queue
+    public void endEviction() {
+        var rm = sectionManager.getRegionManager();
+        for (int i = 0; i < deferredEvictions.size(); i++) {
+            int id = deferredEvictions.getInt(i);
+            if (rm.regionExists(id)) {
+                evictionQueue.update(id, deferredEvictionKeys.getLong(i));
+            }
+        }
+        deferredEvictions.clear();
+        deferredEvictionKeys.clear();
     }
 
     /*
@@ -88,6 +88,51 @@ public class ConfigGuiBuilder {
                         .setBinding((opts, value) -> opts.max_geometry_memory = value, opts -> opts.max_geometry_memory)
                         .setFlags(Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER?new OptionFlag[0]:new OptionFlag[]{OptionFlag.REQUIRES_RENDERER_RELOAD})
                         .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.memory_eviction_hysteresis.name"))
+                        .setTooltip(Text.translatable("nvidium.options.memory_eviction_hysteresis.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 2048, 64, ControlValueFormatter.translateVariable("nvidium.options.mb")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.memory_eviction_hysteresis = value, opts -> opts.memory_eviction_hysteresis)
+                        .setFlags()
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.region_spill_cache_size.name"))
+                        .setTooltip(Text.translatable("nvidium.options.region_spill_cache_size.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 4096, 128, ControlValueFormatter.translateVariable("nvidium.options.mb")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.region_spill_cache_size = value, opts -> opts.region_spill_cache_size)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(boolean.class, store)
+                        .setName(Text.translatable("nvidium.options.region_spill_compression.name"))
+                        .setTooltip(Text.translatable("nvidium.options.region_spill_compression.tooltip"))
+                        .setControl(TickBoxControl::new)
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED && Nvidium.config.region_spill_cache_size != 0)
+                        .setBinding((opts, value) -> opts.region_spill_compression = value, opts -> opts.region_spill_compression)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.geometry_disk_cache_size.name"))
+                        .setTooltip(Text.translatable("nvidium.options.geometry_disk_cache_size.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 1536, 128, ControlValueFormatter.translateVariable("nvidium.options.mb")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.geometry_disk_cache_size = value, opts -> opts.geometry_disk_cache_size)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(boolean.class, store)
+                        .setName(Text.translatable("nvidium.options.geometry_dedup.name"))
+                        .setTooltip(Text.translatable("nvidium.options.geometry_dedup.tooltip"))
+                        .setControl(TickBoxControl::new)
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.geometry_dedup = value, opts -> opts.geometry_dedup)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
                 ).add(OptionImpl.createBuilder(boolean.class, store)
                         .setName(Text.translatable("nvidium.options.render_fog.name"))
                         .setTooltip(Text.translatable("nvidium.options.render_fog.tooltip"))
@@ -138,6 +183,114 @@ public class ConfigGuiBuilder {
                         .setImpact(OptionImpact.LOW)
                         .setFlags(NvidiumOptionFlags.REQUIRES_SHADER_RELOAD)
                         .build()
+                ).add(OptionImpl.createBuilder(TerrainAllocatorType.class, store)
+                        .setName(Text.translatable("nvidium.options.terrain_allocator.name"))
+                        .setTooltip(Text.translatable("nvidium.options.terrain_allocator.tooltip"))
+                        .setControl(
+                                opts -> new CyclingControl<>(
+                                        opts,
+                                        TerrainAllocatorType.class,
+                                        new Text[]{
+                                                Text.translatable("nvidium.options.terrain_allocator.best_fit"),
+                                                Text.translatable("nvidium.options.terrain_allocator.tlsf")
+                                        }
+                                )
+                        )
+                        .setBinding((opts, value) -> opts.terrain_allocator = value, opts -> opts.terrain_allocator)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setImpact(OptionImpact.LOW)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.terrain_compaction_budget.name"))
+                        .setTooltip(Text.translatable("nvidium.options.terrain_compaction_budget.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 8192, 256, x->Text.literal(x==0?"Off":x+" KB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.terrain_compaction_budget = value, opts -> opts.terrain_compaction_budget)
+                        .setFlags()
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.terrain_rebuild_headroom.name"))
+                        .setTooltip(Text.translatable("nvidium.options.terrain_rebuild_headroom.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 50, 5, x->Text.literal(x==0?"Off":x+"%")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.terrain_rebuild_headroom = value, opts -> opts.terrain_rebuild_headroom)
+                        .setFlags()
+                        .build()
+                ).add(OptionImpl.createBuilder(boolean.class, store)
+                        .setName(Text.translatable("nvidium.options.upload_ring_buffer.name"))
+                        .setTooltip(Text.translatable("nvidium.options.upload_ring_buffer.tooltip"))
+                        .setControl(TickBoxControl::new)
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.upload_ring_buffer = value, opts -> opts.upload_ring_buffer)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                .add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.upload_budget.name"))
+                        .setTooltip(Text.translatable("nvidium.options.upload_budget.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 65536, 1024, x->Text.literal(x==0?"Unlimited":x+" KB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.upload_budget = value, opts -> opts.upload_budget)
+                        .setFlags()
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.upload_time_budget.name"))
+                        .setTooltip(Text.translatable("nvidium.options.upload_time_budget.tooltip"))
+                        .setControl(option -> new SliderControl(option, 0, 16, 1, x->Text.literal(x==0?"Unlimited":x+" ms")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.upload_time_budget = value, opts -> opts.upload_time_budget)
+                        .setFlags()
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.upload_stream_min.name"))
+                        .setTooltip(Text.translatable("nvidium.options.upload_stream_min.tooltip"))
+                        .setControl(option -> new SliderControl(option, 4, 64, 4, x->Text.literal(x+" MB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.upload_stream_min = value, opts -> opts.upload_stream_min)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.upload_stream_max.name"))
+                        .setTooltip(Text.translatable("nvidium.options.upload_stream_max.tooltip"))
+                        .setControl(option -> new SliderControl(option, 32, 1024, 32, x->Text.literal(x+" MB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.upload_stream_max = value, opts -> opts.upload_stream_max)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.download_stream_min.name"))
+                        .setTooltip(Text.translatable("nvidium.options.download_stream_min.tooltip"))
+                        .setControl(option -> new SliderControl(option, 1, 16, 1, x->Text.literal(x+" MB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.download_stream_min = value, opts -> opts.download_stream_min)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(int.class, store)
+                        .setName(Text.translatable("nvidium.options.download_stream_max.name"))
+                        .setTooltip(Text.translatable("nvidium.options.download_stream_max.tooltip"))
+                        .setControl(option -> new SliderControl(option, 8, 256, 8, x->Text.literal(x+" MB")))
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.download_stream_max = value, opts -> opts.download_stream_max)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
+                ).add(OptionImpl.createBuilder(boolean.class, store)
+                        .setName(Text.translatable("nvidium.options.async_readback.name"))
+                        .setTooltip(Text.translatable("nvidium.options.async_readback.tooltip"))
+                        .setControl(TickBoxControl::new)
+                        .setImpact(OptionImpact.LOW)
+                        .setEnabled(() -> Nvidium.IS_ENABLED)
+                        .setBinding((opts, value) -> opts.async_readback = value, opts -> opts.async_readback)
+                        .setFlags(OptionFlag.REQUIRES_RENDERER_RELOAD)
+                        .build()
                 )
                 .build());
         if (Nvidium.IS_COMPATIBLE) {
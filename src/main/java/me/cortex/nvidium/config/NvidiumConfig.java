@@ -18,6 +18,16 @@ public class NvidiumConfig {
     public boolean enable_temporal_coherence = true;
     public int max_geometry_memory = 2048;
     public boolean automatic_memory = true;
+    //Once over the memory limit regions are evicted until this many mb under it
+    public int memory_eviction_hysteresis = 256;
+    //Host memory in mb that regions evicted for memory pressure are kept in so they dont need a rebuild, 0 disables it
+    public int region_spill_cache_size = 512;
+    public boolean region_spill_compression = false;
+    //Size in mb of the per world file that built section geometry is kept in across sessions, the 4 most recently
+    // opened worlds keep theirs. 0 disables it, off by default as it writes to disk
+    public int geometry_disk_cache_size = 0;
+    //Sections with byte identical geometry share one allocation in the terrain arena
+    public boolean geometry_dedup = false;
 
     public boolean async_bfs = true;
 
@@ -29,6 +39,21 @@ public class NvidiumConfig {
 
     public StatisticsLoggingLevel statistics_level = StatisticsLoggingLevel.NONE;
 
+    public TerrainAllocatorType terrain_allocator = TerrainAllocatorType.BEST_FIT;
+    //Max amount of terrain geometry moved per frame by the arena compactor in kb, 0 disables compaction
+    public int terrain_compaction_budget = 1024;
+    public int terrain_rebuild_headroom = 10;
+    public boolean upload_ring_buffer = true;
+    //Per frame budget for uploading chunk build results in kb and ms, whatever doesnt fit waits for the next frame, 0 is unlimited
+    public int upload_budget = 16384;
+    public int upload_time_budget = 4;
+    //Bounds of the upload and download staging buffers in mb
+    public int upload_stream_min = 8;
+    public int upload_stream_max = 256;
+    public int download_stream_min = 2;
+    public int download_stream_max = 64;
+    public boolean async_readback = true;
+
 
     private static final Gson GSON = new GsonBuilder()
             .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
@@ -0,0 +1,6 @@
+package me.cortex.nvidium.config;
+
+public enum TerrainAllocatorType {
+    BEST_FIT,
+    TLSF
+}
@@ -23,6 +23,19 @@ public class GlFence extends TrackedObject {
         return this.signaled;
     }
 
+    //Blocks until the fence is signaled
+    public void waitSignaled() {
+        this.assertNotFreed();
+        while (!this.signaled) {
+            int ret = glClientWaitSync(this.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1000000);
+            if (ret == GL_ALREADY_SIGNALED || ret == GL_CONDITION_SATISFIED) {
+                this.signaled = true;
+            } else if (ret != GL_TIMEOUT_EXPIRED) {
+                throw new IllegalStateException("Wait for fence failed, ret: " + ret + " glError: " + glGetError());
+            }
+        }
+    }
+
     @Override
     public void free() {
         super.free0();
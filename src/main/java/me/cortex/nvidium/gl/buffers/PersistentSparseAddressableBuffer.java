@@ -1,12 +1,17 @@
 package me.cortex.nvidium.gl.buffers;
 
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import me.cortex.nvidium.Nvidium;
+import me.cortex.nvidium.gl.GlFence;
 import me.cortex.nvidium.gl.GlObject;
+import me.cortex.nvidium.util.TickableManager;
 import org.lwjgl.opengl.ARBSparseBuffer;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL21;
 
+import java.util.ArrayDeque;
+
 import static org.lwjgl.opengl.ARBDirectStateAccess.glCreateBuffers;
 import static org.lwjgl.opengl.ARBDirectStateAccess.glNamedBufferStorage;
 import static org.lwjgl.opengl.ARBSparseBuffer.GL_SPARSE_STORAGE_BIT_ARB;
@@ -42,6 +47,7 @@ public class PersistentSparseAddressableBuffer extends GlObject implements IDevi
         if (addr == 0) {
             throw new IllegalStateException();
         }
+        TickableManager.register(this);
     }
 
     private static void doCommit(int buffer, long offset, long size, boolean commit) {
@@ -51,13 +57,53 @@ public class PersistentSparseAddressableBuffer extends GlObject implements IDevi
 
     private final Int2IntOpenHashMap allocationCount = new Int2IntOpenHashMap();
 
+    //Pages that are no longer used but are still committed, mapped to the frame they were released on
+    // they are only decommitted once the gpu is done with that frame and the grace period passed,
+    // if a page gets used again before that the decommit is cancelled
+    private static final int DECOMMIT_GRACE_FRAMES = 30;
+    private final Int2IntOpenHashMap pendingDecommit = new Int2IntOpenHashMap();
+    private final ArrayDeque<ReleaseFrame> releaseFrames = new ArrayDeque<>();
+    private IntArrayList releasedThisFrame = new IntArrayList();
+    private final IntArrayList decommitBatch = new IntArrayList();
+    private int frame;
+
+    private record ReleaseFrame(GlFence fence, int frame, IntArrayList pages) {}
+
+    //Per frame statistics, in pages
+    private int commitsThisFrame;
+    private int decommitsThisFrame;
+    private int lastFrameCommits;
+    private int lastFrameDecommits;
+
     private void allocatePages(int page, int pageCount) {
-        doCommit(id, PAGE_SIZE * page, PAGE_SIZE * pageCount, true);
-        for (int i = 0; i < pageCount; i++) {
-            allocationCount.addTo(i+page,1);
+        //Pages that need committing are batched into contiguous runs
+        int runStart = -1;
+        for (int i = page; i < page + pageCount; i++) {
+            boolean needsCommit = false;
+            if (allocationCount.addTo(i, 1) == 0) {
+                //Page might still be committed and waiting to be retired, in which case just cancel that
+                needsCommit = !pendingDecommit.containsKey(i);
+                pendingDecommit.remove(i);
+            }
+            if (needsCommit) {
+                if (runStart == -1) {
+                    runStart = i;
+                }
+            } else if (runStart != -1) {
+                commitRun(runStart, i - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart != -1) {
+            commitRun(runStart, page + pageCount - runStart);
         }
     }
 
+    private void commitRun(int page, int pageCount) {
+        doCommit(id, PAGE_SIZE * page, PAGE_SIZE * pageCount, true);
+        commitsThisFrame += pageCount;
+    }
+
     private void deallocatePages(int page, int pageCount) {
         for (int i = 0; i < pageCount; i++) {
             int newCount = allocationCount.get(i+page) - 1;
@@ -65,13 +111,88 @@ public class PersistentSparseAddressableBuffer extends GlObject implements IDevi
                 allocationCount.put(i+page, newCount);
             } else {
                 allocationCount.remove(i+page);
-                doCommit(id, PAGE_SIZE * (page+i), PAGE_SIZE,false);
+                pendingDecommit.put(i+page, frame);
+                releasedThisFrame.add(i+page);
             }
         }
     }
 
+    //Should be called once at the end of every frame, retires released pages whose frame the gpu has finished
+    // and that have been unused for the grace period
+    public void tick() {
+        if (!releasedThisFrame.isEmpty()) {
+            releaseFrames.add(new ReleaseFrame(new GlFence(), frame, releasedThisFrame));
+            releasedThisFrame = new IntArrayList();
+        }
+
+        while (!releaseFrames.isEmpty()) {
+            var head = releaseFrames.peek();
+            if (frame - head.frame < DECOMMIT_GRACE_FRAMES || !head.fence.signaled()) {
+                break;
+            }
+            releaseFrames.pop();
+            head.fence.free();
+            for (int page : head.pages) {
+                //Only decommit if the page wasnt reused, or released again on a later frame
+                if (pendingDecommit.get(page) == head.frame && pendingDecommit.containsKey(page)) {
+                    pendingDecommit.remove(page);
+                    decommitBatch.add(page);
+                }
+            }
+        }
+
+        if (!decommitBatch.isEmpty()) {
+            //Decommit contiguous runs with a single call
+            decommitBatch.sort(null);
+            int runStart = decommitBatch.getInt(0);
+            int runEnd = runStart + 1;
+            for (int i = 1; i < decommitBatch.size(); i++) {
+                int page = decommitBatch.getInt(i);
+                if (page != runEnd) {
+                    doCommit(id, PAGE_SIZE * runStart, PAGE_SIZE * (runEnd - runStart), false);
+                    runStart = page;
+                }
+                runEnd = page + 1;
+            }
+            doCommit(id, PAGE_SIZE * runStart, PAGE_SIZE * (runEnd - runStart), false);
+            decommitsThisFrame += decommitBatch.size();
+            decommitBatch.clear();
+        }
+
+        lastFrameCommits = commitsThisFrame;
+        lastFrameDecommits = decommitsThisFrame;
+        commitsThisFrame = 0;
+        decommitsThisFrame = 0;
+        frame++;
+    }
+
+    //Pages that are physically committed, including ones waiting to be decommitted
     public int getPagesCommitted() {
-        return allocationCount.size();
+        return allocationCount.size() + pendingDecommit.size();
+    }
+
+    public int getPagesPendingDecommit() {
+        return pendingDecommit.size();
+    }
+
+    public int getLastFrameCommits() {
+        return lastFrameCommits;
+    }
+
+    public int getLastFrameDecommits() {
+        return lastFrameDecommits;
+    }
+
+    //If every page the range touches is already committed, including pages waiting to be decommitted
+    public boolean isRangeCommitted(long addr, long size) {
+        int pstart = (int) (addr/PAGE_SIZE);
+        int pend   = (int) ((addr+size+PAGE_SIZE-1)/PAGE_SIZE);
+        for (int page = pstart; page < pend; page++) {
+            if (!(allocationCount.containsKey(page) || pendingDecommit.containsKey(page))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void ensureAllocated(long addr, long size) {
@@ -93,6 +214,8 @@ public class PersistentSparseAddressableBuffer extends GlObject implements IDevi
 
     public void delete() {
         super.free0();
+        TickableManager.remove(this);
+        releaseFrames.forEach(frame -> frame.fence.free());
         glMakeNamedBufferNonResidentNV(id);
         glDeleteBuffers(id);
     }
@@ -0,0 +1,181 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import me.cortex.nvidium.Nvidium;
+
+import java.util.Arrays;
+
+//Per frame region culling over the struct of arrays positions kept by RegionCullingGrid, a single pass over a batch
+// of regions gives the frustum test, keep distance test, camera axis test and front to back distance key of each
+// region. Same tests as RegionManager.isRegionVisible, withinSquare, isRegionInACameraAxis and distance
+// The regions of every cell that isnt skipped are gathered into one contiguous batch first, cells only hold a few
+// regions each. This is the scalar version, VectorRegionCuller (src/vector) does the same with the incubator vector
+// api when the game is started with --add-modules jdk.incubator.vector
+public class RegionCuller {
+    //Frustum planes relative to the camera (a, b, c, d) with the inside positive, d of regionPlanes has the radius of
+    // a region box along the plane normal added in
+    protected final float[] regionPlanes = new float[24];
+    private final float[] cellPlanes = new float[24];
+
+    protected int camBlockX;
+    protected int camBlockY;
+    protected int camBlockZ;
+    protected float camFracX;
+    protected float camFracY;
+    protected float camFracZ;
+    protected int camChunkX;
+    protected int camChunkY;
+    protected int camChunkZ;
+    protected int keepDistance;
+
+    //The gathered batch
+    private int[] batchIds = new int[256];
+    private int[] batchX = new int[256];
+    private int[] batchY = new int[256];
+    private int[] batchZ = new int[256];
+    private int batchCount;
+
+    //Outputs, visible regions as distance<<16|id keys, and regions past the keep distance or in a camera axis
+    protected int[] visibleKeys = new int[256];
+    protected int visibleCount;
+    protected final IntArrayList removals = new IntArrayList();
+    protected final IntArrayList axisRegions = new IntArrayList();
+
+    //Can be turned off with -Dnvidium.vectorCulling=false
+    private static final boolean USE_VECTOR_API = !System.getProperty("nvidium.vectorCulling", "true").equals("false");
+
+    public static RegionCuller create() {
+        //The vector culler is compiled separately and can only be loaded with the module in the boot layer
+        if (USE_VECTOR_API && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (RegionCuller) Class.forName("me.cortex.nvidium.managers.VectorRegionCuller").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+                Nvidium.LOGGER.warn("Could not use the vector api for region culling", e);
+            }
+        }
+        return new RegionCuller();
+    }
+
+    //Planes are 6 normalized (a, b, c, d) planes relative to the camera, keepDistance is in chunks, 0 to disable
+    public void begin(float[] frustumPlanes, double camX, double camY, double camZ, int keepDistance, int regionCapacity) {
+        for (int p = 0; p < 24; p += 4) {
+            float a = frustumPlanes[p], b = frustumPlanes[p + 1], c = frustumPlanes[p + 2], d = frustumPlanes[p + 3];
+            this.regionPlanes[p] = this.cellPlanes[p] = a;
+            this.regionPlanes[p + 1] = this.cellPlanes[p + 1] = b;
+            this.regionPlanes[p + 2] = this.cellPlanes[p + 2] = c;
+            this.regionPlanes[p + 3] = d + Math.abs(a) * 64 + Math.abs(b) * 32 + Math.abs(c) * 64;
+            this.cellPlanes[p + 3] = d + Math.abs(a) * 256 + Math.abs(b) * 128 + Math.abs(c) * 256;
+        }
+        this.camBlockX = (int) Math.floor(camX);
+        this.camBlockY = (int) Math.floor(camY);
+        this.camBlockZ = (int) Math.floor(camZ);
+        this.camFracX = (float) (camX - this.camBlockX);
+        this.camFracY = (float) (camY - this.camBlockY);
+        this.camFracZ = (float) (camZ - this.camBlockZ);
+        this.camChunkX = this.camBlockX >> 4;
+        this.camChunkY = this.camBlockY >> 4;
+        this.camChunkZ = this.camBlockZ >> 4;
+        this.keepDistance = keepDistance <= 0 ? Integer.MAX_VALUE / 2 : keepDistance;
+        if (this.visibleKeys.length < regionCapacity) {
+            this.visibleKeys = new int[regionCapacity];
+        }
+        this.batchCount = 0;
+        this.visibleCount = 0;
+        this.removals.clear();
+        this.axisRegions.clear();
+    }
+
+    private static boolean testPlanes(float[] planes, float x, float y, float z) {
+        for (int p = 0; p < 24; p += 4) {
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Cells are 4x4x4 regions, 512x256x512 blocks
+    public boolean isCellVisible(int cx, int cy, int cz) {
+        return testPlanes(this.cellPlanes,
+                ((cx << 9) + 256 - this.camBlockX) - this.camFracX,
+                ((cy << 8) + 128 - this.camBlockY) - this.camFracY,
+                ((cz << 9) + 256 - this.camBlockZ) - this.camFracZ);
+    }
+
+    //Whether every region center the cell can hold is within the keep distance
+    public boolean isCellWithinKeepDistance(int cx, int cy, int cz) {
+        return Math.max(Math.abs((cx << 5) + 4 - this.camChunkX), Math.abs((cx << 5) + 28 - this.camChunkX)) <= this.keepDistance &&
+               Math.max(Math.abs((cy << 4) + 2 - this.camChunkY), Math.abs((cy << 4) + 14 - this.camChunkY)) <= this.keepDistance &&
+               Math.max(Math.abs((cz << 5) + 4 - this.camChunkZ), Math.abs((cz << 5) + 28 - this.camChunkZ)) <= this.keepDistance;
+    }
+
+    //Appends the regions of a cell to the batch
+    public void addCell(int[] ids, int[] rx, int[] ry, int[] rz, int count) {
+        int end = this.batchCount + count;
+        if (end > this.batchIds.length) {
+            int size = Math.max(end, this.batchIds.length * 2);
+            this.batchIds = Arrays.copyOf(this.batchIds, size);
+            this.batchX = Arrays.copyOf(this.batchX, size);
+            this.batchY = Arrays.copyOf(this.batchY, size);
+            this.batchZ = Arrays.copyOf(this.batchZ, size);
+        }
+        System.arraycopy(ids, 0, this.batchIds, this.batchCount, count);
+        System.arraycopy(rx, 0, this.batchX, this.batchCount, count);
+        System.arraycopy(ry, 0, this.batchY, this.batchCount, count);
+        System.arraycopy(rz, 0, this.batchZ, this.batchCount, count);
+        this.batchCount = end;
+    }
+
+    //Culls the gathered batch
+    public void cull() {
+        this.cullBatch(this.batchIds, this.batchX, this.batchY, this.batchZ, this.batchCount);
+    }
+
+    protected void cullBatch(int[] ids, int[] rx, int[] ry, int[] rz, int count) {
+        this.cullRange(ids, rx, ry, rz, 0, count);
+    }
+
+    protected final void cullRange(int[] ids, int[] rx, int[] ry, int[] rz, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int x = rx[i], y = ry[i], z = rz[i];
+            if (Math.abs((x<<3)+4-this.camChunkX) > this.keepDistance ||
+                Math.abs((y<<2)+2-this.camChunkY) > this.keepDistance ||
+                Math.abs((z<<3)+4-this.camChunkZ) > this.keepDistance) {
+                this.removals.add(ids[i]);
+                continue;
+            }
+            if (!testPlanes(this.regionPlanes,
+                    ((x << 7) + 64 - this.camBlockX) - this.camFracX,
+                    ((y << 6) + 32 - this.camBlockY) - this.camFracY,
+                    ((z << 7) + 64 - this.camBlockZ) - this.camFracZ)) {
+                continue;
+            }
+            int distance = (Math.abs((x<<3)+4-this.camChunkX)+
+                            Math.abs((y<<2)+2-this.camChunkY)+
+                            Math.abs((z<<3)+4-this.camChunkZ)+
+                            Math.abs((x<<3)+3-this.camChunkX)+
+                            Math.abs((y<<2)+1-this.camChunkY)+
+                            Math.abs((z<<3)+3-this.camChunkZ))>>1;
+            this.visibleKeys[this.visibleCount++] = distance << 16 | ids[i];
+            if (x == this.camBlockX >> 7 || y == this.camBlockY >> 6 || z == this.camBlockZ >> 7) {
+                this.axisRegions.add(ids[i]);
+            }
+        }
+    }
+
+    public int[] getVisibleKeys() {
+        return this.visibleKeys;
+    }
+
+    public int getVisibleCount() {
+        return this.visibleCount;
+    }
+
+    public IntArrayList getRemovals() {
+        return this.removals;
+    }
+
+    public IntArrayList getAxisRegions() {
+        return this.axisRegions;
+    }
+}
@@ -0,0 +1,140 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+//Grid of super regions (4x4x4 regions, 512x256x512 blocks) over the loaded regions, kept up to date as regions are
+// created and removed. Culling tests the cells first and only visits the regions of cells that pass, so everything
+// behind the camera or past the keep distance is rejected a cell at a time instead of a region at a time
+public class RegionCullingGrid {
+    public interface IBoxVisibility {
+        //Box given by its center and half extents in blocks
+        boolean isBoxVisible(int x, int y, int z, int halfX, int halfY, int halfZ);
+    }
+
+    private static final int CELL_SHIFT = 2;
+
+    private static final class Cell {
+        private final int x;
+        private final int y;
+        private final int z;
+        //Struct of arrays of the region ids and positions (in regions), so a whole cell can be culled as one batch
+        private int[] regions = new int[16];
+        private int[] rx = new int[16];
+        private int[] ry = new int[16];
+        private int[] rz = new int[16];
+        private int count;
+        //Position in the cell list
+        private int index;
+
+        private Cell(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    //Same layout as ChunkSectionPos.asLong
+    private static long cellKey(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFL) << 42 | ((long) y & 0xFFFFFL) | ((long) z & 0x3FFFFFL) << 20;
+    }
+
+    private final Long2ObjectOpenHashMap<Cell> cells = new Long2ObjectOpenHashMap<>();
+    private final ArrayList<Cell> cellList = new ArrayList<>();
+    //Per region id, the cell it is in and its position in the cells region array
+    private Cell[] regionCell = new Cell[256];
+    private int[] regionSlot = new int[256];
+
+    public void add(int regionId, int rx, int ry, int rz) {
+        if (regionId >= this.regionCell.length) {
+            int size = Math.max(regionId + 1, this.regionCell.length * 2);
+            this.regionCell = Arrays.copyOf(this.regionCell, size);
+            this.regionSlot = Arrays.copyOf(this.regionSlot, size);
+        }
+        if (this.regionCell[regionId] != null) {
+            throw new IllegalStateException("Region already in the culling grid");
+        }
+        int cx = rx >> CELL_SHIFT;
+        int cy = ry >> CELL_SHIFT;
+        int cz = rz >> CELL_SHIFT;
+        long key = cellKey(cx, cy, cz);
+        var cell = this.cells.get(key);
+        if (cell == null) {
+            cell = new Cell(cx, cy, cz);
+            cell.index = this.cellList.size();
+            this.cellList.add(cell);
+            this.cells.put(key, cell);
+        }
+        if (cell.count == cell.regions.length) {
+            cell.regions = Arrays.copyOf(cell.regions, cell.count * 2);
+            cell.rx = Arrays.copyOf(cell.rx, cell.count * 2);
+            cell.ry = Arrays.copyOf(cell.ry, cell.count * 2);
+            cell.rz = Arrays.copyOf(cell.rz, cell.count * 2);
+        }
+        this.regionSlot[regionId] = cell.count;
+        cell.rx[cell.count] = rx;
+        cell.ry[cell.count] = ry;
+        cell.rz[cell.count] = rz;
+        cell.regions[cell.count++] = regionId;
+        this.regionCell[regionId] = cell;
+    }
+
+    public void remove(int regionId) {
+        var cell = regionId < this.regionCell.length ? this.regionCell[regionId] : null;
+        if (cell == null) {
+            throw new IllegalStateException("Region not in the culling grid");
+        }
+        this.regionCell[regionId] = null;
+        //Swap the last region of the cell into the hole
+        int slot = this.regionSlot[regionId];
+        int last = cell.regions[--cell.count];
+        cell.regions[slot] = last;
+        cell.rx[slot] = cell.rx[cell.count];
+        cell.ry[slot] = cell.ry[cell.count];
+        cell.rz[slot] = cell.rz[cell.count];
+        this.regionSlot[last] = slot;
+        if (cell.count == 0) {
+            var moved = this.cellList.remove(this.cellList.size() - 1);
+            if (moved != cell) {
+                moved.index = cell.index;
+                this.cellList.set(cell.index, moved);
+            }
+            this.cells.remove(cellKey(cell.x, cell.y, cell.z));
+        }
+    }
+
+    //Calls the consumer with every region in a cell that passes the visibility test, the regions themselves still need
+    // to be tested
+    public void forEachInVisibleCells(IBoxVisibility visibility, IntConsumer consumer) {
+        for (int i = 0; i < this.cellList.size(); i++) {
+            var cell = this.cellList.get(i);
+            if (!visibility.isBoxVisible((cell.x << 9) + 256, (cell.y << 8) + 128, (cell.z << 9) + 256, 256, 128, 256)) {
+                continue;
+            }
+            var regions = cell.regions;
+            for (int j = 0; j < cell.count; j++) {
+                consumer.accept(regions[j]);
+            }
+        }
+    }
+
+    //Frustum, keep distance, camera axis and distance key of every region in one pass, see RegionCuller. Cells
+    // outside the frustum and within the keep distance are skipped whole, the rest are culled as one batch
+    public void cull(RegionCuller culler) {
+        for (int i = 0; i < this.cellList.size(); i++) {
+            var cell = this.cellList.get(i);
+            if (!culler.isCellVisible(cell.x, cell.y, cell.z) && culler.isCellWithinKeepDistance(cell.x, cell.y, cell.z)) {
+                continue;
+            }
+            culler.addCell(cell.regions, cell.rx, cell.ry, cell.rz, cell.count);
+        }
+        culler.cull();
+    }
+
+    public int cellCount() {
+        return this.cellList.size();
+    }
+}
@@ -0,0 +1,156 @@
+package me.cortex.nvidium.managers;
+
+import java.util.Arrays;
+
+//Indexed binary min heap of region ids ordered by how evictable they are, the region that was seen the longest ago
+// is at the top, ties within a bucket of frames go to the furthest away and then the largest region. Every region id
+// knows its slot in the heap so rescoring or removing a region is log n instead of a scan over every region
+public class RegionEvictionQueue {
+    //Frames of last visibility are bucketed so distance and size still count between regions seen at about the same time
+    private static final int FRAME_BUCKET_SHIFT = 6;
+
+    private int[] heap = new int[256];
+    private long[] keys = new long[256];
+    private int size;
+    //Slot of each region id in the heap, -1 if it isnt in the heap
+    private int[] slots = new int[256];
+
+    public RegionEvictionQueue() {
+        Arrays.fill(this.slots, -1);
+    }
+
+    //Smaller is evicted first
+    public static long score(int lastSeenFrame, int distance, int quads) {
+        return (long) (lastSeenFrame >>> FRAME_BUCKET_SHIFT) << 32 |
+               (long) (0xFFFF - Math.min(distance, 0xFFFF)) << 16 |
+               (0xFFFF - Math.min(quads >>> 8, 0xFFFF));
+    }
+
+    //Inserts the region or moves it to its new place in the heap
+    public void update(int regionId, long key) {
+        if (regionId >= this.slots.length) {
+            int oldLength = this.slots.length;
+            this.slots = Arrays.copyOf(this.slots, Math.max(regionId + 1, oldLength * 2));
+            Arrays.fill(this.slots, oldLength, this.slots.length, -1);
+        }
+        int slot = this.slots[regionId];
+        if (slot == -1) {
+            if (this.size == this.heap.length) {
+                this.heap = Arrays.copyOf(this.heap, this.size * 2);
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            }
+            slot = this.size++;
+            this.heap[slot] = regionId;
+            this.keys[slot] = key;
+            this.slots[regionId] = slot;
+            this.siftUp(slot);
+            return;
+        }
+        long oldKey = this.keys[slot];
+        if (oldKey == key) {
+            return;
+        }
+        this.keys[slot] = key;
+        if (key < oldKey) {
+            this.siftUp(slot);
+        } else {
+            this.siftDown(slot);
+        }
+    }
+
+    public boolean contains(int regionId) {
+        return regionId < this.slots.length && this.slots[regionId] != -1;
+    }
+
+    public void remove(int regionId) {
+        if (!this.contains(regionId)) {
+            return;
+        }
+        int slot = this.slots[regionId];
+        this.slots[regionId] = -1;
+        int last = --this.size;
+        if (slot == last) {
+            return;
+        }
+        //Move the last entry into the hole, it can belong either above or below it
+        int moved = this.heap[last];
+        this.heap[slot] = moved;
+        this.keys[slot] = this.keys[last];
+        this.slots[moved] = slot;
+        this.siftUp(slot);
+        this.siftDown(this.slots[moved]);
+    }
+
+    //Key of a region in the heap
+    public long getKey(int regionId) {
+        return this.keys[this.slots[regionId]];
+    }
+
+    //The most evictable region without removing it, -1 if empty
+    public int peek() {
+        return this.size == 0 ? -1 : this.heap[0];
+    }
+
+    //Removes and returns the most evictable region, -1 if empty
+    public int poll() {
+        if (this.size == 0) {
+            return -1;
+        }
+        int regionId = this.heap[0];
+        this.remove(regionId);
+        return regionId;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.slots[this.heap[i]] = -1;
+        }
+        this.size = 0;
+    }
+
+    private void siftUp(int slot) {
+        int regionId = this.heap[slot];
+        long key = this.keys[slot];
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (this.keys[parent] <= key) {
+                break;
+            }
+            this.move(parent, slot);
+            slot = parent;
+        }
+        this.heap[slot] = regionId;
+        this.keys[slot] = key;
+        this.slots[regionId] = slot;
+    }
+
+    private void siftDown(int slot) {
+        int regionId = this.heap[slot];
+        long key = this.keys[slot];
+        int half = this.size >>> 1;
+        while (slot < half) {
+            int child = 2 * slot + 1;
+            if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) {
+                child++;
+            }
+            if (key <= this.keys[child]) {
+                break;
+            }
+            this.move(child, slot);
+            slot = child;
+        }
+        this.heap[slot] = regionId;
+        this.keys[slot] = key;
+        this.slots[regionId] = slot;
+    }
+
+    private void move(int from, int to) {
+        this.heap[to] = this.heap[from];
+        this.keys[to] = this.keys[from];
+        this.slots[this.heap[to]] = to;
+    }
+}
@@ -4,15 +4,19 @@ package me.cortex.nvidium.managers;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import me.cortex.nvidium.Nvidium;
 import me.cortex.nvidium.gl.RenderDevice;
-import me.cortex.nvidium.gl.buffers.IDeviceMappedBuffer;
+import me.cortex.nvidium.util.GrowableDeviceBuffer;
 import me.cortex.nvidium.util.IdProvider;
+import me.cortex.nvidium.util.SlabPool;
+import me.cortex.nvidium.util.ToroidalLongIntMap;
 import me.cortex.nvidium.util.UploadingBufferStream;
 import net.caffeinemc.mods.sodium.client.render.viewport.Viewport;
 import net.minecraft.util.math.ChunkSectionPos;
 import org.lwjgl.system.MemoryUtil;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.function.Consumer;
 
 //8x4x8
@@ -25,28 +29,50 @@ public class RegionManager {
 
     private static final int TOTAL_SECTION_META_SIZE = SectionManager.SECTION_SIZE * 256;
 
-    private final IDeviceMappedBuffer regionBuffer;
-    private final IDeviceMappedBuffer sectionBuffer;
+    //Region ids are uploaded to the gpu as 16 bit values
+    public static final int MAX_REGIONS = 1<<16;
+
+    //Both grow along with the region array when a region id past the current capacity is handed out
+    private final GrowableDeviceBuffer regionBuffer;
+    private final GrowableDeviceBuffer sectionBuffer;
     private final RenderDevice device;
     private final UploadingBufferStream uploadStream;
 
     private final Long2IntOpenHashMap regionTransformationIdMapping = new Long2IntOpenHashMap();
-    private final Long2IntOpenHashMap regionMap = new Long2IntOpenHashMap();
+    //64x8x64 regions covers 512 sections in every horizontal direction, more than any keep distance
+    private final ToroidalLongIntMap regionMap = new ToroidalLongIntMap(64, 8, 64);
     private final IdProvider idProvider = new IdProvider();
-    private final Region[] regions;
+    private final RegionCullingGrid cullingGrid = new RegionCullingGrid();
+    private Region[] regions;
+    //Cpu mirrors of the section metadata, sized to the section count of each region from 16 up to all 256 sections
+    private static final int MIN_MIRROR_SECTIONS = 16;
+    private final SlabPool mirrorPool = new SlabPool(MIN_MIRROR_SECTIONS * SectionManager.SECTION_SIZE, TOTAL_SECTION_META_SIZE, 16 * TOTAL_SECTION_META_SIZE);
 
     private final ArrayDeque<Region> dirtyRegions = new ArrayDeque<>();
+    private final ArrayList<Region> committing = new ArrayList<>();
+    private static final Comparator<Region> REGION_ID_ORDER = Comparator.comparingInt(region -> region.id);
 
     private final Consumer<Integer> regionUploadCallback;
+    private final Consumer<Integer> regionCreatedCallback;
+
+    //Runs of dirty section slots separated by at most this many clean slots are uploaded as one, re-uploading a clean
+    // slot is harmless as the cpu copy is authoritative
+    private static final int MAX_RUN_GAP = 2;
 
-    public RegionManager(RenderDevice device, int maxRegions, int maxSections, UploadingBufferStream uploadStream, Consumer<Integer> regionUploaded) {
+    //Bytes of region and section metadata uploaded by the last commit, and what uploading whole regions would have cost
+    private long lastCommitBytes;
+    private long lastCommitFullBytes;
+
+    public RegionManager(RenderDevice device, int initialRegions, UploadingBufferStream uploadStream, Consumer<Integer> regionUploaded, Consumer<Integer> regionCreated) {
         this.regionMap.defaultReturnValue(-1);
         this.device = device;
-        this.regionBuffer = device.createDeviceOnlyMappedBuffer((long) maxRegions * META_SIZE);
-        this.sectionBuffer = device.createDeviceOnlyMappedBuffer((long) maxSections * SectionManager.SECTION_SIZE);
+        initialRegions = Math.max(1, Math.min(MAX_REGIONS, initialRegions));
+        this.regionBuffer = new GrowableDeviceBuffer(device, uploadStream, (long) initialRegions * META_SIZE, (long) MAX_REGIONS * META_SIZE);
+        this.sectionBuffer = new GrowableDeviceBuffer(device, uploadStream, (long) initialRegions * TOTAL_SECTION_META_SIZE, (long) MAX_REGIONS * TOTAL_SECTION_META_SIZE);
         this.uploadStream = uploadStream;
-        this.regions = new Region[maxRegions];
+        this.regions = new Region[initialRegions];
         this.regionUploadCallback = regionUploaded;
+        this.regionCreatedCallback = regionCreated;
     }
 
     public void delete() {
@@ -56,6 +82,8 @@ public class RegionManager {
 
     //Commits all the pending region changes to the gpu
     public void commitChanges() {
+        this.lastCommitBytes = 0;
+        this.lastCommitFullBytes = 0;
         if (this.dirtyRegions.isEmpty())
             return;
 
@@ -65,55 +93,104 @@ public class RegionManager {
 
             //If the region was removed, check if a new region took its place, if it has, no furthure action is needed
             // as the new region will override the old regions data
+            if (region.isRemoved && this.regions[region.id] != null) {
+                continue;
+            }
+            this.committing.add(region);
+        }
+
+        //Upload in id order with all the region metadata first and the section data after, this keeps the uploads of
+        // neighbouring regions contiguous in both the upload and the target buffer so the stream can merge the copies
+        this.committing.sort(REGION_ID_ORDER);
+        for (var region : this.committing) {
+            this.lastCommitFullBytes += META_SIZE + TOTAL_SECTION_META_SIZE;
+            if (!region.headerDirty) {
+                continue;
+            }
+            region.headerDirty = false;
+            this.lastCommitBytes += META_SIZE;
+            long regionUpload = this.uploadStream.upload(this.regionBuffer.get(), (long) region.id * META_SIZE, META_SIZE);
             if (region.isRemoved) {
-                if (this.regions[region.id] == null) {
-                    //There is no region that has replaced the old one at the id so we need to clear the region metadata
-                    // to prevent the gpu from rendering arbitary data
-                    long regionUpload = this.uploadStream.upload(this.regionBuffer, (long) region.id * META_SIZE, META_SIZE);
-                    MemoryUtil.memSet(regionUpload, -1, META_SIZE);
-
-                    long sectionUpload = this.uploadStream.upload(this.sectionBuffer,
-                            (long) region.id * TOTAL_SECTION_META_SIZE,
-                            TOTAL_SECTION_META_SIZE);
-                    MemoryUtil.memSet(sectionUpload, 0, TOTAL_SECTION_META_SIZE);
-                }
+                //There is no region that has replaced the old one at the id so we need to clear the region metadata
+                // to prevent the gpu from rendering arbitary data
+                MemoryUtil.memSet(regionUpload, -1, META_SIZE);
             } else {
-                //It is just a normal region update
-                long regionUpload = this.uploadStream.upload(this.regionBuffer, (long) region.id * META_SIZE, META_SIZE);
                 this.setRegionMetadata(regionUpload, region);
-
-                long sectionUpload = this.uploadStream.upload(this.sectionBuffer,
+            }
+        }
+        for (var region : this.committing) {
+            if (region.isRemoved) {
+                long sectionUpload = this.uploadStream.upload(this.sectionBuffer.get(),
                         (long) region.id * TOTAL_SECTION_META_SIZE,
                         TOTAL_SECTION_META_SIZE);
-                MemoryUtil.memCopy(region.sectionData, sectionUpload, TOTAL_SECTION_META_SIZE);
-
-                this.regionUploadCallback.accept(region.id);
+                MemoryUtil.memSet(sectionUpload, 0, TOTAL_SECTION_META_SIZE);
+                this.lastCommitBytes += TOTAL_SECTION_META_SIZE;
+                continue;
+            }
+            //Upload only the runs of changed section slots
+            long[] mask = region.dirtySlots;
+            int start = nextSet(mask, 0);
+            while (start != 256) {
+                int end = nextClear(mask, start);
+                int next = nextSet(mask, end);
+                while (next != 256 && next - end <= MAX_RUN_GAP) {
+                    end = nextClear(mask, next);
+                    next = nextSet(mask, end);
+                }
+                long offset = (long) start * SectionManager.SECTION_SIZE;
+                long size = (long) (end - start) * SectionManager.SECTION_SIZE;
+                long sectionUpload = this.uploadStream.upload(this.sectionBuffer.get(), (long) region.id * TOTAL_SECTION_META_SIZE + offset, size);
+                //Slots past the capacity of the mirror are empty
+                long mirrored = Math.max(0, Math.min(end, region.capacity) - start) * (long) SectionManager.SECTION_SIZE;
+                MemoryUtil.memCopy(region.sectionData + offset, sectionUpload, mirrored);
+                MemoryUtil.memSet(sectionUpload + mirrored, 0, size - mirrored);
+                this.lastCommitBytes += size;
+                start = next;
             }
+            Arrays.fill(mask, 0);
+            this.regionUploadCallback.accept(region.id);
         }
+        this.committing.clear();
     }
 
-    private void setRegionMetadata(long upload, Region region) {
-        int minX = Integer.MAX_VALUE;
-        int maxX = Integer.MIN_VALUE;
-        int minY = Integer.MAX_VALUE;
-        int maxY = Integer.MIN_VALUE;
-        int minZ = Integer.MAX_VALUE;
-        int maxZ = Integer.MIN_VALUE;
-        int lastIdx = 0;
-        for (int i = 0; i < 256; i++) {
-            if (region.pos2id[i] == -1) continue;//Skip over empty sections
-            int x = i&7;
-            int y = i>>>6;
-            int z = (i>>>3)&7;
-            minX = Math.min(minX, x);
-            minY = Math.min(minY, y);
-            minZ = Math.min(minZ, z);
-            maxX = Math.max(maxX, x);
-            maxY = Math.max(maxY, y);
-            maxZ = Math.max(maxZ, z);
-            lastIdx = i;
+    //Index of the first set bit at or after from in the 256 bit mask, 256 if there is none
+    private static int nextSet(long[] mask, int from) {
+        for (int w = from >>> 6; w < 4; w++) {
+            long bits = mask[w];
+            if (w == from >>> 6) bits &= -1L << (from & 63);
+            if (bits != 0) return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        return 256;
+    }
+
+    //Index of the first clear bit at or after from in the 256 bit mask, 256 if there is none
+    private static int nextClear(long[] mask, int from) {
+        for (int w = from >>> 6; w < 4; w++) {
+            long bits = ~mask[w];
+            if (w == from >>> 6) bits &= -1L << (from & 63);
+            if (bits != 0) return (w << 6) + Long.numberOfTrailingZeros(bits);
         }
+        return 256;
+    }
+
+    public long getLastCommitBytes() {
+        return this.lastCommitBytes;
+    }
 
+    public long getLastCommitFullBytes() {
+        return this.lastCommitFullBytes;
+    }
+
+    private void setRegionMetadata(long upload, Region region) {
+        //Bounds come from the occupancy mask maintained by allocateSection and removeSection
+        var occupancy = region.occupancy;
+        int minX = occupancy.minX();
+        int maxX = occupancy.maxX();
+        int minY = occupancy.minY();
+        int maxY = occupancy.maxY();
+        int minZ = occupancy.minZ();
+        int maxZ = occupancy.maxZ();
+        int lastIdx = occupancy.lastIndex();
 
         long size = (long)(maxY-minY)<<62 | (long)(maxX-minX)<<59 | (long)(maxZ-minZ)<<56;
         long count = (long)(lastIdx)<<48;
@@ -144,10 +221,21 @@ public class RegionManager {
         if (sectionId<0 || sectionId>=256) {
             throw new IllegalStateException();
         }
+        region.markSlot(sectionId);
         this.markDirty(region);
         return region.sectionData + (sectionId * SectionManager.SECTION_SIZE);
     }
 
+    //Same as setSectionData without marking anything dirty, for reading the section data only
+    public long getSectionData(int sectionId) {
+        var region = this.regions[sectionId >>> 8];
+        sectionId = region.pos2id[sectionId & 0xFF];
+        if (sectionId<0 || sectionId>=256) {
+            throw new IllegalStateException();
+        }
+        return region.sectionData + (sectionId * SectionManager.SECTION_SIZE);
+    }
+
     public void removeSection(int sectionId) {
         var region = this.regions[sectionId >>> 8];
         sectionId &= 0xFF;
@@ -159,6 +247,9 @@ public class RegionManager {
 
         //Set the metadata of the section to empty
         MemoryUtil.memSet(region.sectionData + (long) sectionId * SectionManager.SECTION_SIZE, 0, SectionManager.SECTION_SIZE);
+        region.markSlot(sectionId);
+        region.headerDirty = true;
+        region.occupancy.clear(sectionPos);
         region.pos2id[sectionPos] = -1;
         region.id2pos[sectionId] = -1;
         region.verifyIntegrity();
@@ -173,6 +264,7 @@ public class RegionManager {
             //Copy the data from the last element to the now vacant slot
             MemoryUtil.memCopy(region.sectionData + (long) endId * SectionManager.SECTION_SIZE, region.sectionData + (long) sectionId * SectionManager.SECTION_SIZE, SectionManager.SECTION_SIZE);
             MemoryUtil.memSet(region.sectionData + (long) endId * SectionManager.SECTION_SIZE, 0, SectionManager.SECTION_SIZE);
+            region.markSlot(endId);
 
             if (region.id2pos[endId] == -1 || region.pos2id[oldPos] == -1) {
                 throw new IllegalStateException();
@@ -180,8 +272,8 @@ public class RegionManager {
 
             region.id2pos[endId] = -1;
             region.pos2id[oldPos] = -1;
-            region.id2pos[sectionId] = oldPos;
-            region.pos2id[oldPos] = sectionId;
+            region.id2pos[sectionId] = (short) oldPos;
+            region.pos2id[oldPos] = (short) sectionId;
 
 
             //TODO:FIXME! the issue is that the internal tracking id needs to be updated, that is the id to the section
@@ -202,10 +294,14 @@ public class RegionManager {
         if (region.count == 0) {
             //Remove the region and mark it as removed
             region.isRemoved = true;
-            region.delete();
+            region.delete(this.mirrorPool);
             this.regions[region.id] = null;
+            this.cullingGrid.remove(region.id);
             this.idProvider.release(region.id);
             this.regionMap.remove(region.key);
+        } else if (region.count <= region.capacity / 4) {
+            //Shrink the mirror with some hysteresis so a region hovering around a size class doesnt keep moving
+            region.resize(this.mirrorPool, region.capacity / 2);
         }
 
 
@@ -215,12 +311,21 @@ public class RegionManager {
 
     public int allocateSection(int sectionX, int sectionY, int sectionZ) {
         long regionKey = ChunkSectionPos.asLong(sectionX>>3, sectionY>>2, sectionZ>>3);
-        int regionId = this.regionMap.computeIfAbsent(regionKey, k -> this.idProvider.provide());
+        int regionId = this.regionMap.get(regionKey);
+        if (regionId == -1) {
+            regionId = this.idProvider.provide();
+            if (regionId >= this.regions.length) {
+                this.grow(regionId + 1);
+            }
+            this.regionMap.put(regionKey, regionId);
+        }
 
         //The region doesnt exist so we must create a new one
         if (this.regions[regionId] == null) {
-            this.regions[regionId] = new Region(regionId, sectionX>>3, sectionY>>2, sectionZ>>3);
+            this.regions[regionId] = new Region(this.mirrorPool, regionId, sectionX>>3, sectionY>>2, sectionZ>>3);
             this.regions[regionId].transformationId = this.regionTransformationIdMapping.get(regionKey);
+            this.cullingGrid.add(regionId, sectionX>>3, sectionY>>2, sectionZ>>3);
+            this.regionCreatedCallback.accept(regionId);
         }
         var region = this.regions[regionId];
 
@@ -229,9 +334,14 @@ public class RegionManager {
         if (region.pos2id[sectionKey] != -1 || region.id2pos[sectionId] != -1) {
             throw new IllegalStateException("Section id not free!");
         }
+        if (region.count > region.capacity) {
+            region.resize(this.mirrorPool, region.capacity * 2);
+        }
 
-        region.pos2id[sectionKey] = sectionId;
-        region.id2pos[sectionId] = sectionKey;
+        region.pos2id[sectionKey] = (short) sectionId;
+        region.id2pos[sectionId] = (short) sectionKey;
+        region.occupancy.set(sectionKey);
+        region.headerDirty = true;
 
 
         this.markDirty(region);
@@ -240,6 +350,17 @@ public class RegionManager {
         return sectionKey | (regionId << 8);
     }
 
+    //Doubles the region capacity until it fits the count, the gpu buffers are copied over so nothing is reuploaded
+    private void grow(int count) {
+        if (count > MAX_REGIONS) {
+            throw new IllegalStateException("Out of region ids, " + count + " regions requested");
+        }
+        int capacity = Math.min(MAX_REGIONS, Math.max(count, this.regions.length * 2));
+        this.regions = Arrays.copyOf(this.regions, capacity);
+        this.regionBuffer.ensureCapacity((long) capacity * META_SIZE);
+        this.sectionBuffer.ensureCapacity((long) capacity * TOTAL_SECTION_META_SIZE);
+    }
+
     //Adds the region to the dirty list if it wasnt already in it
     private void markDirty(Region region) {
         if (region.isDirty)
@@ -248,18 +369,36 @@ public class RegionManager {
         this.dirtyRegions.add(region);
     }
 
+    //Returns the id of the region containing the section, or -1 if the region doesnt exist
+    public int getRegionId(int sectionX, int sectionY, int sectionZ) {
+        return this.regionMap.get(ChunkSectionPos.asLong(sectionX>>3, sectionY>>2, sectionZ>>3));
+    }
+
+    public void setCenter(int sectionX, int sectionY, int sectionZ) {
+        this.regionMap.setCenter(sectionX>>3, sectionY>>2, sectionZ>>3);
+    }
+
     public int regionCount() {
         return this.regionMap.size();
     }
 
-    public int maxRegions() {
+    //Number of region ids the gpu buffers currently have room for, grows as regions are allocated
+    public int regionCapacity() {
         return this.regions.length;
     }
 
+    public long getMetadataBufferBytes() {
+        return this.regionBuffer.getSize() + this.sectionBuffer.getSize();
+    }
+
     public int maxRegionIndex() {
         return this.idProvider.maxIndex();
     }
 
+    public RegionCullingGrid getCullingGrid() {
+        return this.cullingGrid;
+    }
+
     public boolean regionExists(int regionId) {
         return this.regions[regionId] != null;
     }
@@ -329,6 +468,7 @@ public class RegionManager {
             }
             var region = this.regions[regionId];
             region.transformationId = id;
+            region.headerDirty = true;
             this.markDirty(region);
         }
     }
@@ -343,21 +483,29 @@ public class RegionManager {
         public int transformationId = 0;
 
         private int count;
-        private final int[] pos2id = new int[256];//Can be a short in all honesty
-        private final int[] id2pos = new int[256];//Can be a short in all honesty
+        private final short[] pos2id = new short[256];
+        private final short[] id2pos = new short[256];
+        private final RegionOccupancy occupancy = new RegionOccupancy();
 
         private boolean isDirty;
         private boolean isRemoved;
+        //Whether the region header needs uploading, and which of the 256 section slots changed since the last commit
+        private boolean headerDirty = true;
+        private final long[] dirtySlots = {-1, -1, -1, -1};
 
         //Contains also all the metadata about the sections within, then on commit, upload the entire regions metadata
         // this should :tm: _drastically_ improve performance when mass edits are done to the world and the section metadata
-        private final long sectionData = MemoryUtil.nmemAlloc(8*4*8*SectionManager.SECTION_SIZE);
+        // Section ids are dense so only the first capacity slots are backed, the rest are implicitly empty
+        private long sectionData;
+        private int capacity;
 
-        private Region(int id, int rx, int ry, int rz) {
-            Arrays.fill(this.pos2id, -1);
-            Arrays.fill(this.id2pos, -1);
+        private Region(SlabPool pool, int id, int rx, int ry, int rz) {
+            Arrays.fill(this.pos2id, (short) -1);
+            Arrays.fill(this.id2pos, (short) -1);
 
-            MemoryUtil.memSet(sectionData, 0, 256 * SectionManager.SECTION_SIZE);
+            this.capacity = MIN_MIRROR_SECTIONS;
+            this.sectionData = pool.alloc(this.capacity * SectionManager.SECTION_SIZE);
+            MemoryUtil.memSet(this.sectionData, 0, (long) this.capacity * SectionManager.SECTION_SIZE);
             this.key = ChunkSectionPos.asLong(rx, ry, rz);
             this.id = id;
 
@@ -366,8 +514,28 @@ public class RegionManager {
             this.rz = rz;
         }
 
-        public void delete() {
-            MemoryUtil.nmemFree(this.sectionData);
+        //Moves the mirror into a block of a different size class, slots past count are empty
+        private void resize(SlabPool pool, int capacity) {
+            capacity = Math.max(MIN_MIRROR_SECTIONS, Math.min(256, capacity));
+            if (capacity == this.capacity) {
+                return;
+            }
+            long data = pool.alloc(capacity * SectionManager.SECTION_SIZE);
+            long kept = (long) Math.min(capacity, this.capacity) * SectionManager.SECTION_SIZE;
+            MemoryUtil.memCopy(this.sectionData, data, kept);
+            MemoryUtil.memSet(data + kept, 0, (long) capacity * SectionManager.SECTION_SIZE - kept);
+            pool.free(this.sectionData, this.capacity * SectionManager.SECTION_SIZE);
+            this.sectionData = data;
+            this.capacity = capacity;
+        }
+
+        public void delete(SlabPool pool) {
+            pool.free(this.sectionData, this.capacity * SectionManager.SECTION_SIZE);
+            this.sectionData = 0;
+        }
+
+        private void markSlot(int slot) {
+            this.dirtySlots[slot >>> 6] |= 1L << (slot & 63);
         }
 
         public void verifyIntegrity() {
@@ -379,12 +547,25 @@ public class RegionManager {
                 if (this.pos2id[i] != -1 && this.id2pos[this.pos2id[i]] != i) {
                     throw new IllegalStateException();
                 }
+                if ((this.pos2id[i] != -1) != this.occupancy.contains(i)) {
+                    throw new IllegalStateException();
+                }
             }
         }
     }
 
+    //Native memory of the cpu section mirrors, in use and reserved by the pool
+    public long getMirrorBytes() {
+        return this.mirrorPool.getUsedBytes();
+    }
+
+    public long getMirrorReservedBytes() {
+        return this.mirrorPool.getReservedBytes();
+    }
+
     public void destroy() {
         this.sectionBuffer.delete();
         this.regionBuffer.delete();
+        this.mirrorPool.delete();
     }
 }
@@ -0,0 +1,83 @@
+package me.cortex.nvidium.managers;
+
+//Occupancy mask of the 256 section positions of a region, indexed the same as the region positions (y<<6|z<<3|x)
+// so every y layer is one word. The region bounds fall out of the mask in constant time instead of scanning every slot
+public final class RegionOccupancy {
+    //Lowest bit of every byte, byte z of a layer word holds the row of sections with that z
+    private static final long BYTE_LOW_BITS = 0x0101010101010101L;
+
+    private final long[] layers = new long[4];
+
+    public void set(int pos) {
+        this.layers[pos >>> 6] |= 1L << (pos & 63);
+    }
+
+    public void clear(int pos) {
+        this.layers[pos >>> 6] &= ~(1L << (pos & 63));
+    }
+
+    public boolean contains(int pos) {
+        return (this.layers[pos >>> 6] & (1L << (pos & 63))) != 0;
+    }
+
+    public boolean isEmpty() {
+        return (this.layers[0] | this.layers[1] | this.layers[2] | this.layers[3]) == 0;
+    }
+
+    //Bit y set if any section in layer y is occupied
+    private int yBits() {
+        return (this.layers[0] != 0 ? 1 : 0) | (this.layers[1] != 0 ? 2 : 0) | (this.layers[2] != 0 ? 4 : 0) | (this.layers[3] != 0 ? 8 : 0);
+    }
+
+    //Bit x set if any section with that x is occupied, folds the 8 z rows of all layers onto each other
+    private int xBits() {
+        long all = this.layers[0] | this.layers[1] | this.layers[2] | this.layers[3];
+        all |= all >>> 32;
+        all |= all >>> 16;
+        all |= all >>> 8;
+        return (int) (all & 0xFF);
+    }
+
+    //Bit 8*z set if any section with that z is occupied, folds the bits of each row into its lowest bit
+    private long zBits() {
+        long all = this.layers[0] | this.layers[1] | this.layers[2] | this.layers[3];
+        all |= all >>> 4;
+        all |= all >>> 2;
+        all |= all >>> 1;
+        return all & BYTE_LOW_BITS;
+    }
+
+    public int minX() {
+        return Integer.numberOfTrailingZeros(this.xBits());
+    }
+
+    public int maxX() {
+        return 31 - Integer.numberOfLeadingZeros(this.xBits());
+    }
+
+    public int minY() {
+        return Integer.numberOfTrailingZeros(this.yBits());
+    }
+
+    public int maxY() {
+        return 31 - Integer.numberOfLeadingZeros(this.yBits());
+    }
+
+    public int minZ() {
+        return Long.numberOfTrailingZeros(this.zBits()) >>> 3;
+    }
+
+    public int maxZ() {
+        return (63 - Long.numberOfLeadingZeros(this.zBits())) >>> 3;
+    }
+
+    //Highest occupied position, 0 if empty
+    public int lastIndex() {
+        for (int y = 3; y >= 0; y--) {
+            if (this.layers[y] != 0) {
+                return (y << 6) + 63 - Long.numberOfLeadingZeros(this.layers[y]);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,352 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import me.cortex.nvidium.gl.buffers.Buffer;
+import me.cortex.nvidium.util.DownloadTaskStream;
+import net.minecraft.util.math.ChunkSectionPos;
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Host memory tier under the terrain arena, regions evicted for memory pressure have their geometry and section
+// metadata read back into off heap memory so they can be uploaded again without a rebuild when they come back into
+// view. Bounded by size, the least recently spilled regions are dropped first
+// The geometry arrives on the readback executor, an entry can only be restored once all of it has landed
+public class RegionSpillCache {
+    public static final class Entry {
+        private final long regionKey;
+        private int count;
+        private long[] sectionKeys = new long[16];
+        //size<<4|min of the section bounds on each axis, a byte per axis
+        private int[] bounds = new int[16];
+        //The 4 packed geometry offset ints of the section metadata
+        private int[] offsets = new int[64];
+        private int[] dataOffsets = new int[16];
+        private int[] quads = new int[16];
+        private long[] sourceOffsets = new long[16];
+        private int rawSize;
+
+        //Guarded by the entry, the readback executor finishes the entry while the render thread may drop it
+        private long data;
+        private int storedSize;
+        private boolean compressed;
+        private int pending;
+        //Set while the readback executor compresses the data, the entry belongs to it until then
+        private boolean compressing;
+        private boolean ready;
+        private boolean discarded;
+
+        private Entry(long regionKey) {
+            this.regionKey = regionKey;
+        }
+
+        public int sectionCount() {
+            return this.count;
+        }
+
+        public long sectionKey(int i) {
+            return this.sectionKeys[i];
+        }
+
+        public int bounds(int i) {
+            return this.bounds[i];
+        }
+
+        public int offset(int i, int j) {
+            return this.offsets[i * 4 + j];
+        }
+
+        public int quads(int i) {
+            return this.quads[i];
+        }
+
+        //Address of the geometry of the section i within data
+        public long geometry(long data, int i) {
+            return data + this.dataOffsets[i];
+        }
+    }
+
+    private final DownloadTaskStream downStream;
+    private final long maxBytes;
+    private final boolean compress;
+    private final int quadSize;
+    //Insertion ordered, the first entry is the least recently spilled
+    private final Long2ObjectLinkedOpenHashMap<Entry> entries = new Long2ObjectLinkedOpenHashMap<>();
+    //Memory allocated for spilled geometry, and the part of it belonging to regions still in the cache, entries that
+    // were dropped while their geometry is in flight are freed once it lands
+    private final AtomicLong bytesHeld = new AtomicLong();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    //Dropped entries still waiting on their geometry, if the download stream goes away first it never lands
+    private final Set<Entry> inFlight = ConcurrentHashMap.newKeySet();
+    private long rawBytesSpilled;
+    private long restored;
+    private long dropped;
+
+    public RegionSpillCache(DownloadTaskStream downStream, long maxBytes, boolean compress, int quadSize) {
+        this.downStream = downStream;
+        this.maxBytes = maxBytes;
+        this.compress = compress;
+        this.quadSize = quadSize;
+    }
+
+    public Entry begin(long regionKey) {
+        var old = this.entries.remove(regionKey);
+        if (old != null) {
+            this.discard(old);
+        }
+        return new Entry(regionKey);
+    }
+
+    //Offsets is the address of the 4 packed geometry offset ints of the section metadata
+    public void addSection(Entry entry, long sectionKey, int bounds, long offsets, long sourceOffset, int quads) {
+        int i = entry.count++;
+        if (i == entry.sectionKeys.length) {
+            entry.sectionKeys = Arrays.copyOf(entry.sectionKeys, i * 2);
+            entry.bounds = Arrays.copyOf(entry.bounds, i * 2);
+            entry.offsets = Arrays.copyOf(entry.offsets, i * 8);
+            entry.dataOffsets = Arrays.copyOf(entry.dataOffsets, i * 2);
+            entry.quads = Arrays.copyOf(entry.quads, i * 2);
+            entry.sourceOffsets = Arrays.copyOf(entry.sourceOffsets, i * 2);
+        }
+        entry.sectionKeys[i] = sectionKey;
+        entry.bounds[i] = bounds;
+        for (int j = 0; j < 4; j++) {
+            entry.offsets[i * 4 + j] = MemoryUtil.memGetInt(offsets + j * 4L);
+        }
+        entry.dataOffsets[i] = entry.rawSize;
+        entry.quads[i] = quads;
+        entry.sourceOffsets[i] = sourceOffset;
+        entry.rawSize += quads * this.quadSize;
+    }
+
+    //Queues the readback of the geometry, must be called before the geometry is freed in the arena. Returns false if
+    // the region could not be spilled, e.g. the download stream is full
+    public boolean finish(Entry entry, Buffer source) {
+        if (entry.count == 0 || entry.rawSize > this.maxBytes) {
+            return false;
+        }
+        entry.data = MemoryUtil.nmemAlloc(entry.rawSize);
+        entry.storedSize = entry.rawSize;
+        this.bytesHeld.addAndGet(entry.rawSize);
+        //Held back by one until every download is queued so a failed download cant finish the entry early
+        entry.pending = entry.count + 1;
+        boolean queued = true;
+        for (int i = 0; i < entry.count && queued; i++) {
+            int dataOffset = entry.dataOffsets[i];
+            int size = entry.quads[i] * this.quadSize;
+            queued = this.downStream.tryDownload(source, entry.sourceOffsets[i], size, addr -> {
+                MemoryUtil.memCopy(addr, entry.data + dataOffset, size);
+                this.downloaded(entry, 1);
+            });
+            if (!queued) {
+                //This and the rest of the sections will never arrive
+                synchronized (entry) {
+                    entry.discarded = true;
+                    entry.pending -= entry.count - i;
+                    this.inFlight.add(entry);
+                }
+            }
+        }
+        entry.sourceOffsets = null;
+        this.downloaded(entry, 1);
+        if (!queued) {
+            return false;
+        }
+        this.entries.putAndMoveToLast(entry.regionKey, entry);
+        this.cachedBytes.addAndGet(entry.rawSize);
+        this.rawBytesSpilled += entry.rawSize;
+        this.trim();
+        return true;
+    }
+
+    private void downloaded(Entry entry, int count) {
+        synchronized (entry) {
+            entry.pending -= count;
+            if (entry.pending != 0) {
+                return;
+            }
+            if (entry.discarded) {
+                this.free(entry);
+                return;
+            }
+            if (!this.compress) {
+                entry.ready = true;
+                return;
+            }
+            //Discarding the entry from now on only marks it, the block below frees it
+            entry.compressing = true;
+        }
+        this.compress(entry);
+        synchronized (entry) {
+            entry.compressing = false;
+            if (entry.discarded) {
+                this.free(entry);
+            } else {
+                this.cachedBytes.addAndGet(entry.storedSize - entry.rawSize);
+                entry.ready = true;
+            }
+        }
+    }
+
+    private void compress(Entry entry) {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        long out = MemoryUtil.nmemAlloc(entry.rawSize);
+        try {
+            deflater.setInput(MemoryUtil.memByteBuffer(entry.data, entry.rawSize));
+            deflater.finish();
+            int size = deflater.deflate(MemoryUtil.memByteBuffer(out, entry.rawSize));
+            if (!deflater.finished()) {
+                //Didnt compress, keep it raw
+                MemoryUtil.nmemFree(out);
+                return;
+            }
+            MemoryUtil.nmemFree(entry.data);
+            entry.data = MemoryUtil.nmemRealloc(out, size);
+            entry.compressed = true;
+            this.bytesHeld.addAndGet(size - entry.storedSize);
+            entry.storedSize = size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void free(Entry entry) {
+        this.inFlight.remove(entry);
+        if (entry.data != 0) {
+            MemoryUtil.nmemFree(entry.data);
+            this.bytesHeld.addAndGet(-entry.storedSize);
+            entry.data = 0;
+        }
+    }
+
+    //For entries taken out of the cache, an entry whose data is still being downloaded or compressed is freed by the
+    // readback executor once it is done with it
+    private void discard(Entry entry) {
+        synchronized (entry) {
+            this.cachedBytes.addAndGet(-(entry.ready ? entry.storedSize : entry.rawSize));
+            entry.discarded = true;
+            if (entry.pending == 0 && !entry.compressing) {
+                this.free(entry);
+            } else {
+                this.inFlight.add(entry);
+            }
+        }
+    }
+
+    //Drops the least recently spilled regions until the cache is within its size
+    private void trim() {
+        while (this.cachedBytes.get() > this.maxBytes && !this.entries.isEmpty()) {
+            this.discard(this.entries.removeFirst());
+            this.dropped++;
+        }
+    }
+
+    //The section was rebuilt or unloaded, its spilled copy is stale
+    public void invalidate(long sectionKey) {
+        if (this.entries.isEmpty()) {
+            return;
+        }
+        long regionKey = ChunkSectionPos.asLong(ChunkSectionPos.unpackX(sectionKey) >> 3, ChunkSectionPos.unpackY(sectionKey) >> 2, ChunkSectionPos.unpackZ(sectionKey) >> 3);
+        var entry = this.entries.get(regionKey);
+        if (entry == null) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0; i < entry.count; i++) {
+            if (entry.quads[i] != 0 && entry.sectionKeys[i] == sectionKey) {
+                entry.quads[i] = 0;
+            }
+            if (entry.quads[i] != 0) {
+                live++;
+            }
+        }
+        if (live == 0) {
+            this.entries.remove(regionKey);
+            this.discard(entry);
+        }
+    }
+
+    //Hands every finished region whose box passes the visibility test to the consumer, along with the address of its
+    // uncompressed geometry, and removes it from the cache. Stops once budget bytes of geometry have been handed out
+    public void restoreVisible(RegionCullingGrid.IBoxVisibility visibility, long budget, IRestorer restorer) {
+        var iterator = this.entries.values().iterator();
+        while (iterator.hasNext() && budget > 0) {
+            var entry = iterator.next();
+            if (entry.rawSize > budget) {
+                continue;
+            }
+            synchronized (entry) {
+                if (!entry.ready) {
+                    continue;
+                }
+            }
+            int rx = ChunkSectionPos.unpackX(entry.regionKey);
+            int ry = ChunkSectionPos.unpackY(entry.regionKey);
+            int rz = ChunkSectionPos.unpackZ(entry.regionKey);
+            if (!visibility.isBoxVisible((rx << 7) + 64, (ry << 6) + 32, (rz << 7) + 64, 64, 32, 64)) {
+                continue;
+            }
+            iterator.remove();
+            this.cachedBytes.addAndGet(-entry.storedSize);
+            budget -= entry.rawSize;
+            this.restored++;
+            long data = entry.data;
+            if (entry.compressed) {
+                data = MemoryUtil.nmemAlloc(entry.rawSize);
+                var inflater = new Inflater();
+                try {
+                    inflater.setInput(MemoryUtil.memByteBuffer(entry.data, entry.storedSize));
+                    if (inflater.inflate(MemoryUtil.memByteBuffer(data, entry.rawSize)) != entry.rawSize || !inflater.finished()) {
+                        throw new DataFormatException("Inflated size mismatch");
+                    }
+                    restorer.restore(entry, data);
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException("Corrupt spilled region", e);
+                } finally {
+                    inflater.end();
+                    MemoryUtil.nmemFree(data);
+                }
+            } else {
+                restorer.restore(entry, data);
+            }
+            this.free(entry);
+        }
+    }
+
+    public interface IRestorer {
+        void restore(Entry entry, long data);
+    }
+
+    public long getBytesHeld() {
+        return this.bytesHeld.get();
+    }
+
+    public long getRawBytesSpilled() {
+        return this.rawBytesSpilled;
+    }
+
+    public int getRegionCount() {
+        return this.entries.size();
+    }
+
+    //Of the regions that left the cache, the fraction that were uploaded again instead of dropped
+    public float getHitRate() {
+        long total = this.restored + this.dropped;
+        return total == 0 ? 0 : (float) ((double) this.restored / total);
+    }
+
+    //Only once the download stream is deleted, no callback can run anymore and whatever is still pending never lands
+    public void delete() {
+        this.entries.values().forEach(this::free);
+        this.entries.clear();
+        for (var entry : this.inFlight.toArray(new Entry[0])) {
+            this.free(entry);
+        }
+    }
+}
@@ -8,6 +8,8 @@ import me.cortex.nvidium.util.DownloadTaskStream;
 import net.minecraft.util.Identifier;
 import org.lwjgl.system.MemoryUtil;
 
+import java.util.Arrays;
+
 import static me.cortex.nvidium.gl.shader.ShaderType.FRAGMENT;
 import static me.cortex.nvidium.gl.shader.ShaderType.MESH;
 import static org.lwjgl.opengl.GL42.GL_COMMAND_BARRIER_BIT;
@@ -22,8 +24,10 @@ public class RegionVisibilityTracker {
             .compile();
 
     private final DownloadTaskStream downStream;
-    private final int[] frustum;
-    private final int[] visible;
+    //Replaced when the region capacity grows, counts a readback adds while that happens may be lost which is fine for
+    // a heuristic
+    private volatile int[] frustum;
+    private volatile int[] visible;
     public RegionVisibilityTracker(DownloadTaskStream downStream, int maxRegions) {
         this.downStream = downStream;
         visible = new int[maxRegions];
@@ -42,6 +46,8 @@ public class RegionVisibilityTracker {
         glDrawMeshTasksNV(0,regionCount);
         glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT);
         downStream.download(regionVisibilityBuffer, 0, regionCount, ptr -> {
+            int[] frustum = this.frustum;
+            int[] visible = this.visible;
             for (int i = 0; i < regionMapping.length; i++) {
                 if (MemoryUtil.memGetByte(ptr + i) == 1) {
                     //System.out.println(regionMapping[i] + " was visible");
@@ -60,23 +66,15 @@ public class RegionVisibilityTracker {
         shader.delete();
     }
 
+    public void ensureCapacity(int regionCapacity) {
+        if (regionCapacity > this.frustum.length) {
+            this.frustum = Arrays.copyOf(this.frustum, regionCapacity);
+            this.visible = Arrays.copyOf(this.visible, regionCapacity);
+        }
+    }
+
     public void resetRegion(int id) {
         frustum[id] = 0;
         visible[id] = 0;
     }
-
-    public int findMostLikelyLeastSeenRegion(int maxIndex) {
-        int maxRank = Integer.MIN_VALUE;
-        int id = -1;
-        for (int i = 0; i < maxIndex; i++) {
-            if (frustum[i] <= 200) continue;
-            int rank =  - visible[i];
-            //int rank = -visible[i];
-            if (maxRank < rank) {
-                maxRank = rank;
-                id = i;
-            }
-        }
-        return id;
-    }
 }
@@ -1,76 +1,149 @@
 package me.cortex.nvidium.managers;
 
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import me.cortex.nvidium.Nvidium;
 import me.cortex.nvidium.NvidiumWorldRenderer;
 import me.cortex.nvidium.gl.RenderDevice;
 import me.cortex.nvidium.sodiumCompat.INvidiumWorldRendererGetter;
-import me.cortex.nvidium.sodiumCompat.IRepackagedResult;
+import me.cortex.nvidium.sodiumCompat.RepackagedSectionOutput;
 import me.cortex.nvidium.util.BufferArena;
+import me.cortex.nvidium.util.DownloadTaskStream;
 import me.cortex.nvidium.util.SegmentedManager;
+import me.cortex.nvidium.util.ToroidalLongIntMap;
 import me.cortex.nvidium.util.UploadingBufferStream;
 import net.caffeinemc.mods.sodium.client.render.SodiumWorldRenderer;
 import net.caffeinemc.mods.sodium.client.render.chunk.RenderSection;
-import net.caffeinemc.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
 import net.minecraft.util.math.ChunkSectionPos;
 import org.joml.Vector3i;
 import org.joml.Vector4i;
 import org.lwjgl.system.MemoryUtil;
 
+import java.util.Arrays;
+
 public class SectionManager {
     public static final int SECTION_SIZE = 32;
 
     //Sections should be grouped and batched into sizes of the count of sections in a region
     private final RegionManager regionManager;
 
-    private final Long2IntOpenHashMap section2id = new Long2IntOpenHashMap();
-    private final Long2IntOpenHashMap section2terrain = new Long2IntOpenHashMap();
+    //Indexed by position around the camera, sections outside the grid fall back to hashing
+    private final ToroidalLongIntMap section2id;
+    private final ToroidalLongIntMap section2terrain;
+    //Reverse of section2terrain, used to find the owner of geometry when compacting the arena
+    private final Int2LongOpenHashMap terrain2section = new Int2LongOpenHashMap();
+
+    //Terrain address of the most recently placed section of each region, new geometry of a region is placed next to it
+    // so that regions stay mostly contiguous in the arena
+    private int[] regionAnchors;
+    //Quads allocated in the arena by the sections of each region
+    private int[] regionQuads;
 
     public final UploadingBufferStream uploadStream;
     public final BufferArena terrainAreana;
+    //Geometry of regions evicted for memory pressure, null if disabled
+    private final RegionSpillCache spillCache;
+    //Allocations shared by sections with identical geometry, null if disabled
+    private final SharedGeometryTable sharedGeometry;
+    private final int quadSize;
+    private long restoredSections;
 
     private final RenderDevice device;
 
     private final LongSet hiddenSectionKeys = new LongOpenHashSet();
 
-    public SectionManager(RenderDevice device, long fallbackMemorySize, UploadingBufferStream uploadStream, int quadVertexSize, NvidiumWorldRenderer worldRenderer) {
-        int maxRegions = 50_000;
+    //Rebuilds of already loaded sections, and how many of those kept their terrain allocation
+    private long rebuildCount;
+    private long rebuildsInPlace;
+
+    //Height of the section grid, covers the full build height of the overworld
+    private static final int SECTION_GRID_HEIGHT = 32;
+
+    public SectionManager(RenderDevice device, long fallbackMemorySize, UploadingBufferStream uploadStream, DownloadTaskStream downloadStream, int quadVertexSize, int renderDistance, NvidiumWorldRenderer worldRenderer) {
+        //Regions covering the render distance over the overworld height, the metadata buffers grow past this on demand
+        int regionSpan = (2 * renderDistance + 1 + 7) / 8 + 1;
+        int initialRegions = regionSpan * regionSpan * 6;
+        //Wide enough for the render distance in every direction, capped at 128 to bound the heap use (6 mb per map)
+        int gridWidth = Math.max(32, Math.min(128, Integer.highestOneBit(2 * (renderDistance + 2) - 1) << 1));
+        this.section2id = new ToroidalLongIntMap(gridWidth, SECTION_GRID_HEIGHT, gridWidth);
+        this.section2terrain = new ToroidalLongIntMap(gridWidth, SECTION_GRID_HEIGHT, gridWidth);
 
         this.device = device;
         this.uploadStream = uploadStream;
 
-        this.terrainAreana = new BufferArena(device, fallbackMemorySize, quadVertexSize);
-        this.regionManager = new RegionManager(device, maxRegions, maxRegions * 200, uploadStream, worldRenderer::enqueueRegionSort);
+        this.terrainAreana = new BufferArena(device, fallbackMemorySize, quadVertexSize, uploadStream);
+        this.quadSize = quadVertexSize * 4;
+        this.spillCache = Nvidium.config.region_spill_cache_size == 0 ? null : new RegionSpillCache(downloadStream, (long) Nvidium.config.region_spill_cache_size << 20, Nvidium.config.region_spill_compression, this.quadSize);
+        this.sharedGeometry = Nvidium.config.geometry_dedup ? new SharedGeometryTable() : null;
+        this.regionManager = new RegionManager(device, initialRegions, uploadStream, worldRenderer::enqueueRegionSort, worldRenderer::onRegionCreated);
+
+        this.regionAnchors = new int[this.regionManager.regionCapacity()];
+        Arrays.fill(this.regionAnchors, -1);
+        this.regionQuads = new int[this.regionManager.regionCapacity()];
 
         this.section2id.defaultReturnValue(-1);
         this.section2terrain.defaultReturnValue(-1);
     }
 
-    public void uploadChunkBuildResult(ChunkBuildOutput result) {
-        var output = ((IRepackagedResult)result).nVidium$getOutput();
+    public void uploadChunkBuildResult(long sectionKey, RepackagedSectionOutput output) {
+        int sectionX = ChunkSectionPos.unpackX(sectionKey);
+        int sectionY = ChunkSectionPos.unpackY(sectionKey);
+        int sectionZ = ChunkSectionPos.unpackZ(sectionKey);
 
-        RenderSection section = result.render;
-        long sectionKey = ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ());
+        if (this.spillCache != null) {
+            this.spillCache.invalidate(sectionKey);
+        }
 
         if (output == null || output.quads() == 0) {
             deleteSection(sectionKey);
             return;
         }
 
-        int terrainAddress;
-        {
-            //Attempt to reuse the same memory
-            terrainAddress = this.section2terrain.get(sectionKey);
-            if (terrainAddress != -1 && !this.terrainAreana.canReuse(terrainAddress, output.quads())) {
-                this.section2terrain.remove(sectionKey);
-                this.terrainAreana.free(terrainAddress);
-                terrainAddress = -1;
+        if (!output.geometry().isValid()) {
+            //Staged into the ring of a renderer that no longer exists, the data is gone
+            return;
+        }
+
+        int terrainAddress = this.section2terrain.get(sectionKey);
+        boolean newAllocation;
+        long geometryHash = this.sharedGeometry == null ? 0 : output.geometryHash();
+        int sharedAddress = geometryHash == 0 ? -1 : this.sharedGeometry.lookup(geometryHash, output.offsets(), output.geometry().address(), output.geometry().length());
+        if (sharedAddress != -1) {
+            //Identical geometry is already in the arena, point the section at it instead of uploading another copy
+            newAllocation = sharedAddress != terrainAddress;
+            if (newAllocation) {
+                if (terrainAddress != -1) {
+                    this.addRegionQuads(sectionKey, -this.terrainAreana.getQuadCount(terrainAddress));
+                    this.releaseTerrain(sectionKey, terrainAddress);
+                }
+                this.sharedGeometry.addSection(sharedAddress, sectionKey);
+                this.section2terrain.put(sectionKey, sharedAddress);
+                terrainAddress = sharedAddress;
+            }
+        } else {
+            //Attempt to reuse the same memory, unless other sections still use it
+            if (terrainAddress != -1) {
+                this.rebuildCount++;
+                int previousQuads = this.terrainAreana.getQuadCount(terrainAddress);
+                boolean shared = this.sharedGeometry != null && this.sharedGeometry.isShared(terrainAddress);
+                if (!shared && this.terrainAreana.tryReuse(terrainAddress, output.quads())) {
+                    this.rebuildsInPlace++;
+                    this.addRegionQuads(sectionKey, this.terrainAreana.getQuadCount(terrainAddress) - previousQuads);
+                    if (this.sharedGeometry != null) {
+                        this.sharedGeometry.untrack(terrainAddress);
+                    }
+                } else {
+                    this.addRegionQuads(sectionKey, -previousQuads);
+                    this.releaseTerrain(sectionKey, terrainAddress);
+                    terrainAddress = -1;
+                }
             }
 
-            if (terrainAddress == -1) {
-                terrainAddress = this.terrainAreana.allocQuads(output.quads());
+            newAllocation = terrainAddress == -1;
+            if (newAllocation) {
+                int regionId = this.regionManager.getRegionId(sectionX, sectionY, sectionZ);
+                terrainAddress = this.terrainAreana.allocQuads(this.terrainAreana.withHeadroom(output.quads()), regionId == -1 ? -1 : this.regionAnchors[regionId]);
             }
 
             if (terrainAddress == SegmentedManager.SIZE_LIMIT) {
@@ -84,40 +157,122 @@ public class SectionManager {
             }
 
             this.section2terrain.put(sectionKey, terrainAddress);
+            this.terrain2section.put(terrainAddress, sectionKey);
+            if (geometryHash != 0) {
+                this.sharedGeometry.register(terrainAddress, geometryHash, sectionKey, this.terrainAreana.getQuadCount(terrainAddress), output.offsets(), output.geometry().address(), output.geometry().length());
+            }
 
-            long geometryUpload = terrainAreana.upload(uploadStream, terrainAddress);
-            MemoryUtil.memCopy(MemoryUtil.memAddress(output.geometry().getDirectBuffer()), geometryUpload, output.geometry().getLength());
+            output.geometry().upload(uploadStream, terrainAreana.buffer, terrainAreana.getByteOffset(terrainAddress));
         }
 
 
 
+        Vector3i min  = output.min();
+        Vector3i size = output.size();
+        long metadata = this.placeSection(sectionKey, terrainAddress, newAllocation, (size.x<<4|min.x) | (size.y<<4|min.y)<<8 | (size.z<<4|min.z)<<16);
+
+        //Write the geometry offsets, packed into ints
+        for (int i = 0; i < 4; i++) {
+            int geo = Short.toUnsignedInt(output.offsets()[i*2])|(Short.toUnsignedInt(output.offsets()[i*2+1])<<16);
+            MemoryUtil.memPutInt(metadata, geo);
+            metadata += 4;
+        }
+    }
+
+    //Points the section at its geometry, allocating the section if needed, bounds is size<<4|min of each axis a byte
+    // per axis. Returns the address the 4 packed geometry offset ints of the section go to
+    private long placeSection(long sectionKey, int terrainAddress, boolean newAllocation, int bounds) {
+        int sectionX = ChunkSectionPos.unpackX(sectionKey);
+        int sectionY = ChunkSectionPos.unpackY(sectionKey);
+        int sectionZ = ChunkSectionPos.unpackZ(sectionKey);
+
         //Get the section id or allocate a new instance for it
-        int sectionIdx = this.section2id.computeIfAbsent(
-                sectionKey,
-                key -> this.regionManager.allocateSection(ChunkSectionPos.unpackX(key), ChunkSectionPos.unpackY(key), ChunkSectionPos.unpackZ(key))
-        );
+        int sectionIdx = this.section2id.get(sectionKey);
+        if (sectionIdx == -1) {
+            sectionIdx = this.regionManager.allocateSection(sectionX, sectionY, sectionZ);
+            this.section2id.put(sectionKey, sectionIdx);
+            if (this.regionAnchors.length < this.regionManager.regionCapacity()) {
+                int oldLength = this.regionAnchors.length;
+                this.regionAnchors = Arrays.copyOf(this.regionAnchors, this.regionManager.regionCapacity());
+                Arrays.fill(this.regionAnchors, oldLength, this.regionAnchors.length, -1);
+                this.regionQuads = Arrays.copyOf(this.regionQuads, this.regionManager.regionCapacity());
+            }
+        }
+        if (newAllocation) {
+            this.regionQuads[sectionIdx >>> 8] += this.terrainAreana.getQuadCount(terrainAddress);
+        }
 
 
+        this.regionAnchors[sectionIdx >>> 8] = terrainAddress;
+
         long metadata = regionManager.setSectionData(sectionIdx);
         boolean hideSectionBitSet = this.hiddenSectionKeys.contains(sectionKey);
-        Vector3i min  = output.min();
-        Vector3i size = output.size();
 
 
         //bits 18->26 taken by section id (used for translucency sorting/rendering)
         // 26->32 is free
-        int px = section.getChunkX()<<8 | size.x<<4 | min.x;
-        int py = (section.getChunkY()&0x1FF)<<8 | size.y<<4 | min.y | (hideSectionBitSet?1<<17:0) | ((regionManager.getSectionRefId(sectionIdx))<<18);
-        int pz = section.getChunkZ()<<8 | size.z<<4 | min.z;
+        int px = sectionX<<8 | bounds&0xFF;
+        int py = (sectionY&0x1FF)<<8 | (bounds>>>8)&0xFF | (hideSectionBitSet?1<<17:0) | ((regionManager.getSectionRefId(sectionIdx))<<18);
+        int pz = sectionZ<<8 | (bounds>>>16)&0xFF;
         int pw = terrainAddress;
         new Vector4i(px, py, pz, pw).getToAddress(metadata);
-        metadata += 4*4;
+        return metadata + 4*4;
+    }
 
-        //Write the geometry offsets, packed into ints
-        for (int i = 0; i < 4; i++) {
-            int geo = Short.toUnsignedInt(output.offsets()[i*2])|(Short.toUnsignedInt(output.offsets()[i*2+1])<<16);
-            MemoryUtil.memPutInt(metadata, geo);
-            metadata += 4;
+    //Reads the geometry of the region back into the spill cache, must be called before the region is removed
+    public void spillRegion(int regionId) {
+        if (this.spillCache == null || !this.regionManager.regionExists(regionId)) return;
+        //Geometry uploads still in the stream need to land before it is read back
+        this.uploadStream.commit();
+        long rk = this.regionManager.regionIdToKey(regionId);
+        var entry = this.spillCache.begin(rk);
+        int X = ChunkSectionPos.unpackX(rk)<<3;
+        int Y = ChunkSectionPos.unpackY(rk)<<2;
+        int Z = ChunkSectionPos.unpackZ(rk)<<3;
+        for (int x = X; x < X+8; x++) {
+            for (int y = Y; y < Y+4; y++) {
+                for (int z = Z; z < Z+8; z++) {
+                    long sectionKey = ChunkSectionPos.asLong(x, y, z);
+                    int sectionIdx = this.section2id.get(sectionKey);
+                    int terrainAddress = this.section2terrain.get(sectionKey);
+                    if (sectionIdx == -1 || terrainAddress == -1) continue;
+                    long metadata = this.regionManager.getSectionData(sectionIdx);
+                    int bounds = (MemoryUtil.memGetInt(metadata)&0xFF) | (MemoryUtil.memGetInt(metadata+4)&0xFF)<<8 | (MemoryUtil.memGetInt(metadata+8)&0xFF)<<16;
+                    //The whole allocation, headroom included
+                    this.spillCache.addSection(entry, sectionKey, bounds, metadata + 4*4, this.terrainAreana.getByteOffset(terrainAddress), this.terrainAreana.getQuadCount(terrainAddress));
+                }
+            }
+        }
+        this.spillCache.finish(entry, this.terrainAreana.buffer);
+    }
+
+    //Uploads spilled regions that passed the visibility test again, at most budget bytes of geometry
+    public void restoreSpilledRegions(RegionCullingGrid.IBoxVisibility visibility, long budget) {
+        if (this.spillCache == null || budget <= 0) return;
+        this.spillCache.restoreVisible(visibility, budget, this::restoreRegion);
+    }
+
+    private void restoreRegion(RegionSpillCache.Entry entry, long data) {
+        for (int i = 0; i < entry.sectionCount(); i++) {
+            int quads = entry.quads(i);
+            long sectionKey = entry.sectionKey(i);
+            //Invalidated, or rebuilt since it was spilled
+            if (quads == 0 || this.section2id.get(sectionKey) != -1) continue;
+            int regionId = this.regionManager.getRegionId(ChunkSectionPos.unpackX(sectionKey), ChunkSectionPos.unpackY(sectionKey), ChunkSectionPos.unpackZ(sectionKey));
+            int terrainAddress = this.terrainAreana.allocQuads(quads, regionId == -1 ? -1 : this.regionAnchors[regionId]);
+            if (terrainAddress == SegmentedManager.SIZE_LIMIT) {
+                //The rest of the region is lost, sodium has to rebuild it
+                return;
+            }
+            this.section2terrain.put(sectionKey, terrainAddress);
+            this.terrain2section.put(terrainAddress, sectionKey);
+            MemoryUtil.memCopy(entry.geometry(data, i), this.uploadStream.upload(this.terrainAreana.buffer, this.terrainAreana.getByteOffset(terrainAddress), (long) quads * this.quadSize), (long) quads * this.quadSize);
+
+            long metadata = this.placeSection(sectionKey, terrainAddress, true, entry.bounds(i));
+            for (int j = 0; j < 4; j++) {
+                MemoryUtil.memPutInt(metadata + j * 4L, entry.offset(i, j));
+            }
+            this.restoredSections++;
         }
     }
 
@@ -145,24 +300,161 @@ public class SectionManager {
     }
 
     public void deleteSection(RenderSection section) {
-        deleteSection(ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ()));
+        long sectionKey = ChunkSectionPos.asLong(section.getChunkX(), section.getChunkY(), section.getChunkZ());
+        if (this.spillCache != null) {
+            this.spillCache.invalidate(sectionKey);
+        }
+        deleteSection(sectionKey);
     }
 
     private void deleteSection(long sectionKey) {
         int sectionIdx = this.section2id.remove(sectionKey);
         if (sectionIdx != -1) {
-            int terrainIndex = this.section2terrain.remove(sectionKey);
+            int terrainIndex = this.section2terrain.get(sectionKey);
             if (terrainIndex != -1) {
-                this.terrainAreana.free(terrainIndex);
+                if (this.regionAnchors[sectionIdx >>> 8] == terrainIndex) {
+                    this.regionAnchors[sectionIdx >>> 8] = -1;
+                }
+                this.regionQuads[sectionIdx >>> 8] -= this.terrainAreana.getQuadCount(terrainIndex);
+                this.releaseTerrain(sectionKey, terrainIndex);
             }
             //Clear the segment
             this.regionManager.removeSection(sectionIdx);
         }
     }
 
+    //Drops the reference of the section to its geometry, which is freed unless other sections share it
+    private void releaseTerrain(long sectionKey, int terrainAddress) {
+        this.section2terrain.remove(sectionKey);
+        if (this.sharedGeometry != null && !this.sharedGeometry.release(terrainAddress, sectionKey)) {
+            //Hand the allocation to a section still using it
+            if (this.terrain2section.get(terrainAddress) == sectionKey) {
+                this.terrain2section.put(terrainAddress, this.sharedGeometry.getSections(terrainAddress).getLong(0));
+            }
+            return;
+        }
+        this.terrain2section.remove(terrainAddress);
+        this.terrainAreana.free(terrainAddress);
+    }
+
+    private void addRegionQuads(long sectionKey, int quads) {
+        int sectionIdx = this.section2id.get(sectionKey);
+        if (sectionIdx != -1) {
+            this.regionQuads[sectionIdx >>> 8] += quads;
+        }
+    }
+
+    public int getRegionQuads(int regionId) {
+        return this.regionQuads[regionId];
+    }
+
+    //Incrementally defragments the terrain arena, moving at most budget bytes of geometry
+    public long compactTerrain(long budget) {
+        if (!this.terrainAreana.shouldCompact()) {
+            return 0;
+        }
+        return this.terrainAreana.compact(budget, this::relocateTerrain);
+    }
+
+    private boolean relocateTerrain(long src, long dst, int size) {
+        if (!this.terrain2section.containsKey((int) src)) {
+            //Not owned by a section (e.g. the reserved index 0)
+            return false;
+        }
+        long sectionKey = this.terrain2section.remove((int) src);
+        this.terrain2section.put((int) dst, sectionKey);
+        var sharers = this.sharedGeometry == null ? null : this.sharedGeometry.getSections((int) src);
+        if (sharers == null) {
+            this.repointSection(sectionKey, (int) src, (int) dst);
+        } else {
+            for (int i = 0; i < sharers.size(); i++) {
+                this.repointSection(sharers.getLong(i), (int) src, (int) dst);
+            }
+            this.sharedGeometry.relocate((int) src, (int) dst);
+        }
+        return true;
+    }
+
+    private void repointSection(long sectionKey, int src, int dst) {
+        this.section2terrain.put(sectionKey, dst);
+
+        int sectionIdx = this.section2id.get(sectionKey);
+        if (this.regionAnchors[sectionIdx >>> 8] == src) {
+            this.regionAnchors[sectionIdx >>> 8] = dst;
+        }
+
+        //Repoint the terrain address (pw) of the section header
+        long metadata = this.regionManager.setSectionData(sectionIdx);
+        MemoryUtil.memPutInt(metadata + 12, dst);
+    }
+
+    //Arena layout metric, for every region the amount of geometry it has over the address span it covers in the
+    // arena, averaged over all regions weighted by geometry, 1 means every region is fully contiguous
+    public float computeRegionLocality() {
+        int maxRegion = this.regionManager.maxRegionIndex();
+        long[] minAddr = new long[maxRegion];
+        long[] maxAddr = new long[maxRegion];
+        long[] quads = new long[maxRegion];
+        Arrays.fill(minAddr, Long.MAX_VALUE);
+        this.section2terrain.forEach((sectionKey, terrainAddress) -> {
+            int sectionIdx = this.section2id.get(sectionKey);
+            if (sectionIdx == -1) return;
+            int region = sectionIdx >>> 8;
+            long addr = Integer.toUnsignedLong(terrainAddress);
+            int count = this.terrainAreana.getQuadCount(terrainAddress);
+            minAddr[region] = Math.min(minAddr[region], addr);
+            maxAddr[region] = Math.max(maxAddr[region], addr + count);
+            quads[region] += count;
+        });
+        double weighted = 0;
+        long total = 0;
+        for (int i = 0; i < maxRegion; i++) {
+            if (quads[i] == 0) continue;
+            weighted += ((double) quads[i] / (maxAddr[i] - minAddr[i])) * quads[i];
+            total += quads[i];
+        }
+        return total == 0 ? 1 : (float) (weighted / total);
+    }
+
+    //Recenters the section and region lookup grids on the camera section
+    public void setCenter(int sectionX, int sectionY, int sectionZ) {
+        this.section2id.setCenter(sectionX, sectionY, sectionZ);
+        this.section2terrain.setCenter(sectionX, sectionY, sectionZ);
+        this.regionManager.setCenter(sectionX, sectionY, sectionZ);
+    }
+
+    //Sections that didnt fit in the lookup grid
+    public int getGridFallbackCount() {
+        return this.section2id.fallbackSize();
+    }
+
+    //Null if the spill cache is disabled
+    public RegionSpillCache getSpillCache() {
+        return this.spillCache;
+    }
+
+    public long getRestoredSections() {
+        return this.restoredSections;
+    }
+
+    //Null if geometry dedup is disabled
+    public SharedGeometryTable getSharedGeometry() {
+        return this.sharedGeometry;
+    }
+
+    public float getRebuildReuseRate() {
+        return this.rebuildCount == 0 ? 0 : (float) ((double) this.rebuildsInPlace / this.rebuildCount);
+    }
+
     public void destroy() {
         this.regionManager.destroy();
         this.terrainAreana.delete();
+        if (this.spillCache != null) {
+            this.spillCache.delete();
+        }
+        if (this.sharedGeometry != null) {
+            this.sharedGeometry.delete();
+        }
     }
 
     public void commitChanges() {
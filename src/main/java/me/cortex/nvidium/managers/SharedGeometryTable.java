@@ -0,0 +1,169 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.Arrays;
+
+//Terrain allocations shared by sections with byte identical geometry, looked up by a hash of the geometry and its
+// face offsets. Each allocation knows the sections pointing at it and is only freed once the last one lets go
+// Allocations with a single section are still tracked so the next identical section can find them
+// A hash match alone is never trusted, every tracked allocation keeps a host copy of its geometry that a candidate
+// is compared against byte for byte. Once the copies reach MAX_COPY_BYTES new allocations are no longer tracked
+public class SharedGeometryTable {
+    private static final long MAX_COPY_BYTES = 64L << 20;
+
+    private static final class Entry {
+        private final long hash;
+        private final int quads;
+        private final short[] offsets;
+        private final long copy;
+        private final int length;
+        private final LongArrayList sections = new LongArrayList(1);
+
+        private Entry(long hash, int quads, short[] offsets, long copy, int length) {
+            this.hash = hash;
+            this.quads = quads;
+            this.offsets = offsets;
+            this.copy = copy;
+            this.length = length;
+        }
+    }
+
+    private final Long2IntOpenHashMap hash2terrain = new Long2IntOpenHashMap();
+    private final Int2ObjectOpenHashMap<Entry> entries = new Int2ObjectOpenHashMap<>();
+    //Quads of the tracked allocations, and of every section using them
+    private long physicalQuads;
+    private long logicalQuads;
+    private long copyBytes;
+
+    public SharedGeometryTable() {
+        this.hash2terrain.defaultReturnValue(-1);
+    }
+
+    //Terrain address of the allocation holding the same geometry and offsets, -1 if there is none. Geometry is a host
+    // address
+    public int lookup(long hash, short[] offsets, long geometry, int length) {
+        int terrainAddress = this.hash2terrain.get(hash);
+        if (terrainAddress == -1) {
+            return -1;
+        }
+        var entry = this.entries.get(terrainAddress);
+        if (entry.length != length || !Arrays.equals(entry.offsets, offsets) ||
+                !MemoryUtil.memByteBuffer(entry.copy, length).equals(MemoryUtil.memByteBuffer(geometry, length))) {
+            //Hash collision
+            return -1;
+        }
+        return terrainAddress;
+    }
+
+    public boolean contains(int terrainAddress) {
+        return this.entries.containsKey(terrainAddress);
+    }
+
+    public boolean isShared(int terrainAddress) {
+        var entry = this.entries.get(terrainAddress);
+        return entry != null && entry.sections.size() > 1;
+    }
+
+    //Tracks a freshly uploaded allocation of the section, quads is the size of the allocation and geometry a host
+    // address of what was uploaded. Returns false if there is no room left for its copy, it is then left untracked
+    public boolean register(int terrainAddress, long hash, long sectionKey, int quads, short[] offsets, long geometry, int length) {
+        if (this.copyBytes + length > MAX_COPY_BYTES) {
+            return false;
+        }
+        long copy = MemoryUtil.nmemAlloc(length);
+        MemoryUtil.memCopy(geometry, copy, length);
+        this.copyBytes += length;
+        var entry = new Entry(hash, quads, offsets.clone(), copy, length);
+        entry.sections.add(sectionKey);
+        this.entries.put(terrainAddress, entry);
+        this.hash2terrain.put(hash, terrainAddress);
+        this.physicalQuads += quads;
+        this.logicalQuads += quads;
+        return true;
+    }
+
+    private void free(Entry entry) {
+        MemoryUtil.nmemFree(entry.copy);
+        this.copyBytes -= entry.length;
+    }
+
+    public void addSection(int terrainAddress, long sectionKey) {
+        var entry = this.entries.get(terrainAddress);
+        entry.sections.add(sectionKey);
+        this.logicalQuads += entry.quads;
+    }
+
+    //The only section of the allocation is rewriting it in place, it no longer holds the geometry it was found by
+    public void untrack(int terrainAddress) {
+        var entry = this.entries.remove(terrainAddress);
+        if (entry != null) {
+            this.hash2terrain.remove(entry.hash, terrainAddress);
+            this.physicalQuads -= entry.quads;
+            this.logicalQuads -= entry.quads;
+            this.free(entry);
+        }
+    }
+
+    //Removes the section from the allocation, returns true if nothing uses the allocation anymore and it can be freed,
+    // which is also the case for allocations that were never tracked
+    public boolean release(int terrainAddress, long sectionKey) {
+        var entry = this.entries.get(terrainAddress);
+        if (entry == null) {
+            return true;
+        }
+        entry.sections.rem(sectionKey);
+        this.logicalQuads -= entry.quads;
+        if (!entry.sections.isEmpty()) {
+            return false;
+        }
+        this.entries.remove(terrainAddress);
+        this.hash2terrain.remove(entry.hash, terrainAddress);
+        this.physicalQuads -= entry.quads;
+        this.free(entry);
+        return true;
+    }
+
+    //Sections using the allocation, null if it isnt tracked
+    public LongArrayList getSections(int terrainAddress) {
+        var entry = this.entries.get(terrainAddress);
+        return entry == null ? null : entry.sections;
+    }
+
+    //The allocation was moved by the compactor
+    public void relocate(int src, int dst) {
+        var entry = this.entries.remove(src);
+        if (entry != null) {
+            this.entries.put(dst, entry);
+            this.hash2terrain.put(entry.hash, dst);
+        }
+    }
+
+    //Host memory held by the copies
+    public long getCopyBytes() {
+        return this.copyBytes;
+    }
+
+    public int getAllocationCount() {
+        return this.entries.size();
+    }
+
+    //Quads that would have been allocated without sharing
+    public long getSavedQuads() {
+        return this.logicalQuads - this.physicalQuads;
+    }
+
+    //Geometry referenced by sections over geometry in the arena, of the tracked allocations
+    public float getDedupRatio() {
+        return this.physicalQuads == 0 ? 1 : (float) ((double) this.logicalQuads / this.physicalQuads);
+    }
+
+    public void delete() {
+        this.entries.values().forEach(this::free);
+        this.entries.clear();
+        this.hash2terrain.clear();
+    }
+}
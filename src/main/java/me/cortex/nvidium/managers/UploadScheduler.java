@@ -0,0 +1,205 @@
+package me.cortex.nvidium.managers;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+//Holds chunk build results and uploads them over multiple frames instead of all in the frame they complete in,
+// every frame the pending results are ordered visible first then by distance to the camera and uploaded until the
+// byte or time budget of the frame is used up, the rest carries over to the next frame
+// A newer result for a section replaces the pending one, so a section is never uploaded twice
+// Results can hold staging ring memory that later builds need, so one that has waited maxDeferNanos is uploaded
+// the next frame regardless of visibility, distance or budget. The wait is in time rather than frames so the cap
+// holds at any frame rate
+public class UploadScheduler<T> {
+    public interface IUploader<T> {
+        void upload(long sectionKey, T result);
+    }
+
+    public interface IDiscarder<T> {
+        void discard(T result);
+    }
+
+    public interface IVisibility {
+        boolean isSectionVisible(int x, int y, int z);
+    }
+
+    private record Pending<T>(long sectionKey, int x, int y, int z, int bytes, T result, long queuedNanos) {}
+
+    private final IUploader<T> uploader;
+    private final IDiscarder<T> discarder;
+    private final long maxDeferNanos;
+    private final LongSupplier clock;
+    private final Long2ObjectOpenHashMap<Pending<T>> pending = new Long2ObjectOpenHashMap<>();
+    private long pendingBytes;
+
+    //Scratch arrays for ordering, reused across frames
+    private long[] order = new long[256];
+    private Pending<T>[] entries = newArray(256);
+
+    //Statistics of the last processed frame
+    private int lastFrameUploads;
+    private long lastFrameBytes;
+    private int lastFrameOverdue;
+
+    public UploadScheduler(IUploader<T> uploader, IDiscarder<T> discarder, long maxDeferNanos) {
+        this(uploader, discarder, maxDeferNanos, System::nanoTime);
+    }
+
+    //The clock gives nanoseconds, main() uses a simulated one
+    UploadScheduler(IUploader<T> uploader, IDiscarder<T> discarder, long maxDeferNanos, LongSupplier clock) {
+        this.uploader = uploader;
+        this.discarder = discarder;
+        this.maxDeferNanos = maxDeferNanos;
+        this.clock = clock;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Pending<T>[] newArray(int size) {
+        return new Pending[size];
+    }
+
+    //Queues a result for upload, the scheduler owns the result until it is either uploaded or discarded
+    public void enqueue(long sectionKey, int x, int y, int z, int bytes, T result) {
+        var old = this.pending.put(sectionKey, new Pending<>(sectionKey, x, y, z, bytes, result, this.clock.getAsLong()));
+        this.pendingBytes += bytes;
+        if (old != null) {
+            this.pendingBytes -= old.bytes;
+            this.discarder.discard(old.result);
+        }
+    }
+
+    //Drops the pending result of a section, e.g. when it gets deleted or an empty result supersedes it
+    public boolean cancel(long sectionKey) {
+        var old = this.pending.remove(sectionKey);
+        if (old == null) {
+            return false;
+        }
+        this.pendingBytes -= old.bytes;
+        this.discarder.discard(old.result);
+        return true;
+    }
+
+    //Uploads pending results in priority order until either budget is used, a budget of 0 is unlimited
+    // At least one result is always uploaded so the queue can never stall, overdue results are uploaded outside of the
+    // budget
+    public int process(double cameraX, double cameraY, double cameraZ, IVisibility visibility, long byteBudget, long nanoBudget) {
+        this.lastFrameUploads = 0;
+        this.lastFrameBytes = 0;
+        this.lastFrameOverdue = 0;
+        int count = this.pending.size();
+        if (count == 0) {
+            return 0;
+        }
+        if (this.order.length < count) {
+            int cap = Math.max(count, this.order.length * 2);
+            this.order = new long[cap];
+            this.entries = newArray(cap);
+        }
+
+        //Key layout: bit 62 set if not visible, bits 32->62 squared section distance plus one, low bits the entry index
+        // Overdue entries have only the index so they sort first
+        long now = this.clock.getAsLong();
+        double cx = cameraX / 16;
+        double cy = cameraY / 16;
+        double cz = cameraZ / 16;
+        int i = 0;
+        for (var entry : this.pending.values()) {
+            double dx = entry.x + 0.5 - cx;
+            double dy = entry.y + 0.5 - cy;
+            double dz = entry.z + 0.5 - cz;
+            long dist = Math.min((long) (dx * dx + dy * dy + dz * dz), (1L << 30) - 2) + 1;
+            long hidden = visibility.isSectionVisible(entry.x, entry.y, entry.z) ? 0 : 1L << 62;
+            this.entries[i] = entry;
+            if (now - entry.queuedNanos >= this.maxDeferNanos) {
+                this.order[i] = i;
+                this.lastFrameOverdue++;
+            } else {
+                this.order[i] = hidden | dist << 32 | i;
+            }
+            i++;
+        }
+        LongArrays.radixSort(this.order, 0, count);
+
+        long start = System.nanoTime();
+        for (i = 0; i < count; i++) {
+            if (this.lastFrameUploads >= Math.max(this.lastFrameOverdue, 1)) {
+                if (byteBudget != 0 && this.lastFrameBytes >= byteBudget) break;
+                if (nanoBudget != 0 && System.nanoTime() - start >= nanoBudget) break;
+            }
+            var entry = this.entries[(int) this.order[i]];
+            this.pending.remove(entry.sectionKey);
+            this.pendingBytes -= entry.bytes;
+            this.uploader.upload(entry.sectionKey, entry.result);
+            this.lastFrameUploads++;
+            this.lastFrameBytes += entry.bytes;
+        }
+        Arrays.fill(this.entries, 0, count, null);
+        return this.lastFrameUploads;
+    }
+
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    public long getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+    public int getLastFrameUploads() {
+        return this.lastFrameUploads;
+    }
+
+    public long getLastFrameBytes() {
+        return this.lastFrameBytes;
+    }
+
+    //Results uploaded last frame only because they had waited too long
+    public int getLastFrameOverdue() {
+        return this.lastFrameOverdue;
+    }
+
+    public void clear() {
+        for (var entry : this.pending.values()) {
+            this.discarder.discard(entry.result);
+        }
+        this.pending.clear();
+        this.pendingBytes = 0;
+    }
+
+    //Replays a load burst (teleport into unloaded terrain) against a cost model of the upload path and prints the
+    // per frame upload cost percentiles, once with everything uploaded in the frame it completes and once budgeted
+    // The percentiles follow from the cost model and the simulated 60 fps clock, they are not measurements
+    public static void main(String[] args) {
+        //Memcpy into the staging buffer plus the fixed cost of a section upload (allocation, metadata, copy command)
+        double nanosPerByte = 0.1;
+        double nanosPerUpload = 15_000;
+        for (long budget : new long[]{0, 8L << 20}) {
+            Random r = new Random(42);
+            double[] cost = new double[1];
+            long[] time = new long[1];
+            var scheduler = new UploadScheduler<Integer>((key, bytes) -> cost[0] += nanosPerUpload + bytes * nanosPerByte, bytes -> {},
+                    1_000_000_000L, () -> time[0]);
+            double[] frames = new double[600];
+            long key = 0;
+            for (int frame = 0; frame < frames.length; frame++) {
+                time[0] = frame * 1_000_000_000L / 60;
+                //Builder threads finish a few hundred sections a frame for the first 2 seconds, then trickle
+                int completed = frame < 120 ? 150 + r.nextInt(300) : r.nextInt(4);
+                for (int j = 0; j < completed; j++) {
+                    int bytes = 2048 + (int) (Math.abs(r.nextGaussian()) * 60_000);
+                    scheduler.enqueue(key++, r.nextInt(64) - 32, r.nextInt(24) - 4, r.nextInt(64) - 32, bytes, bytes);
+                }
+                cost[0] = 0;
+                scheduler.process(0, 64, 0, (x, y, z) -> z > 0, budget, 0);
+                frames[frame] = cost[0] / 1e6;
+            }
+            Arrays.sort(frames);
+            System.out.printf("%s: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n", budget == 0 ? "unbudgeted" : "budget " + (budget >> 20) + " MB",
+                    frames[frames.length / 2], frames[(int) (frames.length * 0.95)], frames[(int) (frames.length * 0.99)], frames[frames.length - 1]);
+        }
+    }
+}
@@ -19,7 +19,7 @@ public class MixinChunkBuilderMeshingTask {
         if (Nvidium.IS_ENABLED) {
             ChunkBuildOutput result = cir.getReturnValue();
             if (result instanceof IRepackagedResult) {
-                ((IRepackagedResult) result).nVidium$set(SodiumResultCompatibility.repackage(result));
+                ((IRepackagedResult) result).nVidium$set(SodiumResultCompatibility.repackage(result, buildContext.cache.getWorldSlice()));
             }
         }
     }
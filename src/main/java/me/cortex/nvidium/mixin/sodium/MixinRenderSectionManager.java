@@ -54,7 +54,7 @@ public class MixinRenderSectionManager implements INvidiumWorldRendererGetter {
         if (Nvidium.IS_ENABLED) {
             if (renderer != null)
                 throw new IllegalStateException("Cannot have multiple world renderers");
-            renderer = new NvidiumWorldRenderer(Nvidium.config.async_bfs ? new AsyncOcclusionTracker(renderDistance, sectionByPosition, world, taskLists) : null);
+            renderer = new NvidiumWorldRenderer(world, renderDistance, Nvidium.config.async_bfs ? new AsyncOcclusionTracker(renderDistance, sectionByPosition, world, taskLists) : null);
             ((INvidiumWorldRendererSetter) regions).nVidium$setWorldRenderer(renderer);
         }
     }
@@ -79,6 +79,13 @@ public class MixinRenderSectionManager implements INvidiumWorldRendererGetter {
         }
     }
 
+    @Inject(method = "onSectionAdded", at = @At("TAIL"))
+    private void loadCachedGeometry(int x, int y, int z, CallbackInfo ci) {
+        if (Nvidium.IS_ENABLED) {
+            renderer.onSectionLoaded(x, y, z);
+        }
+    }
+
     @Redirect(method = "onSectionRemoved", at = @At(value = "INVOKE", target = "Lnet/caffeinemc/mods/sodium/client/render/chunk/RenderSection;delete()V"))
     private void deleteSection(RenderSection section) {
         if (Nvidium.IS_ENABLED) {
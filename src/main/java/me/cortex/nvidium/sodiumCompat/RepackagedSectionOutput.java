@@ -1,15 +1,17 @@
 package me.cortex.nvidium.sodiumCompat;
 
-import net.caffeinemc.mods.sodium.client.util.NativeBuffer;
 import org.joml.Vector3i;
 
 //Computed on the build thread instead of the render thread saving alot of 1% lows
+//geometryHash identifies the geometry for sharing it between sections, 0 if it shouldnt be shared. Geometry with a
+// hash is in host memory so it can be compared before sharing
 public record RepackagedSectionOutput(int quads,
-                                      NativeBuffer geometry,
+                                      SectionGeometry geometry,
                                       short[] offsets,
                                       Vector3i min,
-                                      Vector3i size) {
+                                      Vector3i size,
+                                      long geometryHash) {
     public void delete() {
-        geometry.free();
+        geometry.delete();
     }
 }
@@ -0,0 +1,91 @@
+package me.cortex.nvidium.sodiumCompat;
+
+import me.cortex.nvidium.gl.buffers.Buffer;
+import me.cortex.nvidium.util.StagingRing;
+import me.cortex.nvidium.util.UploadingBufferStream;
+import net.caffeinemc.mods.sodium.client.util.NativeBuffer;
+import org.lwjgl.system.MemoryUtil;
+
+//Repackaged geometry of a section, written by the build thread straight into the staging ring so the render thread
+// only needs to record a copy, if the ring is full it is written into its own native buffer instead
+public final class SectionGeometry {
+    private final StagingRing.Reservation reservation;
+    private final NativeBuffer buffer;
+    private volatile boolean released;
+
+    private SectionGeometry(StagingRing.Reservation reservation, NativeBuffer buffer) {
+        this.reservation = reservation;
+        this.buffer = buffer;
+    }
+
+    //Must be followed by finishWrite once the geometry has been written
+    public static SectionGeometry allocate(int size) {
+        var ring = StagingRing.current();
+        var reservation = ring == null ? null : ring.reserve(size);
+        if (reservation != null) {
+            return new SectionGeometry(reservation, null);
+        }
+        return new SectionGeometry(null, new NativeBuffer(size));
+    }
+
+    //Always in host memory, for geometry the render thread needs to read
+    public static SectionGeometry allocateHost(int size) {
+        return new SectionGeometry(null, new NativeBuffer(size));
+    }
+
+    //Moves host geometry into the staging ring if there is room, the returned geometry replaces this one
+    public SectionGeometry stage() {
+        if (this.reservation != null) {
+            return this;
+        }
+        var ring = StagingRing.current();
+        var reservation = ring == null ? null : ring.reserve(this.buffer.getLength());
+        if (reservation == null) {
+            return this;
+        }
+        MemoryUtil.memCopy(MemoryUtil.memAddress(this.buffer.getDirectBuffer()), reservation.address(), reservation.size());
+        ring.endWrite();
+        this.buffer.free();
+        return new SectionGeometry(reservation, null);
+    }
+
+    public void finishWrite() {
+        if (this.reservation != null) {
+            this.reservation.ring().endWrite();
+        }
+    }
+
+    public long address() {
+        return this.reservation != null ? this.reservation.address() : MemoryUtil.memAddress(this.buffer.getDirectBuffer());
+    }
+
+    public int length() {
+        return this.reservation != null ? this.reservation.size() : this.buffer.getLength();
+    }
+
+    //False if the geometry was staged in a ring that has since been deleted
+    public boolean isValid() {
+        return this.reservation == null || this.reservation.ring() == StagingRing.current();
+    }
+
+    //Render thread only, queues the geometry to be copied into the target
+    public void upload(UploadingBufferStream stream, Buffer target, long targetOffset) {
+        if (this.reservation != null) {
+            this.reservation.ring().copy(this.reservation, stream, target, targetOffset);
+            this.released = true;
+        } else {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(this.buffer.getDirectBuffer()), stream.upload(target, targetOffset, this.buffer.getLength()), this.buffer.getLength());
+        }
+    }
+
+    public void delete() {
+        if (this.reservation != null) {
+            if (!this.released) {
+                this.released = true;
+                this.reservation.ring().discard(this.reservation);
+            }
+        } else {
+            this.buffer.free();
+        }
+    }
+}
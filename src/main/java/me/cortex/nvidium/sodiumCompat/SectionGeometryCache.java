@@ -0,0 +1,207 @@
+package me.cortex.nvidium.sodiumCompat;
+
+import me.cortex.nvidium.Nvidium;
+import me.cortex.nvidium.util.GeometryDiskCache;
+import net.caffeinemc.mods.sodium.client.world.WorldSlice;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.util.math.ChunkSectionPos;
+import org.joml.Vector3i;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+//Glue between the world and the on disk geometry cache, sections are keyed by position and a hash of their block
+// states. A hit is only a stand in until sodium has built the section, the hash does not cover neighbours or light
+// Builder threads store what they built from the world slice they built it from, the render thread only looks up
+// newly loaded sections. The disk cache itself is guarded by this
+public class SectionGeometryCache {
+    private static volatile SectionGeometryCache current;
+    //Files kept in the cache directory, the least recently opened worlds are deleted past it
+    private static final int MAX_FILES = 4;
+
+    private final ClientWorld world;
+    private final GeometryDiskCache cache;
+    private final GeometryDiskCache.Record record = new GeometryDiskCache.Record();
+    private boolean closed;
+
+    private SectionGeometryCache(ClientWorld world, GeometryDiskCache cache) {
+        this.world = world;
+        this.cache = cache;
+        current = this;
+    }
+
+    //The cache of the active renderer, or null if there is none
+    public static SectionGeometryCache current() {
+        return current;
+    }
+
+    //Null if disabled or the file could not be opened
+    public static SectionGeometryCache open(ClientWorld world) {
+        if (Nvidium.config.geometry_disk_cache_size == 0) {
+            return null;
+        }
+        var client = MinecraftClient.getInstance();
+        String worldName;
+        if (client.getServer() != null) {
+            worldName = "local:" + client.getServer().getSaveProperties().getLevelName();
+        } else if (client.getCurrentServerEntry() != null) {
+            worldName = "server:" + client.getCurrentServerEntry().address;
+        } else {
+            return null;
+        }
+        worldName += "|" + world.getRegistryKey().getValue();
+        Path directory = FabricLoader.getInstance().getGameDir()
+                .resolve(".nvidium")
+                .resolve("geometry");
+        Path file = directory.resolve(Long.toHexString(hashString(worldName)) + ".bin");
+
+        //Anything that changes the meshes of the same blocks invalidates the whole file
+        long contentVersion = hashString(Nvidium.MOD_VERSION);
+        for (var pack : client.getResourcePackManager().getEnabledIds()) {
+            contentVersion = mix(contentVersion ^ hashString(pack));
+        }
+        contentVersion = mix(contentVersion ^ client.options.getGraphicsMode().getValue().ordinal());
+        contentVersion = mix(contentVersion ^ (client.options.getAo().getValue() ? 1 : 0));
+        //Sections are hashed by raw state id, which shift when the installed blocks change
+        contentVersion = mix(contentVersion ^ Block.STATE_IDS.size());
+
+        try {
+            trimDirectory(directory, file);
+            return new SectionGeometryCache(world, new GeometryDiskCache(file, (long) Nvidium.config.geometry_disk_cache_size << 20, NvidiumCompactChunkVertex.STRIDE * 4, contentVersion));
+        } catch (IOException | RuntimeException e) {
+            Nvidium.LOGGER.warn("Failed to open the geometry disk cache at " + file, e);
+            return null;
+        }
+    }
+
+    //Deletes the least recently opened files until there is room for the file, and marks it as the most recent
+    private static void trimDirectory(Path directory, Path file) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        var others = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(directory, "*.bin")) {
+            for (var other : stream) {
+                if (!other.equals(file)) {
+                    others.add(other);
+                }
+            }
+        }
+        others.sort(Comparator.comparingLong(other -> -other.toFile().lastModified()));
+        for (int i = MAX_FILES - 1; i < others.size(); i++) {
+            Files.deleteIfExists(others.get(i));
+        }
+        if (Files.exists(file)) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hashString(String string) {
+        long h = 0;
+        for (int i = 0; i < string.length(); i++) {
+            h = h * 31 + string.charAt(i);
+        }
+        return mix(h ^ string.length());
+    }
+
+    private interface IBlockSource {
+        BlockState get(int x, int y, int z);
+    }
+
+    //Hash of the raw state ids of the section, the render thread and builder threads must visit the blocks in the same
+    // order. Never 0
+    private static long hashBlocks(IBlockSource blocks) {
+        long h = 0;
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x += 2) {
+                    h = mix(h ^ ((long) Block.getRawIdFromState(blocks.get(x, y, z)) << 32 | Block.getRawIdFromState(blocks.get(x + 1, y, z))));
+                }
+            }
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    //0 if the section is empty or not loaded
+    private long hashSection(int x, int y, int z) {
+        if (y < this.world.getBottomSectionCoord() || y >= this.world.getTopSectionCoord()) {
+            return 0;
+        }
+        var section = this.world.getChunk(x, z).getSection(this.world.sectionCoordToIndex(y));
+        if (section.isEmpty()) {
+            return 0;
+        }
+        return hashBlocks(section::getBlockState);
+    }
+
+    private static int packBounds(Vector3i min, Vector3i size) {
+        return min.x | size.x << 5 | (min.y | size.y << 5) << 10 | (min.z | size.z << 5) << 20;
+    }
+
+    //The cached geometry of the section if its blocks are the same as when it was stored, copied out of the mapping
+    // into host memory. Render thread
+    public RepackagedSectionOutput load(int x, int y, int z) {
+        long hash = this.hashSection(x, y, z);
+        if (hash == 0) {
+            return null;
+        }
+        synchronized (this) {
+            var record = this.record;
+            if (this.closed || !this.cache.lookup(ChunkSectionPos.asLong(x, y, z), hash, record)) {
+                return null;
+            }
+            //Kept out of the staging ring, a stand in for a section far away can wait a long time for its upload
+            var geometry = SectionGeometry.allocateHost(record.length);
+            MemoryUtil.memCopy(record.geometry, geometry.address(), record.length);
+            int b = record.bounds;
+            return new RepackagedSectionOutput(record.quads, geometry, record.offsets.clone(),
+                    new Vector3i(b & 31, (b >> 10) & 31, (b >> 20) & 31),
+                    new Vector3i((b >> 5) & 31, (b >> 15) & 31, (b >> 25) & 31), 0);
+        }
+    }
+
+    //Builder thread, slice is what the section was built from and geometry a host address of the repackaged geometry
+    public void store(WorldSlice slice, int x, int y, int z, int quads, short[] offsets, Vector3i min, Vector3i size, long geometry, int length) {
+        int bx = x << 4;
+        int by = y << 4;
+        int bz = z << 4;
+        long hash = hashBlocks((lx, ly, lz) -> slice.getBlockState(bx + lx, by + ly, bz + lz));
+        synchronized (this) {
+            if (!this.closed) {
+                this.cache.store(ChunkSectionPos.asLong(x, y, z), hash, quads, packBounds(min, size), offsets, geometry, length);
+            }
+        }
+    }
+
+    public GeometryDiskCache getCache() {
+        return this.cache;
+    }
+
+    public void delete() {
+        if (current == this) {
+            current = null;
+        }
+        synchronized (this) {
+            this.closed = true;
+            this.cache.delete();
+        }
+    }
+}
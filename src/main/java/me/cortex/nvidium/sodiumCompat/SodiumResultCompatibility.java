@@ -1,26 +1,45 @@
 package me.cortex.nvidium.sodiumCompat;
 
 import it.unimi.dsi.fastutil.longs.LongArrays;
+import me.cortex.nvidium.Nvidium;
 import net.caffeinemc.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
 import net.caffeinemc.mods.sodium.client.render.chunk.data.BuiltSectionMeshParts;
 import net.caffeinemc.mods.sodium.client.render.chunk.terrain.DefaultTerrainRenderPasses;
-import net.caffeinemc.mods.sodium.client.util.NativeBuffer;
+import net.caffeinemc.mods.sodium.client.world.WorldSlice;
 import net.minecraft.client.MinecraftClient;
 import org.joml.Vector3i;
 import org.lwjgl.system.MemoryUtil;
 
+import java.util.Arrays;
+
 public class SodiumResultCompatibility {
 
     private static final int FORMAT_SIZE = 16;
 
-    public static RepackagedSectionOutput repackage(ChunkBuildOutput result) {
+    //Slice is the world slice the section was built from
+    public static RepackagedSectionOutput repackage(ChunkBuildOutput result, WorldSlice slice) {
         int formatSize = 16;
         int geometryBytes = result.meshes.values().stream().mapToInt(a->a.getVertexData().getLength()).sum();
-        var output = new NativeBuffer(geometryBytes);
+        //Translucent geometry is resorted in place for its own section, so it cant be shared
+        var translucent = result.meshes.get(DefaultTerrainRenderPasses.TRANSLUCENT);
+        boolean shareable = Nvidium.config.geometry_dedup && (translucent == null || Arrays.stream(translucent.getVertexCounts()).sum() == 0);
+        var diskCache = geometryBytes == 0 ? null : SectionGeometryCache.current();
+        //Written straight into the upload staging memory when there is room, geometry that may be shared has to be
+        // compared on the render thread so it stays in host memory, and geometry for the disk cache is staged once
+        // it has been stored
+        var output = shareable || diskCache != null ? SectionGeometry.allocateHost(geometryBytes) : SectionGeometry.allocate(geometryBytes);
         var offsets = new short[8];
         var min = new Vector3i(2000);
         var max = new Vector3i(-2000);
-        packageSectionGeometry(formatSize, output, offsets, result, min, max);
+        long[] hash = shareable ? new long[] {geometryBytes * 0x9E3779B97F4A7C15L} : null;
+        try {
+            packageSectionGeometry(formatSize, output, offsets, result, min, max, hash);
+        } catch (RuntimeException e) {
+            output.finishWrite();
+            output.delete();
+            throw e;
+        }
+        output.finishWrite();
 
         Vector3i size;
         {
@@ -44,13 +63,44 @@ public class SodiumResultCompatibility {
             size.y = Math.min(15, Math.max(size.y, 0));
             size.z = Math.min(15, Math.max(size.z, 0));
         }
+        long geometryHash = hash == null ? 0 : finishHash(hash[0], offsets);
+        int quads = (geometryBytes/formatSize)/4;
+        if (diskCache != null) {
+            diskCache.store(slice, result.render.getChunkX(), result.render.getChunkY(), result.render.getChunkZ(), quads, offsets, min, size, output.address(), geometryBytes);
+            if (!shareable) {
+                output = output.stage();
+            }
+        }
         //NvidiumGeometryReencoder.transpileGeometry(repackagedGeometry);
-        return new RepackagedSectionOutput((geometryBytes/formatSize)/4, output, offsets, min, size);
+        return new RepackagedSectionOutput(quads, output, offsets, min, size, geometryHash);
+    }
+
+    //64 bit hash of the geometry and face offsets, built up over the source buffers while packaging. The vertices are
+    // section relative so identical sections anywhere hash the same
+    private static long hashRange(long h, long addr, long length) {
+        //Vertex data is always a multiple of 16 bytes
+        for (long i = 0; i < length; i += 16) {
+            long a = MemoryUtil.memGetLong(addr + i) * 0x87C37B91114253D5L;
+            long b = MemoryUtil.memGetLong(addr + i + 8) * 0x4CF5AD432745937FL;
+            h = Long.rotateLeft(h ^ a, 31) * 0x9E3779B97F4A7C15L + Long.rotateLeft(b, 33);
+        }
+        return h;
+    }
+
+    //Never 0
+    private static long finishHash(long h, short[] offsets) {
+        for (short offset : offsets) {
+            h = (h ^ offset) * 0xFF51AFD7ED558CCDL;
+        }
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
     }
 
-    private static void packageSectionGeometry(int formatSize, NativeBuffer output, short[] outOffsets, ChunkBuildOutput result, Vector3i min, Vector3i max) {
+    private static void packageSectionGeometry(int formatSize, SectionGeometry output, short[] outOffsets, ChunkBuildOutput result, Vector3i min, Vector3i max, long[] hash) {
         int offset = 0;
-        long outPtr = MemoryUtil.memAddress(output.getDirectBuffer());
+        long outPtr = output.address();
 
         var cameraPos = MinecraftClient.getInstance().gameRenderer.getCamera().getPos();
 
@@ -71,10 +121,10 @@ public class SodiumResultCompatibility {
 
         outOffsets[7] = (short) offset;
 
-        offset = handleSolidAndCutoutGeometry(formatSize, result, min, max, outPtr, outOffsets, offset);
+        offset = handleSolidAndCutoutGeometry(formatSize, result, min, max, outPtr, outOffsets, offset, hash);
 
-        if (offset * 4 * formatSize != output.getLength()) {
-            throw new IllegalStateException("Offset mismatch: expected " + (offset * 4 * formatSize) + " but got " + output.getLength());
+        if (offset * 4 * formatSize != output.length()) {
+            throw new IllegalStateException("Offset mismatch: expected " + (offset * 4 * formatSize) + " but got " + output.length());
         }
     }
 
@@ -140,35 +190,41 @@ public class SodiumResultCompatibility {
         return offset;
     }
 
-    private static int handleSolidAndCutoutGeometry(int formatSize, ChunkBuildOutput result, Vector3i min, Vector3i max, long outPtr, short[] outOffsets, int offset) {
+    private static int handleSolidAndCutoutGeometry(int formatSize, ChunkBuildOutput result, Vector3i min, Vector3i max, long outPtr, short[] outOffsets, int offset, long[] hash) {
         var solid = result.meshes.get(DefaultTerrainRenderPasses.SOLID);
         var cutout = result.meshes.get(DefaultTerrainRenderPasses.CUTOUT);
 
         for (int i = 0; i < 7; i++) {
             int poff = offset;
-            offset = handleGeometryType(formatSize, solid, outPtr, min, max, offset, i);
-            offset = handleGeometryType(formatSize, cutout, outPtr, min, max, offset, i);
+            offset = handleGeometryType(formatSize, solid, outPtr, min, max, offset, i, hash);
+            offset = handleGeometryType(formatSize, cutout, outPtr, min, max, offset, i, hash);
             outOffsets[i] = (short) (offset - poff);
         }
         return offset;
     }
 
-    private static int handleGeometryType(int formatSize, BuiltSectionMeshParts geometryType, long outPtr, Vector3i min, Vector3i max, int offset, int i) {
+    //Hash is null if the geometry isnt hashed
+    private static int handleGeometryType(int formatSize, BuiltSectionMeshParts geometryType, long outPtr, Vector3i min, Vector3i max, int offset, int i, long[] hash) {
         if (geometryType != null) {
             int vertexCount = geometryType.getVertexCounts()[i];
             if (vertexCount > 0) {
                 long src = MemoryUtil.memAddress(geometryType.getVertexData().getDirectBuffer());
-                long dst = outPtr + offset * 4L * formatSize;
-                MemoryUtil.memCopy(src, dst, (long) vertexCount * formatSize);
-
+                //Patched and measured in sodiums buffer, the output can be write only staging memory
                 for (int j = 0; j < vertexCount; j++) {
-                    long base = dst + (long) j * formatSize;
+                    long base = src + (long) j * formatSize;
                     byte flags = (byte) 0b100;
                     MemoryUtil.memPutByte(base + 6L, flags);
 
                     updateSectionBounds(min, max, base);
                 }
 
+                if (hash != null) {
+                    hash[0] = hashRange(hash[0], src, (long) vertexCount * formatSize);
+                }
+
+                long dst = outPtr + offset * 4L * formatSize;
+                MemoryUtil.memCopy(src, dst, (long) vertexCount * formatSize);
+
                 offset += vertexCount / 4;
             }
         }
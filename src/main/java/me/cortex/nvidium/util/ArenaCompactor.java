@@ -0,0 +1,94 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.Random;
+
+import static me.cortex.nvidium.util.SegmentedManager.SIZE_LIMIT;
+
+//Incremental compaction policy, walks allocations from the top of the space downwards and moves them into
+// holes at lower addresses, this pushes free space towards the end of the space where it gets trimmed off
+// The policy only touches the allocator, the actual data move is done by the relocator
+public class ArenaCompactor {
+    public interface IRelocator {
+        //Moves size units from src to dst, returns false if the allocation at src cannot be moved
+        boolean relocate(long src, long dst, int size);
+    }
+
+    //Max number of allocations looked at per step, bounds the cpu cost when nothing can be moved
+    private static final int MAX_ATTEMPTS = 64;
+
+    //Returns the number of units moved, never moves more than budget units
+    public static long compact(ISegmentAllocator allocator, long budget, IRelocator relocator) {
+        long moved = 0;
+        int attempts = MAX_ATTEMPTS;
+        long addr = allocator.lastAllocation();
+        while (addr != -1 && attempts-- != 0) {
+            long prev = allocator.allocationBefore(addr);
+            int size = (int) allocator.getSize(addr);
+            if (moved + size > budget) {
+                break;
+            }
+            long target = allocator.alloc(size);
+            if (target != SIZE_LIMIT) {
+                //Only moves that go down are useful, anything else just gets handed back
+                if (target < addr && relocator.relocate(addr, target, size)) {
+                    allocator.free(addr);
+                    moved += size;
+                } else {
+                    allocator.free(target);
+                }
+            }
+            addr = prev;
+        }
+        return moved;
+    }
+
+    //Density of the allocator, live units over the used span
+    public static float density(ISegmentAllocator allocator, long live) {
+        long span = allocator.getSize();
+        return span == 0 ? 1 : (float) ((double) live / span);
+    }
+
+    //Stress simulation, churns an allocator the same way chunk rebuilds do then lets the compactor recover it
+    public static void main(String[] args) {
+        for (var allocator : new ISegmentAllocator[]{new SegmentedManager(), new TLSFAllocator()}) {
+            Random r = new Random(42);
+            LongArrayList live = new LongArrayList();
+            long liveSize = 0;
+            for (int i = 0; i < 40000; i++) {
+                int size = r.nextInt(1500) + 1;
+                live.add(allocator.alloc(size));
+                liveSize += size;
+            }
+            //Evict half the sections then keep rebuilding to leave the space full of odd sized holes
+            for (int i = 0; i < 20000; i++) {
+                int idx = r.nextInt(live.size());
+                liveSize -= allocator.free(live.getLong(idx));
+                live.set(idx, live.getLong(live.size() - 1));
+                live.removeLong(live.size() - 1);
+            }
+            for (int i = 0; i < 20000; i++) {
+                int idx = r.nextInt(live.size());
+                liveSize -= allocator.free(live.getLong(idx));
+                int size = r.nextInt(1500) + 1;
+                live.set(idx, allocator.alloc(size));
+                liveSize += size;
+            }
+            //Stop the churn and compact with a budget of 1mb of 64 byte quads per frame
+            System.out.printf("%s before: %.2f%%%n", allocator.getClass().getSimpleName(), density(allocator, liveSize) * 100);
+            int frames = 0;
+            while (density(allocator, liveSize) < 0.99f && frames < 100000) {
+                if (compact(allocator, (1 << 20) / 64, (src, dst, size) -> {
+                    int idx = live.indexOf(src);
+                    live.set(idx, dst);
+                    return true;
+                }) == 0) {
+                    break;
+                }
+                frames++;
+            }
+            System.out.printf("%s after %d frames: %.2f%%%n", allocator.getClass().getSimpleName(), frames, density(allocator, liveSize) * 100);
+        }
+    }
+}
@@ -1,43 +1,100 @@
 package me.cortex.nvidium.util;
 
 import me.cortex.nvidium.Nvidium;
+import me.cortex.nvidium.config.TerrainAllocatorType;
+import me.cortex.nvidium.gl.GlFence;
 import me.cortex.nvidium.gl.RenderDevice;
 import me.cortex.nvidium.gl.buffers.IDeviceMappedBuffer;
 import me.cortex.nvidium.gl.buffers.PersistentSparseAddressableBuffer;
 
-//TODO: make it not remove and immediately deallocate the sparse pages, wait until the end of a frame to deallocate
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL42C.GL_BUFFER_UPDATE_BARRIER_BIT;
+
 public class BufferArena {
-    SegmentedManager segments = new SegmentedManager();
-    public final IDeviceMappedBuffer buffer;
+    final ISegmentAllocator segments;
+    //Note: in fallback mode the buffer is replaced when it is resized, so its device address must be reread every frame
+    public IDeviceMappedBuffer buffer;
     private long totalQuads;
     private final int vertexFormatSize;
 
     private final long memory_size;
 
+    private final RenderDevice device;
+    private final UploadingBufferStream uploadStream;
+
+    //Fallback (non sparse) buffer sizing, starts small and doubles when full up to memory_size, and halves again
+    // once the used span has stayed under a quarter of the capacity for SHRINK_FRAMES frames
+    private static final long FALLBACK_INITIAL_SIZE = 64L<<20;
+    private static final int SHRINK_FRAMES = 600;
+    private long capacity;
+    private int lowUsageFrames;
+    //Replaced buffers, freed once the gpu is done with them
+    private record RetiredBuffer(IDeviceMappedBuffer buffer, GlFence fence) {}
+    private final List<RetiredBuffer> retiredBuffers = new ArrayList<>();
 
-    public BufferArena(RenderDevice device, long memory, int vertexFormatSize) {
+    //Per page quad usage, only tracked for sparse buffers
+    private final PageOccupancy pageOccupancy;
+
+    //Compaction kicks in when the density drops below START and runs until it is back above STOP
+    private static final float COMPACT_START = 0.9f;
+    private static final float COMPACT_STOP = 0.99f;
+    private boolean compacting;
+
+    public BufferArena(RenderDevice device, long memory, int vertexFormatSize, UploadingBufferStream uploadStream) {
         this.vertexFormatSize = vertexFormatSize;
         this.memory_size = memory;
+        this.device = device;
+        this.uploadStream = uploadStream;
+        this.segments = Nvidium.config.terrain_allocator == TerrainAllocatorType.TLSF ? new TLSFAllocator() : new SegmentedManager();
         if (Nvidium.SUPPORTS_PERSISTENT_SPARSE_ADDRESSABLE_BUFFER) {
-            buffer = device.createSparseBuffer(80000000000L);//Create a 80gb buffer
+            var sparse = device.createSparseBuffer(80000000000L);//Create a 80gb buffer
+            buffer = sparse;
+            long quadSize = 4L*this.vertexFormatSize;
+            this.pageOccupancy = new PageOccupancy((int) (PersistentSparseAddressableBuffer.PAGE_SIZE/quadSize));
+            //Prefer packing into pages that are already committed over committing new ones
+            this.segments.setPlacementFilter((addr, size) -> sparse.isRangeCommitted(addr*quadSize, size*quadSize));
         } else {
-            buffer = device.createDeviceOnlyMappedBuffer(memory);
+            this.capacity = Math.min(FALLBACK_INITIAL_SIZE, memory);
+            buffer = device.createDeviceOnlyMappedBuffer(this.capacity);
             this.segments.setLimit(memory/(4L*this.vertexFormatSize));
+            this.pageOccupancy = null;
         }
         //Reserve index 0
         this.allocQuads(1);
     }
 
     public int allocQuads(int quadCount) {
+        return allocQuads(quadCount, -1);
+    }
+
+    //Allocates preferring to be directly next to the allocation at near, -1 for no preference
+    public int allocQuads(int quadCount, int near) {
         totalQuads += quadCount;
-        int addr = (int) segments.alloc(quadCount);
+        int addr = (int) (near == -1 ? segments.alloc(quadCount) : segments.allocNear(quadCount, Integer.toUnsignedLong(near)));
         if (addr == SegmentedManager.SIZE_LIMIT) {
             return addr;
         }
+        makeBacked(Integer.toUnsignedLong(addr), quadCount);
+        return addr;
+    }
+
+    //Makes sure the buffer has memory behind the quad range
+    private void makeBacked(long addr, int quadCount) {
         if (buffer instanceof PersistentSparseAddressableBuffer psab) {
-            psab.ensureAllocated(Integer.toUnsignedLong(addr) * 4L * vertexFormatSize, quadCount * 4L * vertexFormatSize);
+            psab.ensureAllocated(addr * 4L * vertexFormatSize, quadCount * 4L * vertexFormatSize);
+            pageOccupancy.add(addr, quadCount);
+        } else {
+            long end = (addr + quadCount) * 4L * vertexFormatSize;
+            if (end > capacity) {
+                long newCapacity = capacity;
+                while (newCapacity < end) {
+                    newCapacity *= 2;
+                }
+                resize(Math.min(newCapacity, memory_size));
+            }
         }
-        return addr;
     }
 
     public void free(int addr) {
@@ -45,14 +102,70 @@ public class BufferArena {
         totalQuads -= count;
         if (buffer instanceof PersistentSparseAddressableBuffer psab) {
             psab.deallocate(Integer.toUnsignedLong(addr) * 4L * vertexFormatSize, count * 4L * vertexFormatSize);
+            pageOccupancy.remove(Integer.toUnsignedLong(addr), count);
+        }
+    }
+
+    //Moves the fallback buffer into a new buffer of the given size, everything up to the end of the highest
+    // allocation is copied across
+    private void resize(long newCapacity) {
+        //Any uploads already queued target the current buffer, they have to land before it is copied
+        uploadStream.commit();
+        device.barrier(GL_BUFFER_UPDATE_BARRIER_BIT);
+        var newBuffer = device.createDeviceOnlyMappedBuffer(newCapacity);
+        long span = Math.min(Math.min(capacity, newCapacity), segments.getSize() * 4L * vertexFormatSize);
+        if (span != 0) {
+            device.copyBuffer(buffer, newBuffer, 0, 0, span);
+        }
+        //The fence is only made at the next tick so it also covers the rest of this frame
+        retiredBuffers.add(new RetiredBuffer(buffer, null));
+        buffer = newBuffer;
+        capacity = newCapacity;
+        lowUsageFrames = 0;
+    }
+
+    //Should be called once per frame before rendering, frees retired buffers and shrinks the fallback buffer
+    // after a sustained period of low usage
+    public void tick() {
+        for (int i = 0; i < retiredBuffers.size(); i++) {
+            var retired = retiredBuffers.get(i);
+            if (retired.fence == null) {
+                retiredBuffers.set(i, new RetiredBuffer(retired.buffer, new GlFence()));
+            } else if (retired.fence.signaled()) {
+                retired.fence.free();
+                retired.buffer.delete();
+                retiredBuffers.remove(i--);
+            }
+        }
+
+        if (buffer instanceof PersistentSparseAddressableBuffer) {
+            return;
+        }
+        long span = segments.getSize() * 4L * vertexFormatSize;
+        if (capacity > FALLBACK_INITIAL_SIZE && span < capacity / 4) {
+            if (++lowUsageFrames >= SHRINK_FRAMES) {
+                resize(Math.max(FALLBACK_INITIAL_SIZE, capacity / 2));
+            }
+        } else {
+            lowUsageFrames = 0;
         }
     }
 
-    public long upload(UploadingBufferStream stream, int addr) {
-        return stream.upload(buffer, Integer.toUnsignedLong(addr)*4L*vertexFormatSize, (int) segments.getSize(addr)*4*vertexFormatSize);
+    public long getByteOffset(int addr) {
+        return Integer.toUnsignedLong(addr)*4L*vertexFormatSize;
+    }
+
+    public long upload(UploadingBufferStream stream, int addr, int quadCount) {
+        return stream.upload(buffer, Integer.toUnsignedLong(addr)*4L*vertexFormatSize, quadCount*4*vertexFormatSize);
     }
 
     public void delete() {
+        for (var retired : retiredBuffers) {
+            if (retired.fence != null) {
+                retired.fence.free();
+            }
+            retired.buffer.delete();
+        }
         buffer.delete();
     }
 
@@ -60,7 +173,7 @@ public class BufferArena {
         if (buffer instanceof PersistentSparseAddressableBuffer psab) {
             return (int) ((psab.getPagesCommitted() * PersistentSparseAddressableBuffer.PAGE_SIZE) / (1024 * 1024));
         } else {
-            return (int) (memory_size/(1024*1024));
+            return (int) (capacity/(1024*1024));
         }
     }
 
@@ -72,8 +185,25 @@ public class BufferArena {
         if (buffer instanceof PersistentSparseAddressableBuffer psab) {
             return (psab.getPagesCommitted() * PersistentSparseAddressableBuffer.PAGE_SIZE);
         } else {
-            return memory_size;
+            return capacity;
+        }
+    }
+
+    //Sparse page commits/decommits done last frame, and pages that are free but not yet decommitted
+    public String getPageChurn() {
+        if (buffer instanceof PersistentSparseAddressableBuffer psab) {
+            return "+" + psab.getLastFrameCommits() + "/-" + psab.getLastFrameDecommits() + " P: " + psab.getPagesPendingDecommit();
+        }
+        return null;
+    }
+
+    //Committed but unallocated memory in pages that are in use, and how many of those pages are under a quarter full
+    public String getPageSlack() {
+        if (pageOccupancy == null) {
+            return null;
         }
+        long slackMB = (pageOccupancy.getUnusedUnits() * 4L * vertexFormatSize) / (1024 * 1024);
+        return slackMB + " MB, <25%: " + pageOccupancy.countPagesBelow(0.25f) + "/" + pageOccupancy.getUsedPages();
     }
 
     public float getFragmentation() {
@@ -81,7 +211,61 @@ public class BufferArena {
         return (float) ((double)expected/getMemoryUsed());
     }
 
-    public boolean canReuse(int addr, int quads) {
-        return this.segments.getSize(addr) == quads;
+    public int getQuadCount(int addr) {
+        return (int) segments.getSize(addr);
+    }
+
+    public boolean shouldCompact() {
+        float density = ArenaCompactor.density(this.segments, this.totalQuads);
+        this.compacting = density < (this.compacting ? COMPACT_STOP : COMPACT_START);
+        return this.compacting;
+    }
+
+    //Moves up to budget bytes of geometry down into holes with gpu side copies, the owner is told about every
+    // move before it happens so it can repoint its references, returns the number of bytes moved
+    public long compact(long budget, ArenaCompactor.IRelocator owner) {
+        long quadSize = 4L * vertexFormatSize;
+        //The translucency sorter writes to the geometry in place, make sure that has landed before copying
+        device.barrier(GL_BUFFER_UPDATE_BARRIER_BIT);
+        long moved = ArenaCompactor.compact(this.segments, budget / quadSize, (src, dst, size) -> {
+            if (!owner.relocate(src, dst, size)) {
+                return false;
+            }
+            if (buffer instanceof PersistentSparseAddressableBuffer psab) {
+                psab.ensureAllocated(dst * quadSize, size * quadSize);
+                pageOccupancy.add(dst, size);
+            }
+            device.copyBuffer(buffer, buffer, src * quadSize, dst * quadSize, size * quadSize);
+            if (buffer instanceof PersistentSparseAddressableBuffer psab) {
+                psab.deallocate(src * quadSize, size * quadSize);
+                pageOccupancy.remove(src, size);
+            }
+            return true;
+        });
+        return moved * quadSize;
+    }
+
+    //Size to allocate for a section of quads so it can grow a bit when rebuilt without moving
+    public int withHeadroom(int quads) {
+        return quads + (int) ((long) quads * Nvidium.config.terrain_rebuild_headroom / 100);
+    }
+
+    //Returns true if the allocation at addr can hold the new quad count, growing it in place if needed
+    // allocations that would be left with more than twice the headroom unused are not reused
+    public boolean tryReuse(int addr, int quads) {
+        int size = (int) this.segments.getSize(addr);
+        if (quads <= size) {
+            return size - quads <= 2 * (withHeadroom(quads) - quads);
+        }
+        int extra = withHeadroom(quads) - size;
+        if (!this.segments.expand(addr, extra)) {
+            extra = quads - size;
+            if (!this.segments.expand(addr, extra)) {
+                return false;
+            }
+        }
+        totalQuads += extra;
+        makeBacked(Integer.toUnsignedLong(addr) + size, extra);
+        return true;
     }
 }
@@ -4,55 +4,195 @@ import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import me.cortex.nvidium.gl.GlFence;
 import me.cortex.nvidium.gl.RenderDevice;
 import me.cortex.nvidium.gl.buffers.Buffer;
 import me.cortex.nvidium.gl.buffers.PersistentClientMappedBuffer;
 import me.cortex.nvidium.util.SegmentedManager;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import static org.lwjgl.opengl.GL42.glMemoryBarrier;
+import static org.lwjgl.opengl.GL44.GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT;
+
 //Download stream from gpu to cpu
+// Downloads of a frame are fenced together and handed to the executor as soon as the fence signals, the memory is
+// released back on the render thread once the callback has run
 public class DownloadTaskStream {
     public interface IDownloadFinishedCallback {void accept(long addr);}
 
-    private record Download(long addr, IDownloadFinishedCallback callback) {}
+    //A download buffer and its allocator, buffers replaced by a resize are deleted once nothing references them
+    private static final class Slot {
+        private final PersistentClientMappedBuffer buffer;
+        private final SegmentedManager allocator = new SegmentedManager();
+        private int outstanding;
+        private boolean retired;
+
+        private Slot(PersistentClientMappedBuffer buffer) {
+            this.buffer = buffer;
+            this.allocator.setLimit(buffer.size);
+        }
+    }
+
+    private record Download(Slot slot, long addr, IDownloadFinishedCallback callback, int tick) {}
+    private record DownloadFrame(GlFence fence, ObjectList<Download> downloads) {}
+
+    //Same sizing policy as the upload stream, grow when a download doesnt fit and shrink to twice the high water mark
+    private static final int RESIZE_WINDOW_FRAMES = 600;
 
-    private final SegmentedManager allocator = new SegmentedManager();
     private final RenderDevice device;
-    private PersistentClientMappedBuffer buffer;
+    private final Executor executor;
+    private Slot slot;
+    private final long minSize;
+    private final long maxSize;
+    private long highWaterMark;
+    private int windowFrames;
+    private int tickCount;
+    private int resizeCount;
+
+    private ObjectList<Download> thisFrame = new ObjectArrayList<>();
+    private final ArrayDeque<DownloadFrame> frames = new ArrayDeque<>();
+    //Downloads whose callback has run, drained on the render thread
+    private final ConcurrentLinkedQueue<Download> completed = new ConcurrentLinkedQueue<>();
+    //Callbacks handed to the executor that have not finished yet
+    private final AtomicInteger delivering = new AtomicInteger();
+
+    //Frames between a download being recorded and its callback being handed out, of the last delivered frame
+    private int lastLatency;
+
+    public DownloadTaskStream(RenderDevice device, long size) {
+        this(device, size, size, size, Runnable::run);
+    }
 
-    private int cidx;
-    private final ObjectList<Download>[] allocations;
-    public DownloadTaskStream(RenderDevice device, int frames, long size) {
+    //Callbacks are run on the executor, if that is not the render thread they must not touch gl or render thread state
+    public DownloadTaskStream(RenderDevice device, long size, long minSize, long maxSize, Executor executor) {
         this.device = device;
-        allocator.setLimit(size);
-        buffer = device.createClientMappedBuffer(size);
+        this.executor = executor;
+        this.minSize = minSize;
+        this.maxSize = Math.max(minSize, maxSize);
+        size = Math.max(this.minSize, Math.min(this.maxSize, size));
+        slot = new Slot(device.createClientMappedBuffer(size));
         TickableManager.register(this);
-        allocations = new ObjectList[frames];
-        for (int i = 0; i < frames; i++) {
-            allocations[i] = new ObjectArrayList<>();
-        }
     }
 
     public void download(Buffer source, long offset, int size, IDownloadFinishedCallback callback) {
-        long addr = allocator.alloc(size);
-        device.copyBuffer(source, buffer, offset, addr, size);
-        allocations[cidx].add(new Download(addr, callback));
+        if (!tryDownload(source, offset, size, callback)) {
+            throw new IllegalStateException("Download stream full");
+        }
+    }
+
+    //Same as download but returns false instead of throwing if the stream is full at its max size
+    public boolean tryDownload(Buffer source, long offset, int size, IDownloadFinishedCallback callback) {
+        long addr = slot.allocator.alloc(size);
+        if (addr == SegmentedManager.SIZE_LIMIT && slot.buffer.size < maxSize) {
+            resize(Math.min(maxSize, Math.max(slot.buffer.size * 2, slot.allocator.getSize() + size)));
+            addr = slot.allocator.alloc(size);
+        }
+        if (addr == SegmentedManager.SIZE_LIMIT) {
+            return false;
+        }
+        highWaterMark = Math.max(highWaterMark, slot.allocator.getSize());
+        device.copyBuffer(source, slot.buffer, offset, addr, size);
+        slot.outstanding++;
+        thisFrame.add(new Download(slot, addr, callback, tickCount));
+        return true;
+    }
+
+    //Swaps in a new download buffer, downloads still in flight keep using the old one
+    private void resize(long size) {
+        slot.retired = true;
+        releaseIfUnused(slot);
+        slot = new Slot(device.createClientMappedBuffer(size));
+        resizeCount++;
+    }
+
+    private static void releaseIfUnused(Slot slot) {
+        if (slot.retired && slot.outstanding == 0) {
+            slot.buffer.delete();
+        }
     }
 
     void tick() {
-        cidx = (cidx+1)%allocations.length;
-        for (var download : allocations[cidx]) {
-            download.callback.accept(download.addr + buffer.clientAddress());
-            allocator.free(download.addr);
+        if (!thisFrame.isEmpty()) {
+            //Make the copies visible to the client mapping before fencing them
+            glMemoryBarrier(GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT);
+            frames.add(new DownloadFrame(new GlFence(), thisFrame));
+            thisFrame = new ObjectArrayList<>();
+        }
+
+        //Fences signal in submission order so stop at the first one that hasnt
+        while (!frames.isEmpty() && frames.peek().fence.signaled()) {
+            var frame = frames.pop();
+            frame.fence.free();
+            lastLatency = tickCount - frame.downloads.get(0).tick;
+            for (var download : frame.downloads) {
+                delivering.incrementAndGet();
+                executor.execute(() -> {
+                    try {
+                        download.callback.accept(download.addr + download.slot.buffer.clientAddress());
+                    } finally {
+                        completed.add(download);
+                        delivering.decrementAndGet();
+                    }
+                });
+            }
+        }
+
+        Download download;
+        while ((download = completed.poll()) != null) {
+            download.slot.allocator.free(download.addr);
+            download.slot.outstanding--;
+            releaseIfUnused(download.slot);
+        }
+        tickCount++;
+
+        if (++windowFrames >= RESIZE_WINDOW_FRAMES) {
+            long target = Math.max(minSize, Math.min(maxSize, (highWaterMark * 2 + (1 << 20) - 1) & -(1L << 20)));
+            if (target < slot.buffer.size / 2) {
+                resize(target);
+            }
+            windowFrames = 0;
+            highWaterMark = 0;
         }
-        allocations[cidx].clear();
+    }
+
+    public long getCapacity() {
+        return slot.buffer.size;
+    }
+
+    public int getResizeCount() {
+        return resizeCount;
+    }
+
+    public int getLastLatency() {
+        return lastLatency;
+    }
+
+    public int getInFlightFrames() {
+        return frames.size();
     }
 
     public void delete() {
         TickableManager.remove(this);
-        buffer.delete();
+        //Callbacks may still be reading from the mapping
+        while (delivering.get() != 0) {
+            Thread.onSpinWait();
+        }
+        frames.forEach(frame -> frame.fence.free());
+        //Anything not yet delivered is dropped along with the buffers, retired buffers that are still referenced
+        // havent been deleted yet
+        var slots = new ReferenceOpenHashSet<Slot>();
+        slots.add(slot);
+        frames.forEach(frame -> frame.downloads.forEach(d -> slots.add(d.slot)));
+        thisFrame.forEach(d -> slots.add(d.slot));
+        completed.forEach(d -> slots.add(d.slot));
+        slots.forEach(s -> s.buffer.delete());
     }
 }
@@ -0,0 +1,265 @@
+package me.cortex.nvidium.util;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+//Persistent memory mapped cache of repackaged section geometry, keyed by section position and a hash of the section
+// contents. Records are appended to a ring in the file, once it wraps the oldest records are overwritten, so the file
+// never grows past its size. A small open addressed index points at the newest record of each section
+// The whole file is dropped when the format, vertex format or content version (resource packs) in its header differ
+// Layout: header | index slots | data ring
+// Not thread safe, callers synchronize
+public class GeometryDiskCache {
+    private static final long MAGIC = 0x4E56_4745_4F43_4143L;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int SLOT_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 48;
+    private static final int PROBES = 8;
+    //Expected average record size, sets the amount of index slots
+    private static final int AVERAGE_RECORD_SIZE = 8192;
+
+    //Header offsets
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_QUAD_SIZE = 12;
+    private static final int H_CONTENT_VERSION = 16;
+    private static final int H_SLOTS = 24;
+    private static final int H_DATA_SIZE = 32;
+    private static final int H_WRITE_HEAD = 40;
+
+    //Filled in by lookup, the geometry points into the mapping and is only valid until the next store
+    public static final class Record {
+        public int quads;
+        //Bounds of the geometry, packed by the caller
+        public int bounds;
+        public final short[] offsets = new short[8];
+        public long geometry;
+        public int length;
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final long base;
+    private final long index;
+    private final long data;
+    private final int slots;
+    private final long dataSize;
+    private final CRC32C crc = new CRC32C();
+
+    private long lookups;
+    private long hits;
+    private long stores;
+    private long bytesWritten;
+
+    public GeometryDiskCache(Path file, long size, int quadSize, long contentVersion) throws IOException {
+        size = Math.min(size, Integer.MAX_VALUE);
+        int slots = Integer.highestOneBit((int) Math.max(1024, size / AVERAGE_RECORD_SIZE));
+        long dataSize = (size - HEADER_SIZE - (long) slots * SLOT_SIZE) & -16L;
+        if (dataSize < (1 << 20)) {
+            throw new IllegalArgumentException("Cache size too small");
+        }
+        Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE + dataSize);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.base = MemoryUtil.memAddress(this.mapping);
+        this.index = this.base + HEADER_SIZE;
+        this.data = this.index + (long) slots * SLOT_SIZE;
+        this.slots = slots;
+        this.dataSize = dataSize;
+
+        if (MemoryUtil.memGetLong(this.base + H_MAGIC) != MAGIC ||
+                MemoryUtil.memGetInt(this.base + H_VERSION) != FORMAT_VERSION ||
+                MemoryUtil.memGetInt(this.base + H_QUAD_SIZE) != quadSize ||
+                MemoryUtil.memGetLong(this.base + H_CONTENT_VERSION) != contentVersion ||
+                MemoryUtil.memGetInt(this.base + H_SLOTS) != slots ||
+                MemoryUtil.memGetLong(this.base + H_DATA_SIZE) != dataSize) {
+            //New file or made by something else, start over
+            MemoryUtil.memSet(this.index, 0, (long) slots * SLOT_SIZE);
+            MemoryUtil.memPutLong(this.base + H_MAGIC, MAGIC);
+            MemoryUtil.memPutInt(this.base + H_VERSION, FORMAT_VERSION);
+            MemoryUtil.memPutInt(this.base + H_QUAD_SIZE, quadSize);
+            MemoryUtil.memPutLong(this.base + H_CONTENT_VERSION, contentVersion);
+            MemoryUtil.memPutInt(this.base + H_SLOTS, slots);
+            MemoryUtil.memPutLong(this.base + H_DATA_SIZE, dataSize);
+            MemoryUtil.memPutLong(this.base + H_WRITE_HEAD, 0);
+        }
+    }
+
+    //Section keys are packed coordinates, neighbours differ in only a few bits so they need a full mix
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        return (int) (key ^ (key >>> 33));
+    }
+
+    private long writeHead() {
+        return MemoryUtil.memGetLong(this.base + H_WRITE_HEAD);
+    }
+
+    //Slot layout: section key, content hash, record position in the ring (unwrapped, +1 so 0 is empty), record length
+    private long slot(int i) {
+        return this.index + (long) i * SLOT_SIZE;
+    }
+
+    //A record is intact until the writes have gone all the way around the ring and reached it again
+    private boolean isIntact(long slot) {
+        long position = MemoryUtil.memGetLong(slot + 16) - 1;
+        return position >= 0 && this.writeHead() <= position + this.dataSize;
+    }
+
+    private long recordAddress(long slot) {
+        return this.data + Math.floorMod(MemoryUtil.memGetLong(slot + 16) - 1, this.dataSize);
+    }
+
+    private int crc(long address, int length) {
+        this.crc.reset();
+        this.crc.update(MemoryUtil.memByteBuffer(address, length));
+        return (int) this.crc.getValue();
+    }
+
+    private long find(long sectionKey) {
+        int start = mix(sectionKey);
+        for (int p = 0; p < PROBES; p++) {
+            long slot = this.slot((start + p) & (this.slots - 1));
+            if (MemoryUtil.memGetLong(slot + 16) != 0 && MemoryUtil.memGetLong(slot) == sectionKey) {
+                return slot;
+            }
+        }
+        return 0;
+    }
+
+    //Returns true and fills the record if there is intact geometry for the section with the same contents
+    public boolean lookup(long sectionKey, long contentHash, Record record) {
+        this.lookups++;
+        long slot = this.find(sectionKey);
+        if (slot == 0 || MemoryUtil.memGetLong(slot + 8) != contentHash || !this.isIntact(slot)) {
+            return false;
+        }
+        long address = this.recordAddress(slot);
+        int length = MemoryUtil.memGetInt(address + 24);
+        //Written over or torn by a crash
+        if (MemoryUtil.memGetLong(address) != sectionKey || MemoryUtil.memGetLong(address + 8) != contentHash ||
+                length + RECORD_HEADER_SIZE != MemoryUtil.memGetInt(slot + 24) ||
+                this.crc(address + RECORD_HEADER_SIZE, length) != MemoryUtil.memGetInt(address + 28)) {
+            return false;
+        }
+        record.quads = MemoryUtil.memGetInt(address + 16);
+        record.bounds = MemoryUtil.memGetInt(address + 20);
+        for (int i = 0; i < 8; i++) {
+            record.offsets[i] = MemoryUtil.memGetShort(address + 32 + i * 2L);
+        }
+        record.geometry = address + RECORD_HEADER_SIZE;
+        record.length = length;
+        this.hits++;
+        return true;
+    }
+
+    //Stores the geometry of the section, skipped if the cache already has the same geometry for it
+    public void store(long sectionKey, long contentHash, int quads, int bounds, short[] offsets, long geometry, int length) {
+        int recordSize = (RECORD_HEADER_SIZE + length + 15) & -16;
+        if (recordSize > this.dataSize / 4) {
+            return;
+        }
+        int checksum = this.crc(geometry, length);
+        long slot = this.find(sectionKey);
+        if (slot != 0 && MemoryUtil.memGetLong(slot + 8) == contentHash && this.isIntact(slot)) {
+            long address = this.recordAddress(slot);
+            if (MemoryUtil.memGetInt(address + 24) == length && MemoryUtil.memGetInt(address + 28) == checksum) {
+                return;
+            }
+        }
+        if (slot == 0) {
+            //A free or stale slot, otherwise the one with the oldest record
+            int start = mix(sectionKey);
+            long oldest = Long.MAX_VALUE;
+            for (int p = 0; p < PROBES; p++) {
+                long candidate = this.slot((start + p) & (this.slots - 1));
+                if (!this.isIntact(candidate)) {
+                    slot = candidate;
+                    break;
+                }
+                long position = MemoryUtil.memGetLong(candidate + 16);
+                if (position < oldest) {
+                    oldest = position;
+                    slot = candidate;
+                }
+            }
+        }
+
+        //Records never wrap around the end of the ring
+        long head = this.writeHead();
+        long offset = Math.floorMod(head, this.dataSize);
+        if (offset + recordSize > this.dataSize) {
+            head += this.dataSize - offset;
+            offset = 0;
+        }
+        long address = this.data + offset;
+        MemoryUtil.memPutLong(address, sectionKey);
+        MemoryUtil.memPutLong(address + 8, contentHash);
+        MemoryUtil.memPutInt(address + 16, quads);
+        MemoryUtil.memPutInt(address + 20, bounds);
+        MemoryUtil.memPutInt(address + 24, length);
+        MemoryUtil.memPutInt(address + 28, checksum);
+        for (int i = 0; i < 8; i++) {
+            MemoryUtil.memPutShort(address + 32 + i * 2L, offsets[i]);
+        }
+        MemoryUtil.memCopy(geometry, address + RECORD_HEADER_SIZE, length);
+        MemoryUtil.memPutLong(this.base + H_WRITE_HEAD, head + recordSize);
+
+        MemoryUtil.memPutLong(slot, sectionKey);
+        MemoryUtil.memPutLong(slot + 8, contentHash);
+        MemoryUtil.memPutLong(slot + 16, head + 1);
+        MemoryUtil.memPutInt(slot + 24, RECORD_HEADER_SIZE + length);
+        this.stores++;
+        this.bytesWritten += recordSize;
+    }
+
+    public long getLookups() {
+        return this.lookups;
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getStores() {
+        return this.stores;
+    }
+
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    //Bytes of the ring holding records
+    public long getUsedBytes() {
+        return Math.min(this.writeHead(), this.dataSize);
+    }
+
+    public long getSize() {
+        return this.dataSize;
+    }
+
+    //The mapping itself goes away once it is collected, the os writes back the dirty pages in its own time
+    public void delete() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package me.cortex.nvidium.util;
+
+import me.cortex.nvidium.gl.GlFence;
+import me.cortex.nvidium.gl.RenderDevice;
+import me.cortex.nvidium.gl.buffers.IDeviceMappedBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.ARBDirectStateAccess.nglClearNamedBufferSubData;
+import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL30C.GL_R8UI;
+import static org.lwjgl.opengl.GL30C.GL_RED_INTEGER;
+import static org.lwjgl.opengl.GL42C.GL_ALL_BARRIER_BITS;
+
+//Device buffer that starts small and grows on demand instead of being allocated for the worst case up front
+// growing swaps in a bigger buffer with the old contents copied over, so the device address changes and must be
+// reread every frame
+public class GrowableDeviceBuffer {
+    private final RenderDevice device;
+    private final UploadingBufferStream uploadStream;
+    private final long maxSize;
+    private IDeviceMappedBuffer buffer;
+    private final List<RetiredBuffer> retiredBuffers = new ArrayList<>();
+    private int growCount;
+
+    public GrowableDeviceBuffer(RenderDevice device, UploadingBufferStream uploadStream, long size, long maxSize) {
+        this.device = device;
+        this.uploadStream = uploadStream;
+        this.maxSize = maxSize;
+        this.buffer = device.createDeviceOnlyMappedBuffer(Math.min(size, maxSize));
+        TickableManager.register(this);
+    }
+
+    public IDeviceMappedBuffer get() {
+        return this.buffer;
+    }
+
+    public long getDeviceAddress() {
+        return this.buffer.getDeviceAddress();
+    }
+
+    public long getSize() {
+        return this.buffer.getSize();
+    }
+
+    public int getGrowCount() {
+        return this.growCount;
+    }
+
+    //Grows the buffer to at least size bytes, doubling so repeated growth is amortized, the new space is zeroed
+    // returns false if the buffer was already big enough
+    public boolean ensureCapacity(long size) {
+        long current = this.buffer.getSize();
+        if (size <= current) {
+            return false;
+        }
+        if (size > this.maxSize) {
+            throw new IllegalStateException("Buffer cannot grow to " + size + " bytes, max is " + this.maxSize);
+        }
+        long newSize = Math.min(this.maxSize, Math.max(size, current * 2));
+        //Any uploads already queued target the current buffer, they have to land before it is copied, the gpu also
+        // writes into some of these buffers from shaders
+        this.uploadStream.commit();
+        this.device.barrier(GL_ALL_BARRIER_BITS);
+        var newBuffer = this.device.createDeviceOnlyMappedBuffer(newSize);
+        this.device.copyBuffer(this.buffer, newBuffer, 0, 0, current);
+        nglClearNamedBufferSubData(newBuffer.getId(), GL_R8UI, current, newSize - current, GL_RED_INTEGER, GL_UNSIGNED_BYTE, 0);
+        //The fence is only made at the next tick so it also covers the rest of this frame
+        this.retiredBuffers.add(new RetiredBuffer(this.buffer, null));
+        this.buffer = newBuffer;
+        this.growCount++;
+        return true;
+    }
+
+    //Frees retired buffers once the gpu is done with them
+    public void tick() {
+        for (int i = 0; i < this.retiredBuffers.size(); i++) {
+            var retired = this.retiredBuffers.get(i);
+            if (retired.fence == null) {
+                this.retiredBuffers.set(i, new RetiredBuffer(retired.buffer, new GlFence()));
+            } else if (retired.fence.signaled()) {
+                retired.fence.free();
+                retired.buffer.delete();
+                this.retiredBuffers.remove(i--);
+            }
+        }
+    }
+
+    public void delete() {
+        TickableManager.remove(this);
+        for (var retired : this.retiredBuffers) {
+            if (retired.fence != null) {
+                retired.fence.free();
+            }
+            retired.buffer.delete();
+        }
+        this.retiredBuffers.clear();
+        this.buffer.delete();
+    }
+
+    private record RetiredBuffer(IDeviceMappedBuffer buffer, GlFence fence) {}
+}
@@ -0,0 +1,41 @@
+package me.cortex.nvidium.util;
+
+//Allocates address ranges out of a linear space, addresses and sizes are in whatever unit the owner uses
+public interface ISegmentAllocator {
+    interface IRangeFilter {
+        boolean accept(long addr, int size);
+    }
+
+    //Returns the address of the allocation or SegmentedManager.SIZE_LIMIT if the limit would be exceeded
+    long alloc(int size);
+
+    //Returns the size of the freed allocation
+    int free(long addr);
+
+    //Like alloc but prefers placing the allocation directly next to the existing allocation at anchor,
+    // allocators that cant search by address just ignore the anchor
+    default long allocNear(int size, long anchor) {
+        return this.alloc(size);
+    }
+
+    //When set, alloc first looks at a bounded number of free ranges (and the end of the space) for a placement
+    // the filter accepts, and only falls back to its normal placement if there is none, null clears it
+    default void setPlacementFilter(IRangeFilter filter) {
+    }
+
+    //Attempts to grow an allocation in place, returns true on success
+    boolean expand(long addr, int extra);
+
+    long getSize(long addr);
+
+    //The end address of the highest allocation
+    long getSize();
+
+    void setLimit(long size);
+
+    //Address of the highest allocation, or -1 if there are none
+    long lastAllocation();
+
+    //Address of the closest allocation below addr, or -1 if there are none
+    long allocationBefore(long addr);
+}
@@ -0,0 +1,261 @@
+package me.cortex.nvidium.util;
+
+import java.util.Arrays;
+
+//Ordered set of longs stored as an AVL tree inside flat primitive arrays, nodes are recycled through a free list
+// so once the arrays have grown to the working set size no further allocations are made
+// lookups return node indices instead of iterators, -1 means no node
+public class LongAVLTree {
+    public static final int NONE = -1;
+
+    private long[] keys;
+    private int[] left;
+    private int[] right;
+    private byte[] height;
+
+    private int root = NONE;
+    private int freeHead = NONE;
+    private int nextNode;
+    private int size;
+
+    //Scratch state for the recursive insert/remove so they dont need to return tuples
+    private boolean modified;
+
+    public LongAVLTree() {
+        this(64);
+    }
+
+    public LongAVLTree(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.keys = new long[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.height = new byte[capacity];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public long key(int node) {
+        return this.keys[node];
+    }
+
+    public void clear() {
+        this.root = NONE;
+        this.freeHead = NONE;
+        this.nextNode = 0;
+        this.size = 0;
+    }
+
+    public boolean add(long key) {
+        this.modified = false;
+        this.root = this.insert(this.root, key);
+        if (this.modified) {
+            this.size++;
+        }
+        return this.modified;
+    }
+
+    public boolean remove(long key) {
+        this.modified = false;
+        this.root = this.delete(this.root, key);
+        if (this.modified) {
+            this.size--;
+        }
+        return this.modified;
+    }
+
+    public boolean contains(long key) {
+        int node = this.root;
+        while (node != NONE) {
+            long k = this.keys[node];
+            if (key == k) return true;
+            node = key < k ? this.left[node] : this.right[node];
+        }
+        return false;
+    }
+
+    //Smallest key >= the supplied key
+    public int ceiling(long key) {
+        int node = this.root;
+        int best = NONE;
+        while (node != NONE) {
+            long k = this.keys[node];
+            if (k == key) return node;
+            if (key < k) {
+                best = node;
+                node = this.left[node];
+            } else {
+                node = this.right[node];
+            }
+        }
+        return best;
+    }
+
+    //Smallest key > the supplied key
+    public int higher(long key) {
+        int node = this.root;
+        int best = NONE;
+        while (node != NONE) {
+            if (key < this.keys[node]) {
+                best = node;
+                node = this.left[node];
+            } else {
+                node = this.right[node];
+            }
+        }
+        return best;
+    }
+
+    //Largest key < the supplied key
+    public int lower(long key) {
+        int node = this.root;
+        int best = NONE;
+        while (node != NONE) {
+            if (this.keys[node] < key) {
+                best = node;
+                node = this.right[node];
+            } else {
+                node = this.left[node];
+            }
+        }
+        return best;
+    }
+
+    public int first() {
+        int node = this.root;
+        if (node == NONE) return NONE;
+        while (this.left[node] != NONE) node = this.left[node];
+        return node;
+    }
+
+    public int last() {
+        int node = this.root;
+        if (node == NONE) return NONE;
+        while (this.right[node] != NONE) node = this.right[node];
+        return node;
+    }
+
+    private int newNode(long key) {
+        int node;
+        if (this.freeHead != NONE) {
+            node = this.freeHead;
+            this.freeHead = this.right[node];
+        } else {
+            if (this.nextNode == this.keys.length) {
+                int cap = this.keys.length * 2;
+                this.keys = Arrays.copyOf(this.keys, cap);
+                this.left = Arrays.copyOf(this.left, cap);
+                this.right = Arrays.copyOf(this.right, cap);
+                this.height = Arrays.copyOf(this.height, cap);
+            }
+            node = this.nextNode++;
+        }
+        this.keys[node] = key;
+        this.left[node] = NONE;
+        this.right[node] = NONE;
+        this.height[node] = 1;
+        return node;
+    }
+
+    private void releaseNode(int node) {
+        this.right[node] = this.freeHead;
+        this.freeHead = node;
+    }
+
+    private int height(int node) {
+        return node == NONE ? 0 : this.height[node];
+    }
+
+    private void updateHeight(int node) {
+        this.height[node] = (byte) (Math.max(this.height(this.left[node]), this.height(this.right[node])) + 1);
+    }
+
+    private int rotateRight(int node) {
+        int l = this.left[node];
+        this.left[node] = this.right[l];
+        this.right[l] = node;
+        this.updateHeight(node);
+        this.updateHeight(l);
+        return l;
+    }
+
+    private int rotateLeft(int node) {
+        int r = this.right[node];
+        this.right[node] = this.left[r];
+        this.left[r] = node;
+        this.updateHeight(node);
+        this.updateHeight(r);
+        return r;
+    }
+
+    private int balance(int node) {
+        this.updateHeight(node);
+        int bf = this.height(this.left[node]) - this.height(this.right[node]);
+        if (bf > 1) {
+            int l = this.left[node];
+            if (this.height(this.left[l]) < this.height(this.right[l])) {
+                this.left[node] = this.rotateLeft(l);
+            }
+            return this.rotateRight(node);
+        } else if (bf < -1) {
+            int r = this.right[node];
+            if (this.height(this.right[r]) < this.height(this.left[r])) {
+                this.right[node] = this.rotateRight(r);
+            }
+            return this.rotateLeft(node);
+        }
+        return node;
+    }
+
+    private int insert(int node, long key) {
+        if (node == NONE) {
+            this.modified = true;
+            return this.newNode(key);
+        }
+        long k = this.keys[node];
+        if (key == k) {
+            return node;
+        }
+        //Note: the child has to be computed before indexing the arrays, as inserting can grow (replace) them
+        if (key < k) {
+            int child = this.insert(this.left[node], key);
+            this.left[node] = child;
+        } else {
+            int child = this.insert(this.right[node], key);
+            this.right[node] = child;
+        }
+        return this.modified ? this.balance(node) : node;
+    }
+
+    private int delete(int node, long key) {
+        if (node == NONE) {
+            return NONE;
+        }
+        long k = this.keys[node];
+        if (key < k) {
+            this.left[node] = this.delete(this.left[node], key);
+        } else if (key > k) {
+            this.right[node] = this.delete(this.right[node], key);
+        } else {
+            this.modified = true;
+            int l = this.left[node];
+            int r = this.right[node];
+            if (l == NONE || r == NONE) {
+                this.releaseNode(node);
+                return l == NONE ? r : l;
+            }
+            //Two children, pull up the successor
+            int succ = r;
+            while (this.left[succ] != NONE) succ = this.left[succ];
+            this.keys[node] = this.keys[succ];
+            this.right[node] = this.delete(r, this.keys[succ]);
+        }
+        return this.modified ? this.balance(node) : node;
+    }
+}
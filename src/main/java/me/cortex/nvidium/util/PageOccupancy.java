@@ -0,0 +1,131 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.Random;
+
+//Tracks how many units of every page are in use, pages with no units in use are considered uncommitted
+// As a placement filter it only accepts ranges that dont touch any uncommitted page
+public class PageOccupancy implements ISegmentAllocator.IRangeFilter {
+    private final int unitsPerPage;
+    private final Int2IntOpenHashMap used = new Int2IntOpenHashMap();
+    private long usedUnits;
+
+    public PageOccupancy(int unitsPerPage) {
+        this.unitsPerPage = unitsPerPage;
+    }
+
+    public void add(long addr, long size) {
+        this.update(addr, size, 1);
+    }
+
+    public void remove(long addr, long size) {
+        this.update(addr, size, -1);
+    }
+
+    private void update(long addr, long size, int sign) {
+        this.usedUnits += sign * size;
+        long end = addr + size;
+        while (addr < end) {
+            int page = (int) (addr / this.unitsPerPage);
+            long pageEnd = (page + 1L) * this.unitsPerPage;
+            int count = (int) (Math.min(end, pageEnd) - addr);
+            if (this.used.addTo(page, sign * count) + sign * count == 0) {
+                this.used.remove(page);
+            }
+            addr += count;
+        }
+    }
+
+    @Override
+    public boolean accept(long addr, int size) {
+        int pstart = (int) (addr / this.unitsPerPage);
+        int pend = (int) ((addr + size + this.unitsPerPage - 1) / this.unitsPerPage);
+        for (int page = pstart; page < pend; page++) {
+            if (!this.used.containsKey(page)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getUsedPages() {
+        return this.used.size();
+    }
+
+    //Units in pages that are in use but not allocated to anything
+    public long getUnusedUnits() {
+        return (long) this.used.size() * this.unitsPerPage - this.usedUnits;
+    }
+
+    //Number of used pages that are filled less than the fraction
+    public int countPagesBelow(float fill) {
+        int count = 0;
+        for (Int2IntMap.Entry entry : this.used.int2IntEntrySet()) {
+            if (entry.getIntValue() < fill * this.unitsPerPage) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //Churns each allocator the same way chunk rebuilds do, with and without the page filter, and compares the
+    // number of pages that end up committed, units are 64 byte quads in 1mb pages
+    public static void main(String[] args) {
+        int unitsPerPage = (1 << 20) / 64;
+        for (boolean filtered : new boolean[]{false, true}) {
+            for (var allocator : new ISegmentAllocator[]{new SegmentedManager(), new TLSFAllocator()}) {
+                Random r = new Random(42);
+                PageOccupancy pages = new PageOccupancy(unitsPerPage);
+                if (filtered) {
+                    allocator.setPlacementFilter(pages);
+                }
+                LongArrayList live = new LongArrayList();
+                for (int i = 0; i < 40000; i++) {
+                    int size = r.nextInt(1500) + 1;
+                    long addr = allocator.alloc(size);
+                    pages.add(addr, size);
+                    live.add(addr);
+                }
+                //Alternate between unloading part of the world and loading new terrain, with rebuilds throughout
+                // sections loaded together get unloaded together, so eviction drops runs in load order
+                long pageSum = 0;
+                int frames = 0;
+                for (int cycle = 0; cycle < 20; cycle++) {
+                    for (int i = 0; i < 10; i++) {
+                        int from = r.nextInt(live.size() - 2000);
+                        for (int j = from; j < from + 2000; j++) {
+                            long old = live.getLong(j);
+                            pages.remove(old, allocator.free(old));
+                        }
+                        live.removeElements(from, from + 2000);
+                    }
+                    for (int i = 0; i < 40000; i++) {
+                        //Rebuild an existing section
+                        int idx = r.nextInt(live.size());
+                        long old = live.getLong(idx);
+                        pages.remove(old, allocator.free(old));
+                        int size = r.nextInt(1500) + 1;
+                        long addr = allocator.alloc(size);
+                        pages.add(addr, size);
+                        live.set(idx, addr);
+                        //Load a new section
+                        if (i % 2 == 0) {
+                            size = r.nextInt(1500) + 1;
+                            addr = allocator.alloc(size);
+                            pages.add(addr, size);
+                            live.add(addr);
+                        }
+                        pageSum += pages.getUsedPages();
+                        frames++;
+                    }
+                }
+                System.out.printf("%s%s: avg pages %d, final pages %d, unused %d MB, pages under 50%% full %d%n",
+                        allocator.getClass().getSimpleName(), filtered ? " (page aware)" : "",
+                        pageSum / frames, pages.getUsedPages(), pages.getUnusedUnits() * 64 / (1 << 20), pages.countPagesBelow(0.5f));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package me.cortex.nvidium.util;
+
+import java.util.Arrays;
+
+//Lsd radix sort of non negative int keys a byte at a time, the scratch buffers are kept between calls so sorting
+// doesnt allocate once warmed up. Passes where every key has the same digit are skipped, so small keys (e.g. packed
+// distance|id with a short distance) only pay for the digits they use
+public class RadixSorter {
+    private final int[] counts = new int[256];
+    private int[] scratch = new int[256];
+
+    //Sorts the first count keys in place in ascending order
+    public void sort(int[] keys, int count) {
+        if (count < 2) {
+            return;
+        }
+        if (this.scratch.length < count) {
+            this.scratch = new int[Math.max(count, this.scratch.length * 2)];
+        }
+        int[] src = keys;
+        int[] dst = this.scratch;
+        for (int shift = 0; shift < 32; shift += 8) {
+            var counts = this.counts;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < count; i++) {
+                counts[(src[i] >>> shift) & 0xFF]++;
+            }
+            if (counts[(src[0] >>> shift) & 0xFF] == count) {
+                continue;
+            }
+            int sum = 0;
+            for (int i = 0; i < 256; i++) {
+                int c = counts[i];
+                counts[i] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < count; i++) {
+                int key = src[i];
+                dst[counts[(key >>> shift) & 0xFF]++] = key;
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if (src != keys) {
+            System.arraycopy(src, 0, keys, 0, count);
+        }
+    }
+}
@@ -2,27 +2,32 @@ package me.cortex.nvidium.util;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
-import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
 
 import java.util.Random;
 
-//TODO: replace the LongAVLTreeSet with a custom implementation that doesnt cause allocations when searching
-// and see if something like a RBTree is any better
-public class SegmentedManager {
+import static me.cortex.nvidium.util.LongAVLTree.NONE;
+
+//Both sets are backed by array based trees that recycle their nodes, so alloc/free/expand/getSize dont allocate
+// once the trees have grown to the working set
+public class SegmentedManager implements ISegmentAllocator {
     public static final long SIZE_LIMIT = -1;
 
     private final int ADDR_BITS = 34;//This gives max size per allocation of 2^30 and max address of 2^39
     private final int SIZE_BITS = 64 - ADDR_BITS;
     private final long SIZE_MSK = (1L<<SIZE_BITS)-1;
     private final long ADDR_MSK = (1L<<ADDR_BITS)-1;
-    private final LongRBTreeSet FREE = new LongRBTreeSet();//Size Address
-    private final LongRBTreeSet TAKEN = new LongRBTreeSet();//Address Size
+    private final LongAVLTree FREE = new LongAVLTree();//Size Address
+    private final LongAVLTree TAKEN = new LongAVLTree();//Address Size
 
     private long sizeLimit = Long.MAX_VALUE;
     private long totalSize;
+    private IRangeFilter placementFilter;
+    //Max number of free slots looked at when searching for a placement the filter accepts
+    private static final int MAX_FILTER_CANDIDATES = 32;
     //Flags
     public boolean resized;//If the required memory of the entire buffer grew
 
+    @Override
     public long getSize() {
         return totalSize;
     }
@@ -31,11 +36,22 @@ public class SegmentedManager {
 
     }*/
 
+    @Override
+    public void setPlacementFilter(IRangeFilter filter) {
+        this.placementFilter = filter;
+    }
+
+    @Override
     public long alloc(int size) {
         if (size == 0) throw new IllegalArgumentException();
-        //This is stupid, iterator is not inclusive
-        var iter = FREE.iterator(((long) size << ADDR_BITS)-1);
-        if (!iter.hasNext()) {//No free space for allocation
+        if (placementFilter != null) {
+            long addr = allocFiltered(size);
+            if (addr != SIZE_LIMIT) {
+                return addr;
+            }
+        }
+        int node = FREE.ceiling((long) size << ADDR_BITS);
+        if (node == NONE) {//No free space for allocation
             //Create new allocation
             resized = true;
             long addr = totalSize;
@@ -46,8 +62,8 @@ public class SegmentedManager {
             TAKEN.add((addr<<SIZE_BITS)|((long) size));
             return addr;
         } else {
-            long slot = iter.nextLong();
-            iter.remove();
+            long slot = FREE.key(node);
+            FREE.remove(slot);
             if ((slot >>> ADDR_BITS) == size) {//If the allocation and slot is the same size, just add it to the taken
                 TAKEN.add((slot<<SIZE_BITS)|(slot >>> ADDR_BITS));
             } else {
@@ -59,20 +75,124 @@ public class SegmentedManager {
         }
     }
 
-    public int free(long addr) {//Returns size of freed memory
-        addr &= ADDR_MSK;//encase addr stores shit in its upper bits
-        var iter = TAKEN.iterator(addr<<SIZE_BITS);//Dont need to include -1 as size != 0
-        long slot = iter.nextLong();
+    //Walks the free slots from the best fit upwards trying both the bottom and the top of each slot, then the end
+    // of the space, returns SIZE_LIMIT if the filter accepted none of them
+    private long allocFiltered(int size) {
+        int node = FREE.ceiling((long) size << ADDR_BITS);
+        for (int i = 0; node != NONE && i < MAX_FILTER_CANDIDATES; i++) {
+            long slot = FREE.key(node);
+            long start = slot&ADDR_MSK;
+            long top = start + (slot >>> ADDR_BITS) - size;
+            if (placementFilter.accept(start, size)) {
+                return takeFromSlot(slot, start, size);
+            }
+            if (top != start && placementFilter.accept(top, size)) {
+                return takeFromSlot(slot, top, size);
+            }
+            node = FREE.higher(slot);
+        }
+        if (totalSize+size<=sizeLimit && placementFilter.accept(totalSize, size)) {
+            long addr = totalSize;
+            resized = true;
+            totalSize += size;
+            TAKEN.add((addr<<SIZE_BITS)|size);
+            return addr;
+        }
+        return SIZE_LIMIT;
+    }
+
+    //Allocates [addr, addr+size) out of the free slot, putting whatever is left on either side back into FREE
+    private long takeFromSlot(long slot, long addr, int size) {
+        long start = slot&ADDR_MSK;
+        long end = start + (slot >>> ADDR_BITS);
+        FREE.remove(slot);
+        TAKEN.add((addr<<SIZE_BITS)|size);
+        if (addr != start) {
+            FREE.add(((addr-start)<<ADDR_BITS)|start);
+        }
+        if (addr+size != end) {
+            FREE.add(((end-(addr+size))<<ADDR_BITS)|(addr+size));
+        }
+        resized = false;
+        return addr;
+    }
+
+    //Tries the holes directly after and before the anchor allocation before falling back to a best fit alloc
+    @Override
+    public long allocNear(int size, long anchor) {
+        if (size == 0) throw new IllegalArgumentException();
+        anchor &= ADDR_MSK;
+        int node = TAKEN.higher(anchor<<SIZE_BITS);
+        if (node != NONE && TAKEN.key(node)>>>SIZE_BITS == anchor) {
+            long slot = TAKEN.key(node);
+            long end = anchor + (slot&SIZE_MSK);
+            int nextNode = TAKEN.higher(slot);
+            if (nextNode == NONE) {
+                //Anchor is the last allocation, appending keeps it adjacent
+                if (totalSize+size<=sizeLimit) {
+                    resized = true;
+                    totalSize += size;
+                    TAKEN.add((end<<SIZE_BITS)|size);
+                    return end;
+                }
+            } else {
+                long gap = (TAKEN.key(nextNode)>>>SIZE_BITS) - end;
+                if (gap >= size) {
+                    FREE.remove((gap<<ADDR_BITS)|end);
+                    TAKEN.add((end<<SIZE_BITS)|size);
+                    if (gap != size) {
+                        FREE.add(((gap-size)<<ADDR_BITS)|(end+size));
+                    }
+                    resized = false;
+                    return end;
+                }
+            }
+            int prevNode = TAKEN.lower(slot);
+            long prevEnd = prevNode == NONE ? 0 : (TAKEN.key(prevNode)>>>SIZE_BITS) + (TAKEN.key(prevNode)&SIZE_MSK);
+            long gap = anchor - prevEnd;
+            if (gap >= size) {
+                //Take the top of the hole so it stays touching the anchor
+                long addr = anchor - size;
+                FREE.remove((gap<<ADDR_BITS)|prevEnd);
+                TAKEN.add((addr<<SIZE_BITS)|size);
+                if (gap != size) {
+                    FREE.add(((gap-size)<<ADDR_BITS)|prevEnd);
+                }
+                resized = false;
+                return addr;
+            }
+        }
+        return alloc(size);
+    }
+
+    //Finds the taken slot starting at addr, throws if there is none
+    private long findTaken(long addr) {
+        int node = TAKEN.higher(addr<<SIZE_BITS);//Dont need to include -1 as size != 0
+        if (node == NONE) {
+            throw new IllegalArgumentException();
+        }
+        long slot = TAKEN.key(node);
         if (slot>>SIZE_BITS != addr) {
             throw new IllegalStateException();
         }
+        return slot;
+    }
+
+    @Override
+    public int free(long addr) {//Returns size of freed memory
+        addr &= ADDR_MSK;//encase addr stores shit in its upper bits
+        long slot = findTaken(addr);
         long size = slot&SIZE_MSK;
-        iter.remove();
+        //Note: node indices are not stable across removals, so grab the neighbours keys first
+        int prevNode = TAKEN.lower(slot);
+        int nextNode = TAKEN.higher(slot);
+        long prevSlot = prevNode == NONE ? 0 : TAKEN.key(prevNode);
+        long nextSlot = nextNode == NONE ? 0 : TAKEN.key(nextNode);
+        TAKEN.remove(slot);
 
         //Note: if there is a previous entry, it means that it is guaranteed for the ending address to either
         // be the addr, or indicate a free slot that needs to be merged
-        if (iter.hasPrevious()) {
-            long prevSlot = iter.previousLong();
+        if (prevNode != NONE) {
             long endAddr = (prevSlot>>>SIZE_BITS) + (prevSlot&SIZE_MSK);
             if (endAddr != addr) {//It means there is a free slot that needs to get merged into
                 long delta = (addr - endAddr);
@@ -80,7 +200,6 @@ public class SegmentedManager {
                 //Generate a new slot to get put into FREE
                 slot = (endAddr<<SIZE_BITS) | ((slot&SIZE_MSK) + delta);
             }
-            iter.nextLong();//Need to reset the iter into its state
         }//If there is no previous it means were at the start of the buffer, we might need to merge with block 0 if we are not block 0
         else if (!FREE.isEmpty()) {// if free is not empty it means we must merge with block of free starting at 0
             if (FREE.remove(addr<<ADDR_BITS)) {//Attempt to remove block 0, this is very dodgy as it assumes block zero is 0 addr n size
@@ -90,8 +209,7 @@ public class SegmentedManager {
 
         //If there is a next element it is guarenteed to either be the next block, or indicate that there is
         // a block that needs to be merged into
-        if (iter.hasNext()) {
-            long nextSlot = iter.nextLong();
+        if (nextNode != NONE) {
             long endAddr = (slot>>>SIZE_BITS) + (slot&SIZE_MSK);
             if (endAddr != nextSlot>>>SIZE_BITS) {//It means there is a memory block to be merged in FREE
                 long delta = ((nextSlot>>>SIZE_BITS) - endAddr);
@@ -115,27 +233,27 @@ public class SegmentedManager {
 
 
     //Attempts to expand an allocation, returns true on success
+    @Override
     public boolean expand(long addr, int extra) {
         addr &= ADDR_MSK;//encase addr stores shit in its upper bits
-        var iter = TAKEN.iterator(addr<<SIZE_BITS);
-        if (!iter.hasNext()) {
+        int node = TAKEN.higher(addr<<SIZE_BITS);
+        if (node == NONE) {
             return false;
         }
-        long slot = iter.nextLong();
+        long slot = TAKEN.key(node);
         if (slot>>SIZE_BITS != addr) {
             throw new IllegalStateException();
         }
         long updatedSlot = (slot & (ADDR_MSK << SIZE_BITS)) | ((slot & SIZE_MSK) + extra);
         resized = false;
-        if (iter.hasNext()) {
-            long next = iter.nextLong();
+        int nextNode = TAKEN.higher(slot);
+        if (nextNode != NONE) {
+            long next = TAKEN.key(nextNode);
             long endAddr = (slot>>>SIZE_BITS)+(slot&SIZE_MSK);
             long delta = (next>>>SIZE_BITS) - endAddr;
             if (extra <= delta) {
                 FREE.remove((delta<<ADDR_BITS)|endAddr);//Should assert this
-                iter.previousLong();//FOR SOME REASON NEED  TO DO IT TWICE I HAVE NO IDEA WHY
-                iter.previousLong();
-                iter.remove();//Remove the allocation so it can be updated
+                TAKEN.remove(slot);//Remove the allocation so it can be updated
                 TAKEN.add(updatedSlot);//Update the taken allocation
                 if (extra != delta) {//More space than needed, need to add a new FREE block
                     FREE.add(((delta-extra)<<ADDR_BITS)|(endAddr+extra));
@@ -148,7 +266,7 @@ public class SegmentedManager {
         } else {//We are at the end of the buffer, we can expand as we like
             if (totalSize+extra>sizeLimit)//If expanding and we would exceed the size limit, dont resize
                 return false;
-            iter.remove();
+            TAKEN.remove(slot);
             TAKEN.add(updatedSlot);
             totalSize += extra;
             resized = true;
@@ -156,16 +274,24 @@ public class SegmentedManager {
         }
     }
 
+    @Override
     public long getSize(long addr) {
         addr &= ADDR_MSK;
-        var iter = TAKEN.iterator(addr << SIZE_BITS);
-        if (!iter.hasNext())
-            throw new IllegalArgumentException();
-        long slot = iter.nextLong();
-        if (slot>>SIZE_BITS != addr) {
-            throw new IllegalStateException();
-        }
-        return slot&SIZE_MSK;
+        return findTaken(addr)&SIZE_MSK;
+    }
+
+
+    @Override
+    public long lastAllocation() {
+        int node = TAKEN.last();
+        return node == NONE ? -1 : TAKEN.key(node)>>>SIZE_BITS;
+    }
+
+    @Override
+    public long allocationBefore(long addr) {
+        addr &= ADDR_MSK;
+        int node = TAKEN.lower(addr<<SIZE_BITS);
+        return node == NONE ? -1 : TAKEN.key(node)>>>SIZE_BITS;
     }
 
 
@@ -231,6 +357,7 @@ public class SegmentedManager {
         }
     }
 
+    @Override
     public void setLimit(long size) {
         this.sizeLimit = size;
     }
@@ -0,0 +1,83 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lwjgl.system.MemoryUtil;
+
+//Pool of off heap blocks in power of two size classes, blocks are carved out of larger slabs and recycled through a
+// free list per class so small, frequently resized allocations dont each go through the native allocator
+// Slabs are only returned to the os when the pool is deleted. Not thread safe
+public class SlabPool {
+    private final int minShift;
+    private final int maxShift;
+    private final int slabSize;
+    private final LongArrayList[] freeLists;
+    private final LongArrayList slabs = new LongArrayList();
+
+    private long reservedBytes;
+    private long usedBytes;
+
+    public SlabPool(int minBlockSize, int maxBlockSize, int slabSize) {
+        if (Integer.bitCount(minBlockSize) != 1 || Integer.bitCount(maxBlockSize) != 1 || maxBlockSize < minBlockSize || slabSize % maxBlockSize != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.minShift = Integer.numberOfTrailingZeros(minBlockSize);
+        this.maxShift = Integer.numberOfTrailingZeros(maxBlockSize);
+        this.slabSize = slabSize;
+        this.freeLists = new LongArrayList[this.maxShift - this.minShift + 1];
+        for (int i = 0; i < this.freeLists.length; i++) {
+            this.freeLists[i] = new LongArrayList();
+        }
+    }
+
+    //Size of the block that an allocation of size bytes gets
+    public int blockSize(int size) {
+        if (size > 1 << this.maxShift) {
+            throw new IllegalArgumentException("Allocation of " + size + " bytes larger than the max block size");
+        }
+        return Math.max(1 << this.minShift, Integer.highestOneBit(Math.max(size, 1) - 1) << 1);
+    }
+
+    //Returns the address of a block of at least size bytes, the contents are undefined
+    public long alloc(int size) {
+        int blockSize = this.blockSize(size);
+        var freeList = this.freeLists[Integer.numberOfTrailingZeros(blockSize) - this.minShift];
+        if (freeList.isEmpty()) {
+            long slab = MemoryUtil.nmemAlloc(this.slabSize);
+            if (slab == 0) {
+                throw new OutOfMemoryError("Could not allocate slab");
+            }
+            this.slabs.add(slab);
+            this.reservedBytes += this.slabSize;
+            for (long offset = this.slabSize - blockSize; offset >= 0; offset -= blockSize) {
+                freeList.add(slab + offset);
+            }
+        }
+        this.usedBytes += blockSize;
+        return freeList.removeLong(freeList.size() - 1);
+    }
+
+    //Size must be the size the block was allocated with
+    public void free(long addr, int size) {
+        int blockSize = this.blockSize(size);
+        this.freeLists[Integer.numberOfTrailingZeros(blockSize) - this.minShift].add(addr);
+        this.usedBytes -= blockSize;
+    }
+
+    public long getReservedBytes() {
+        return this.reservedBytes;
+    }
+
+    public long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    public void delete() {
+        this.slabs.forEach(MemoryUtil::nmemFree);
+        this.slabs.clear();
+        for (var freeList : this.freeLists) {
+            freeList.clear();
+        }
+        this.reservedBytes = 0;
+        this.usedBytes = 0;
+    }
+}
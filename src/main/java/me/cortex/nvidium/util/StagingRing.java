@@ -0,0 +1,174 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.nvidium.gl.GlFence;
+import me.cortex.nvidium.gl.RenderDevice;
+import me.cortex.nvidium.gl.buffers.Buffer;
+import me.cortex.nvidium.gl.buffers.PersistentClientMappedBuffer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Multi producer staging ring, chunk builder threads reserve space with a single cas on the head and write their
+// geometry straight into the mapped upload memory, the render thread then only has to record the copy
+// Positions are monotonic byte counters, the buffer offset is position % size. Reservations are released out of
+// order (on the render thread once the copy out of them has been retired by a fence) and the tail only advances
+// over released ranges, a reservation that would wrap around the end skips to the start of the buffer instead
+public class StagingRing {
+    private static volatile StagingRing current;
+
+    private final RenderDevice device;
+    private final PersistentClientMappedBuffer buffer;
+    private final long size;
+
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    //Builder threads currently writing into the ring, the ring cant be unmapped while this is not 0
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile boolean closed;
+
+    //Ranges (start, end) released this frame whose copies still need to be fenced
+    private LongArrayList releasedThisFrame = new LongArrayList();
+    //Ranges that were never copied out of, can be released from any thread
+    private final LongArrayList discarded = new LongArrayList();
+    private final ArrayDeque<ReleaseFrame> frames = new ArrayDeque<>();
+    //Retired ranges waiting for the tail to reach them, start -> end
+    private final Long2LongOpenHashMap retired = new Long2LongOpenHashMap();
+
+    private record ReleaseFrame(GlFence fence, LongArrayList ranges) {}
+
+    //Statistics
+    private final AtomicInteger stagedCount = new AtomicInteger();
+    private final AtomicInteger fallbackCount = new AtomicInteger();
+
+    public StagingRing(RenderDevice device, long size) {
+        this.device = device;
+        this.size = size;
+        this.buffer = device.createClientMappedBuffer(size);
+        TickableManager.register(this);
+        current = this;
+    }
+
+    //The ring of the active renderer, or null if there is none
+    public static StagingRing current() {
+        return current;
+    }
+
+    public record Reservation(StagingRing ring, long start, long position, int size) {
+        public long address() {
+            return this.ring.buffer.addr + this.position % this.ring.size;
+        }
+    }
+
+    //Reserves size bytes and enters a write, returns null if the ring is full or closed in which case the caller
+    // should fall back to its own memory. endWrite must be called once the data has been written
+    public Reservation reserve(int size) {
+        if (size <= 0 || size > this.size) {
+            return null;
+        }
+        this.writers.incrementAndGet();
+        if (this.closed) {
+            this.writers.decrementAndGet();
+            return null;
+        }
+        while (true) {
+            long start = this.head.get();
+            long position = start;
+            if ((position % this.size) + size > this.size) {
+                //Dont split across the end, skip to the start of the buffer, the skipped bytes belong to this reservation
+                position += this.size - (position % this.size);
+            }
+            long end = position + size;
+            if (end - this.tail > this.size) {
+                this.writers.decrementAndGet();
+                this.fallbackCount.incrementAndGet();
+                return null;
+            }
+            if (this.head.compareAndSet(start, end)) {
+                this.stagedCount.incrementAndGet();
+                return new Reservation(this, start, position, size);
+            }
+        }
+    }
+
+    public void endWrite() {
+        this.writers.decrementAndGet();
+    }
+
+    //Render thread only, queues the copy of the reservation into the target and releases it once the frame retires
+    public void copy(Reservation reservation, UploadingBufferStream stream, Buffer target, long targetOffset) {
+        long offset = reservation.position % this.size;
+        this.device.flush(this.buffer, offset, reservation.size);
+        stream.copy(this.buffer, offset, target, targetOffset, reservation.size);
+        this.releasedThisFrame.add(reservation.start);
+        this.releasedThisFrame.add(reservation.position + reservation.size);
+    }
+
+    //Releases a reservation that was never copied out of, can be called from any thread
+    public void discard(Reservation reservation) {
+        synchronized (this.discarded) {
+            this.discarded.add(reservation.start);
+            this.discarded.add(reservation.position + reservation.size);
+        }
+    }
+
+    //Should be called at the end of the frame after the upload stream has been committed
+    public void tick() {
+        if (!this.releasedThisFrame.isEmpty()) {
+            this.frames.add(new ReleaseFrame(new GlFence(), this.releasedThisFrame));
+            this.releasedThisFrame = new LongArrayList();
+        }
+        while (!this.frames.isEmpty() && this.frames.peek().fence.signaled()) {
+            var frame = this.frames.pop();
+            frame.fence.free();
+            this.retire(frame.ranges);
+        }
+        synchronized (this.discarded) {
+            this.retire(this.discarded);
+            this.discarded.clear();
+        }
+        long tail = this.tail;
+        while (this.retired.containsKey(tail)) {
+            tail = this.retired.remove(tail);
+        }
+        this.tail = tail;
+    }
+
+    private void retire(LongArrayList ranges) {
+        for (int i = 0; i < ranges.size(); i += 2) {
+            this.retired.put(ranges.getLong(i), ranges.getLong(i + 1));
+        }
+    }
+
+    public long getUsedBytes() {
+        return this.head.get() - this.tail;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    //Share of section geometry that was written straight into the ring
+    public float getStagedRate() {
+        int staged = this.stagedCount.get();
+        int total = staged + this.fallbackCount.get();
+        return total == 0 ? 0 : (float) staged / total;
+    }
+
+    public void delete() {
+        this.closed = true;
+        if (current == this) {
+            current = null;
+        }
+        //Wait for any builder thread that is still writing into the mapping
+        while (this.writers.get() != 0) {
+            Thread.onSpinWait();
+        }
+        TickableManager.remove(this);
+        this.frames.forEach(frame -> frame.fence.free());
+        this.buffer.delete();
+    }
+}
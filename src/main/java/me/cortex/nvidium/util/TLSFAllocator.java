@@ -0,0 +1,445 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+
+import static me.cortex.nvidium.util.SegmentedManager.SIZE_LIMIT;
+
+//Two level segregated fit allocator, alloc/free/expand are all constant time
+// free blocks are bucketed by (log2(size), next SL_BITS bits of size), a search rounds the request up to the next
+// bucket so any block in the found bucket is guaranteed to fit, this bounds the waste from picking a bucket to 1/SL_COUNT
+// Block metadata lives in flat arrays indexed by a block handle so nothing is allocated once the pool is warm
+public class TLSFAllocator implements ISegmentAllocator {
+    private static final int NONE = -1;
+    private static final int SL_BITS = 4;
+    private static final int SL_COUNT = 1<<SL_BITS;
+    private static final int FL_COUNT = 32;
+
+    private int flBitmap;
+    private final int[] slBitmaps = new int[FL_COUNT];
+    private final int[] freeHeads = new int[FL_COUNT * SL_COUNT];
+
+    //Block pool
+    private long[] blockAddr;
+    private int[] blockSize;
+    private int[] prevPhys;
+    private int[] nextPhys;
+    private int[] prevFree;
+    private int[] nextFree;
+    private boolean[] isFree;
+    private int poolNext;
+    private int poolFreeHead = NONE;
+
+    private final Long2IntOpenHashMap addr2block = new Long2IntOpenHashMap();
+    private int tail = NONE;
+
+    private long sizeLimit = Long.MAX_VALUE;
+    private long totalSize;
+    private IRangeFilter placementFilter;
+    //Max number of free blocks looked at when searching for a placement the filter accepts
+    private static final int MAX_FILTER_CANDIDATES = 32;
+
+    public TLSFAllocator() {
+        Arrays.fill(this.freeHeads, NONE);
+        this.addr2block.defaultReturnValue(NONE);
+        int cap = 1024;
+        this.blockAddr = new long[cap];
+        this.blockSize = new int[cap];
+        this.prevPhys = new int[cap];
+        this.nextPhys = new int[cap];
+        this.prevFree = new int[cap];
+        this.nextFree = new int[cap];
+        this.isFree = new boolean[cap];
+    }
+
+    @Override
+    public void setPlacementFilter(IRangeFilter filter) {
+        this.placementFilter = filter;
+    }
+
+    @Override
+    public long alloc(int size) {
+        if (size <= 0) throw new IllegalArgumentException();
+        if (this.placementFilter != null) {
+            long addr = this.allocFiltered(size);
+            if (addr != SIZE_LIMIT) {
+                return addr;
+            }
+        }
+        int block = this.findSuitable(size);
+        if (block == NONE) {
+            //Nothing free is big enough, append to the end of the space
+            if (this.totalSize + size > this.sizeLimit) {
+                return SIZE_LIMIT;
+            }
+            block = this.newBlock(this.totalSize, size);
+            this.linkPhysAfter(this.tail, block);
+            this.totalSize += size;
+        } else {
+            this.removeFree(block);
+            int remaining = this.blockSize[block] - size;
+            if (remaining != 0) {
+                int split = this.newBlock(this.blockAddr[block] + size, remaining);
+                this.blockSize[block] = size;
+                this.linkPhysAfter(block, split);
+                this.insertFree(split);
+            }
+        }
+        this.isFree[block] = false;
+        this.addr2block.put(this.blockAddr[block], block);
+        return this.blockAddr[block];
+    }
+
+    //Walks the free lists from the size class of the request upwards trying both the bottom and the top of each
+    // block, then the end of the space, returns SIZE_LIMIT if the filter accepted none of them
+    private long allocFiltered(int size) {
+        int cls = mapping(size);
+        int fl = cls >>> SL_BITS;
+        int slMap = this.slBitmaps[fl] & (~0 << (cls & (SL_COUNT - 1)));
+        int candidates = MAX_FILTER_CANDIDATES;
+        while (candidates != 0) {
+            if (slMap == 0) {
+                int flMap = fl + 1 >= FL_COUNT ? 0 : this.flBitmap & (~0 << (fl + 1));
+                if (flMap == 0) {
+                    break;
+                }
+                fl = Integer.numberOfTrailingZeros(flMap);
+                slMap = this.slBitmaps[fl];
+            }
+            int sl = Integer.numberOfTrailingZeros(slMap);
+            slMap &= slMap - 1;
+            for (int block = this.freeHeads[(fl << SL_BITS) | sl]; block != NONE && candidates != 0; block = this.nextFree[block], candidates--) {
+                //The first class can hold blocks smaller than the request
+                if (this.blockSize[block] < size) {
+                    continue;
+                }
+                long start = this.blockAddr[block];
+                long top = start + this.blockSize[block] - size;
+                if (this.placementFilter.accept(start, size)) {
+                    return this.takeFromBlock(block, start, size);
+                }
+                if (top != start && this.placementFilter.accept(top, size)) {
+                    return this.takeFromBlock(block, top, size);
+                }
+            }
+        }
+        if (this.totalSize + size <= this.sizeLimit && this.placementFilter.accept(this.totalSize, size)) {
+            int block = this.newBlock(this.totalSize, size);
+            this.linkPhysAfter(this.tail, block);
+            this.totalSize += size;
+            this.addr2block.put(this.blockAddr[block], block);
+            return this.blockAddr[block];
+        }
+        return SIZE_LIMIT;
+    }
+
+    //Allocates either the bottom or the top size units of a free block
+    private long takeFromBlock(int block, long addr, int size) {
+        this.removeFree(block);
+        int placed = block;
+        if (this.blockSize[block] != size) {
+            if (addr == this.blockAddr[block]) {
+                int split = this.newBlock(addr + size, this.blockSize[block] - size);
+                this.blockSize[block] = size;
+                this.linkPhysAfter(block, split);
+                this.insertFree(split);
+            } else {
+                placed = this.newBlock(addr, size);
+                this.linkPhysAfter(block, placed);
+                this.blockSize[block] -= size;
+                this.insertFree(block);
+            }
+        }
+        this.isFree[placed] = false;
+        this.addr2block.put(addr, placed);
+        return addr;
+    }
+
+    //Tries the physical neighbours of the anchor block before falling back to a normal alloc
+    @Override
+    public long allocNear(int size, long anchor) {
+        if (size <= 0) throw new IllegalArgumentException();
+        int block = this.addr2block.get(anchor);
+        if (block != NONE) {
+            int next = this.nextPhys[block];
+            int placed = NONE;
+            if (next == NONE) {
+                //Anchor is the last block, appending keeps it adjacent
+                if (this.totalSize + size <= this.sizeLimit) {
+                    placed = this.newBlock(this.totalSize, size);
+                    this.linkPhysAfter(block, placed);
+                    this.totalSize += size;
+                }
+            } else if (this.isFree[next] && this.blockSize[next] >= size) {
+                this.removeFree(next);
+                if (this.blockSize[next] == size) {
+                    placed = next;
+                } else {
+                    placed = this.newBlock(this.blockAddr[next], size);
+                    this.linkPhysAfter(block, placed);
+                    this.blockAddr[next] += size;
+                    this.blockSize[next] -= size;
+                    this.insertFree(next);
+                }
+            }
+            int prev = this.prevPhys[block];
+            if (placed == NONE && prev != NONE && this.isFree[prev] && this.blockSize[prev] >= size) {
+                //Take the top of the hole so it stays touching the anchor
+                this.removeFree(prev);
+                if (this.blockSize[prev] == size) {
+                    placed = prev;
+                } else {
+                    placed = this.newBlock(this.blockAddr[block] - size, size);
+                    this.linkPhysAfter(prev, placed);
+                    this.blockSize[prev] -= size;
+                    this.insertFree(prev);
+                }
+            }
+            if (placed != NONE) {
+                this.isFree[placed] = false;
+                this.addr2block.put(this.blockAddr[placed], placed);
+                return this.blockAddr[placed];
+            }
+        }
+        return this.alloc(size);
+    }
+
+    @Override
+    public int free(long addr) {
+        int block = this.addr2block.remove(addr);
+        if (block == NONE) {
+            throw new IllegalStateException();
+        }
+        int size = this.blockSize[block];
+
+        int prev = this.prevPhys[block];
+        if (prev != NONE && this.isFree[prev]) {
+            this.removeFree(prev);
+            this.blockSize[prev] += this.blockSize[block];
+            this.unlinkPhys(block);
+            this.releaseBlock(block);
+            block = prev;
+        }
+        int next = this.nextPhys[block];
+        if (next != NONE && this.isFree[next]) {
+            this.removeFree(next);
+            this.blockSize[block] += this.blockSize[next];
+            this.unlinkPhys(next);
+            this.releaseBlock(next);
+        }
+
+        if (this.nextPhys[block] == NONE) {
+            //Block is at the end of the space, shrink instead of keeping it as a free block
+            this.totalSize -= this.blockSize[block];
+            this.unlinkPhys(block);
+            this.releaseBlock(block);
+        } else {
+            this.insertFree(block);
+        }
+        return size;
+    }
+
+    @Override
+    public boolean expand(long addr, int extra) {
+        int block = this.addr2block.get(addr);
+        if (block == NONE) {
+            return false;
+        }
+        int next = this.nextPhys[block];
+        if (next == NONE) {
+            if (this.totalSize + extra > this.sizeLimit) {
+                return false;
+            }
+            this.totalSize += extra;
+        } else {
+            if ((!this.isFree[next]) || this.blockSize[next] < extra) {
+                return false;
+            }
+            this.removeFree(next);
+            if (this.blockSize[next] == extra) {
+                this.unlinkPhys(next);
+                this.releaseBlock(next);
+            } else {
+                this.blockAddr[next] += extra;
+                this.blockSize[next] -= extra;
+                this.insertFree(next);
+            }
+        }
+        this.blockSize[block] += extra;
+        return true;
+    }
+
+    @Override
+    public long getSize(long addr) {
+        int block = this.addr2block.get(addr);
+        if (block == NONE) {
+            throw new IllegalArgumentException();
+        }
+        return this.blockSize[block];
+    }
+
+    @Override
+    public long getSize() {
+        return this.totalSize;
+    }
+
+    @Override
+    public void setLimit(long size) {
+        this.sizeLimit = size;
+    }
+
+    @Override
+    public long lastAllocation() {
+        //The tail is never a free block as freeing the tail shrinks the space
+        return this.tail == NONE ? -1 : this.blockAddr[this.tail];
+    }
+
+    @Override
+    public long allocationBefore(long addr) {
+        int block = this.addr2block.get(addr);
+        if (block == NONE) {
+            throw new IllegalArgumentException();
+        }
+        int prev = this.prevPhys[block];
+        //Free blocks are always coalesced so there is at most one between two allocations
+        if (prev != NONE && this.isFree[prev]) {
+            prev = this.prevPhys[prev];
+        }
+        return prev == NONE ? -1 : this.blockAddr[prev];
+    }
+
+    //Size class mapping, returns fl<<SL_BITS|sl
+    private static int mapping(int size) {
+        if (size < SL_COUNT) {
+            return size;
+        }
+        int log = 31 - Integer.numberOfLeadingZeros(size);
+        int sl = (size >>> (log - SL_BITS)) ^ SL_COUNT;
+        return ((log - SL_BITS + 1) << SL_BITS) | sl;
+    }
+
+    private int findSuitable(int size) {
+        //Round up to the next class so that every block in the found list is large enough
+        if (size >= SL_COUNT) {
+            int log = 31 - Integer.numberOfLeadingZeros(size);
+            long rounded = size + (1L << (log - SL_BITS)) - 1;
+            if (rounded > Integer.MAX_VALUE) {
+                return NONE;
+            }
+            size = (int) rounded;
+        }
+        int cls = mapping(size);
+        int fl = cls >>> SL_BITS;
+        int sl = cls & (SL_COUNT - 1);
+
+        int slMap = this.slBitmaps[fl] & (~0 << sl);
+        if (slMap == 0) {
+            int flMap = fl + 1 >= FL_COUNT ? 0 : this.flBitmap & (~0 << (fl + 1));
+            if (flMap == 0) {
+                return NONE;
+            }
+            fl = Integer.numberOfTrailingZeros(flMap);
+            slMap = this.slBitmaps[fl];
+        }
+        sl = Integer.numberOfTrailingZeros(slMap);
+        return this.freeHeads[(fl << SL_BITS) | sl];
+    }
+
+    private void insertFree(int block) {
+        int cls = mapping(this.blockSize[block]);
+        int head = this.freeHeads[cls];
+        this.isFree[block] = true;
+        this.prevFree[block] = NONE;
+        this.nextFree[block] = head;
+        if (head != NONE) {
+            this.prevFree[head] = block;
+        }
+        this.freeHeads[cls] = block;
+        this.flBitmap |= 1 << (cls >>> SL_BITS);
+        this.slBitmaps[cls >>> SL_BITS] |= 1 << (cls & (SL_COUNT - 1));
+    }
+
+    private void removeFree(int block) {
+        int prev = this.prevFree[block];
+        int next = this.nextFree[block];
+        if (next != NONE) {
+            this.prevFree[next] = prev;
+        }
+        if (prev != NONE) {
+            this.nextFree[prev] = next;
+        } else {
+            int cls = mapping(this.blockSize[block]);
+            this.freeHeads[cls] = next;
+            if (next == NONE) {
+                int fl = cls >>> SL_BITS;
+                this.slBitmaps[fl] &= ~(1 << (cls & (SL_COUNT - 1)));
+                if (this.slBitmaps[fl] == 0) {
+                    this.flBitmap &= ~(1 << fl);
+                }
+            }
+        }
+        this.isFree[block] = false;
+    }
+
+    private void linkPhysAfter(int prev, int block) {
+        int next = prev == NONE ? NONE : this.nextPhys[prev];
+        this.prevPhys[block] = prev;
+        this.nextPhys[block] = next;
+        if (prev != NONE) {
+            this.nextPhys[prev] = block;
+        }
+        if (next != NONE) {
+            this.prevPhys[next] = block;
+        } else {
+            this.tail = block;
+        }
+    }
+
+    private void unlinkPhys(int block) {
+        int prev = this.prevPhys[block];
+        int next = this.nextPhys[block];
+        if (prev != NONE) {
+            this.nextPhys[prev] = next;
+        }
+        if (next != NONE) {
+            this.prevPhys[next] = prev;
+        } else {
+            this.tail = prev;
+        }
+    }
+
+    private int newBlock(long addr, int size) {
+        int block;
+        if (this.poolFreeHead != NONE) {
+            block = this.poolFreeHead;
+            this.poolFreeHead = this.nextFree[block];
+        } else {
+            if (this.poolNext == this.blockAddr.length) {
+                int cap = this.blockAddr.length * 2;
+                this.blockAddr = Arrays.copyOf(this.blockAddr, cap);
+                this.blockSize = Arrays.copyOf(this.blockSize, cap);
+                this.prevPhys = Arrays.copyOf(this.prevPhys, cap);
+                this.nextPhys = Arrays.copyOf(this.nextPhys, cap);
+                this.prevFree = Arrays.copyOf(this.prevFree, cap);
+                this.nextFree = Arrays.copyOf(this.nextFree, cap);
+                this.isFree = Arrays.copyOf(this.isFree, cap);
+            }
+            block = this.poolNext++;
+        }
+        this.blockAddr[block] = addr;
+        this.blockSize[block] = size;
+        this.prevPhys[block] = NONE;
+        this.nextPhys[block] = NONE;
+        this.prevFree[block] = NONE;
+        this.nextFree[block] = NONE;
+        this.isFree[block] = false;
+        return block;
+    }
+
+    private void releaseBlock(int block) {
+        this.isFree[block] = false;
+        this.nextFree[block] = this.poolFreeHead;
+        this.poolFreeHead = block;
+    }
+}
@@ -1,5 +1,7 @@
 package me.cortex.nvidium.util;
 
+import me.cortex.nvidium.gl.buffers.PersistentSparseAddressableBuffer;
+
 import java.lang.ref.WeakReference;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -9,18 +11,39 @@ import java.util.Set;
 public class TickableManager {
     private static final Set<UploadingBufferStream> UPLOADERS = new LinkedHashSet<>();
     private static final Set<DownloadTaskStream> DOWNLOADERS = new LinkedHashSet<>();
+    private static final Set<PersistentSparseAddressableBuffer> SPARSE_BUFFERS = new LinkedHashSet<>();
+    private static final Set<StagingRing> STAGING_RINGS = new LinkedHashSet<>();
+    private static final Set<GrowableDeviceBuffer> GROWABLE_BUFFERS = new LinkedHashSet<>();
     public static void register(UploadingBufferStream stream) {
         UPLOADERS.add(stream);
     }
     public static void register(DownloadTaskStream stream) {
         DOWNLOADERS.add(stream);
     }
+    public static void register(PersistentSparseAddressableBuffer buffer) {
+        SPARSE_BUFFERS.add(buffer);
+    }
+    public static void register(StagingRing ring) {
+        STAGING_RINGS.add(ring);
+    }
+    public static void register(GrowableDeviceBuffer buffer) {
+        GROWABLE_BUFFERS.add(buffer);
+    }
     public static void remove(UploadingBufferStream stream) {
         UPLOADERS.remove(stream);
     }
     public static void remove(DownloadTaskStream stream) {
         DOWNLOADERS.remove(stream);
     }
+    public static void remove(PersistentSparseAddressableBuffer buffer) {
+        SPARSE_BUFFERS.remove(buffer);
+    }
+    public static void remove(StagingRing ring) {
+        STAGING_RINGS.remove(ring);
+    }
+    public static void remove(GrowableDeviceBuffer buffer) {
+        GROWABLE_BUFFERS.remove(buffer);
+    }
 
     public static void TickAll() {//Should be called at the very end of the frame
         for (UploadingBufferStream uploader : UPLOADERS) {
@@ -30,5 +53,16 @@ public class TickableManager {
         for (DownloadTaskStream downloader : DOWNLOADERS) {
             downloader.tick();
         }
+
+        //Ticked after the uploaders so anything released this frame is fenced after all of the frames copies
+        for (PersistentSparseAddressableBuffer buffer : SPARSE_BUFFERS) {
+            buffer.tick();
+        }
+        for (StagingRing ring : STAGING_RINGS) {
+            ring.tick();
+        }
+        for (GrowableDeviceBuffer buffer : GROWABLE_BUFFERS) {
+            buffer.tick();
+        }
     }
 }
@@ -0,0 +1,163 @@
+package me.cortex.nvidium.util;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+
+//Map from packed section (or region) positions to ints, backed by a direct indexed grid that wraps around on every
+// axis so any window of the grid size maps onto it without collisions. Positions are looked up by masking their
+// coordinates, the stored key is only used to validate the slot, so there is no hashing or probing
+// Positions whose slot is taken by another position go into a fallback hash map, when that happens the one closer
+// to the center keeps the slot, so as long as the center follows the camera the loaded area lives in the grid
+// Keys use the ChunkSectionPos.asLong layout (x 22 bits, z 22 bits, y 20 bits)
+public class ToroidalLongIntMap {
+    //Not a reachable position, x would be -2^21 which is past the world border
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int shiftX;
+    private final int shiftXZ;
+    private final int maskX;
+    private final int maskY;
+    private final int maskZ;
+    private final long[] keys;
+    private final int[] values;
+    private final Long2IntOpenHashMap fallback = new Long2IntOpenHashMap();
+    private int gridSize;
+
+    private int defaultReturnValue;
+    private int centerX;
+    private int centerY;
+    private int centerZ;
+
+    //Sizes must be powers of two
+    public ToroidalLongIntMap(int sizeX, int sizeY, int sizeZ) {
+        if (Integer.bitCount(sizeX) != 1 || Integer.bitCount(sizeY) != 1 || Integer.bitCount(sizeZ) != 1) {
+            throw new IllegalArgumentException("Grid sizes must be powers of two");
+        }
+        this.shiftX = Integer.numberOfTrailingZeros(sizeX);
+        this.shiftXZ = this.shiftX + Integer.numberOfTrailingZeros(sizeZ);
+        this.maskX = sizeX - 1;
+        this.maskY = sizeY - 1;
+        this.maskZ = sizeZ - 1;
+        this.keys = new long[sizeX * sizeY * sizeZ];
+        this.values = new int[this.keys.length];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    public void defaultReturnValue(int value) {
+        this.defaultReturnValue = value;
+        this.fallback.defaultReturnValue(value);
+    }
+
+    private static int unpackX(long key) {
+        return (int) (key >> 42);
+    }
+
+    private static int unpackY(long key) {
+        return (int) (key << 44 >> 44);
+    }
+
+    private static int unpackZ(long key) {
+        return (int) (key << 22 >> 42);
+    }
+
+    private int slot(long key) {
+        return (unpackY(key) & this.maskY) << this.shiftXZ | (unpackZ(key) & this.maskZ) << this.shiftX | (unpackX(key) & this.maskX);
+    }
+
+    //Whether the position is within half the grid size of the center on every axis
+    private boolean inWindow(long key) {
+        return Math.abs(unpackX(key) - this.centerX) <= (this.maskX >> 1) &&
+               Math.abs(unpackY(key) - this.centerY) <= (this.maskY >> 1) &&
+               Math.abs(unpackZ(key) - this.centerZ) <= (this.maskZ >> 1);
+    }
+
+    //Positions moving into the window take over the slots of entries that left it the next time they are put
+    public void setCenter(int x, int y, int z) {
+        this.centerX = x;
+        this.centerY = y;
+        this.centerZ = z;
+    }
+
+    public int get(long key) {
+        int slot = this.slot(key);
+        if (this.keys[slot] == key) {
+            return this.values[slot];
+        }
+        return this.fallback.isEmpty() ? this.defaultReturnValue : this.fallback.get(key);
+    }
+
+    public boolean containsKey(long key) {
+        return this.keys[this.slot(key)] == key || (!this.fallback.isEmpty() && this.fallback.containsKey(key));
+    }
+
+    public int put(long key, int value) {
+        int slot = this.slot(key);
+        long holder = this.keys[slot];
+        if (holder == key) {
+            int old = this.values[slot];
+            this.values[slot] = value;
+            return old;
+        }
+        if (!this.fallback.isEmpty() && this.fallback.containsKey(key)) {
+            if (holder == EMPTY) {
+                //The slot freed up since, move it back into the grid
+                int old = this.fallback.remove(key);
+                this.keys[slot] = key;
+                this.values[slot] = value;
+                this.gridSize++;
+                return old;
+            }
+            return this.fallback.put(key, value);
+        }
+        if (holder == EMPTY) {
+            this.keys[slot] = key;
+            this.values[slot] = value;
+            this.gridSize++;
+            return this.defaultReturnValue;
+        }
+        if (!this.inWindow(holder) && this.inWindow(key)) {
+            //The holder is out of the window, move it out of the way
+            this.fallback.put(holder, this.values[slot]);
+            this.keys[slot] = key;
+            this.values[slot] = value;
+            return this.defaultReturnValue;
+        }
+        return this.fallback.put(key, value);
+    }
+
+    public int remove(long key) {
+        int slot = this.slot(key);
+        if (this.keys[slot] == key) {
+            this.keys[slot] = EMPTY;
+            this.gridSize--;
+            return this.values[slot];
+        }
+        return this.fallback.isEmpty() ? this.defaultReturnValue : this.fallback.remove(key);
+    }
+
+    public int size() {
+        return this.gridSize + this.fallback.size();
+    }
+
+    public int fallbackSize() {
+        return this.fallback.size();
+    }
+
+    public interface IEntryConsumer {
+        void accept(long key, int value);
+    }
+
+    public void forEach(IEntryConsumer consumer) {
+        if (this.gridSize != 0) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != EMPTY) {
+                    consumer.accept(this.keys[i], this.values[i]);
+                }
+            }
+        }
+        for (var entry : this.fallback.long2IntEntrySet()) {
+            consumer.accept(entry.getLongKey(), entry.getIntValue());
+        }
+    }
+}
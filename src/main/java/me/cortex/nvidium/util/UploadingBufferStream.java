@@ -10,9 +10,13 @@ import me.cortex.nvidium.gl.buffers.PersistentClientMappedBuffer;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import static me.cortex.nvidium.util.SegmentedManager.SIZE_LIMIT;
 import static org.lwjgl.opengl.ARBDirectStateAccess.glCopyNamedBufferSubData;
@@ -25,15 +29,65 @@ import static org.lwjgl.opengl.GL42C.GL_BUFFER_UPDATE_BARRIER_BIT;
 import static org.lwjgl.opengl.GL44.GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT;
 
 public class UploadingBufferStream {
-    private final SegmentedManager allocationArena = new SegmentedManager();
-    private final PersistentClientMappedBuffer uploadBuffer;
+    private final RenderDevice device;
+    private SegmentedManager allocationArena = new SegmentedManager();
+    private PersistentClientMappedBuffer uploadBuffer;
 
     private final Deque<UploadFrame> frames = new ArrayDeque<>();
     private final LongArrayList thisFrameAllocations = new LongArrayList();
-    private final Deque<UploadData> uploadList = new ArrayDeque<>();
+    private final ReferenceArrayList<UploadData> uploadList = new ReferenceArrayList<>();
+    private final ReferenceArrayList<UploadData> sortedUploads = new ReferenceArrayList<>();
     private final LongArrayList flushList = new LongArrayList();
 
+    private final ICopySink copySink = this::submitCopy;
+    //Copy calls issued and copy calls saved by coalescing, for the current and last frame
+    private int copiesThisFrame;
+    private int copiesSavedThisFrame;
+    private int lastFrameCopies;
+    private int lastFrameCopiesSaved;
+
+    //Ring mode hands out staging space linearly and retires it a frame at a time by fence, when the ring is full it
+    // waits on the oldest fence instead of stalling everything with glFinish. Positions are monotonic byte counters
+    private final boolean ringMode;
+    private long ringHead;
+    private long ringTail;
+    //Start of the range not yet flushed, and of the range not yet part of a fenced frame
+    private long ringFlushStart;
+    private long ringFrameStart;
+
+    //Bytes uploaded, times the stream had to wait for the gpu and the time spent waiting, for the current and last frame
+    private long bytesThisFrame;
+    private int stallsThisFrame;
+    private long stallNanosThisFrame;
+    private long lastFrameBytes;
+    private int lastFrameStalls;
+    private long lastFrameStallNanos;
+
+    //The staging buffer grows straight away when an upload doesnt fit instead of stalling, and shrinks back down to
+    // twice the high water mark of the last window once that is less than half the current size
+    private static final int RESIZE_WINDOW_FRAMES = 600;
+    private final long minSize;
+    private final long maxSize;
+    private long highWaterMark;
+    private int windowFrames;
+    private int resizeCount;
+    //Old staging buffers that copies may still be reading from
+    private final ArrayDeque<RetiredBuffer> retiredBuffers = new ArrayDeque<>();
+
     public UploadingBufferStream(RenderDevice device, long size) {
+        this(device, size, false);
+    }
+
+    public UploadingBufferStream(RenderDevice device, long size, boolean ringMode) {
+        this(device, size, size, size, ringMode);
+    }
+
+    public UploadingBufferStream(RenderDevice device, long size, long minSize, long maxSize, boolean ringMode) {
+        this.device = device;
+        this.ringMode = ringMode;
+        this.minSize = minSize;
+        this.maxSize = Math.max(minSize, maxSize);
+        size = Math.max(this.minSize, Math.min(this.maxSize, size));
         this.allocationArena.setLimit(size);
         this.uploadBuffer = device.createClientMappedBuffer(size);
         TickableManager.register(this);
@@ -52,15 +106,24 @@ public class UploadingBufferStream {
             throw new IllegalStateException();
         }
 
+        this.bytesThisFrame += size;
         long addr;
-        if (this.caddr == -1 || !this.allocationArena.expand(this.caddr, (int) size)) {
+        if (this.ringMode) {
+            addr = this.ringAlloc(size);
+        } else if (this.caddr == -1 || !this.allocationArena.expand(this.caddr, (int) size)) {
             this.caddr = this.allocationArena.alloc((int) size);
+            if (this.caddr == SIZE_LIMIT && this.grow(size)) {
+                this.caddr = this.allocationArena.alloc((int) size);
+            }
             //If the upload stream is full, flush it and empty it
             if (this.caddr == SIZE_LIMIT) {
                 this.commit();
                 int attempts = 10;
                 while (--attempts != 0 && this.caddr == SIZE_LIMIT) {
+                    long start = System.nanoTime();
                     glFinish();
+                    this.stallsThisFrame++;
+                    this.stallNanosThisFrame += System.nanoTime() - start;
                     this.tick();
                     this.caddr = this.allocationArena.alloc((int) size);
                 }
@@ -71,20 +134,108 @@ public class UploadingBufferStream {
             this.flushList.add(this.caddr);
             this.offset = size;
             addr = this.caddr;
+            this.highWaterMark = Math.max(this.highWaterMark, this.allocationArena.getSize());
         } else {//Could expand the allocation so just update it
             addr = this.caddr + this.offset;
             this.offset += size;
+            this.highWaterMark = Math.max(this.highWaterMark, this.allocationArena.getSize());
         }
 
-        if (this.caddr + size > this.uploadBuffer.size) {
+        if (addr + size > this.uploadBuffer.size) {
             throw new IllegalStateException();
         }
 
-        this.uploadList.add(new UploadData(buffer, addr, destOffset, size));
+        this.uploadList.add(new UploadData(this.uploadBuffer, addr, buffer, destOffset, size));
 
         return this.uploadBuffer.addr + addr;
     }
 
+    //Returns the buffer offset of size bytes of ring space, allocations never wrap around the end of the buffer
+    private long ringAlloc(long size) {
+        if (size > this.uploadBuffer.size && !this.grow(size)) {
+            throw new IllegalStateException("Upload of " + size + " bytes is larger than the upload stream");
+        }
+        long capacity = this.uploadBuffer.size;
+        long position = this.ringHead;
+        if ((position % capacity) + size > capacity) {
+            position += capacity - (position % capacity);
+        }
+        if (position + size - this.ringTail > capacity && this.grow(size)) {
+            //Start over in the new buffer
+            return this.ringAlloc(size);
+        }
+        while (position + size - this.ringTail > capacity) {
+            this.waitForOldestFrame();
+        }
+        this.ringHead = position + size;
+        this.highWaterMark = Math.max(this.highWaterMark, this.ringHead - this.ringTail);
+        return position % capacity;
+    }
+
+    //Doubles the staging buffer (at least enough to fit size more bytes), returns false if it is already at the max size
+    private boolean grow(long size) {
+        long current = this.uploadBuffer.size;
+        if (current >= this.maxSize) {
+            return false;
+        }
+        long used = this.ringMode ? this.ringHead - this.ringTail : this.allocationArena.getSize();
+        this.resize(Math.min(this.maxSize, Math.max(current * 2, used + size)));
+        return true;
+    }
+
+    //Swaps in a new staging buffer, everything recorded so far is copied out of the old one first and it is deleted
+    // once a fence says the gpu is done with it. In flight frames all belonged to the old buffer so they are dropped
+    private void resize(long size) {
+        this.commit();
+        this.retiredBuffers.add(new RetiredBuffer(new GlFence(), this.uploadBuffer));
+        this.frames.forEach(frame -> frame.fence.free());
+        this.frames.clear();
+        this.thisFrameAllocations.clear();
+        this.allocationArena = new SegmentedManager();
+        this.allocationArena.setLimit(size);
+        this.uploadBuffer = this.device.createClientMappedBuffer(size);
+        this.ringHead = 0;
+        this.ringTail = 0;
+        this.ringFlushStart = 0;
+        this.ringFrameStart = 0;
+        this.resizeCount++;
+    }
+
+    //Backpressure for ring mode, blocks on the oldest in flight frame and retires it
+    private void waitForOldestFrame() {
+        if (this.frames.isEmpty()) {
+            //Everything in the ring is from this frame, submit it so there is something to wait on
+            this.commit();
+            this.sealRingFrame();
+            if (this.frames.isEmpty()) {
+                throw new IllegalStateException("Upload stream full with nothing in flight");
+            }
+        }
+        var frame = this.frames.pop();
+        long start = System.nanoTime();
+        frame.fence.waitSignaled();
+        this.stallsThisFrame++;
+        this.stallNanosThisFrame += System.nanoTime() - start;
+        frame.fence.free();
+        this.ringTail = frame.ringEnd;
+    }
+
+    private void sealRingFrame() {
+        if (this.ringHead != this.ringFrameStart) {
+            this.frames.add(new UploadFrame(new GlFence(), null, this.ringHead));
+            this.ringFrameStart = this.ringHead;
+        }
+    }
+
+    //Queues a copy out of some other staging buffer, it is executed in order with the uploads on commit
+    // the caller is responsible for flushing the source and keeping it alive until the frame has been retired
+    public void copy(Buffer source, long sourceOffset, Buffer target, long targetOffset, long size) {
+        if (size == 0 || targetOffset < 0 || targetOffset+size > target.getSize()) {
+            throw new IllegalArgumentException();
+        }
+        this.uploadList.add(new UploadData(source, sourceOffset, target, targetOffset, size));
+    }
+
 
     public void commit() {
         //First flush all the allocations and enqueue them to be freed
@@ -94,12 +245,22 @@ public class UploadingBufferStream {
                 this.thisFrameAllocations.add(alloc);
             }
             this.flushList.clear();
+
+            if (this.ringMode) {
+                long capacity = this.uploadBuffer.size;
+                long start = this.ringFlushStart;
+                while (start < this.ringHead) {
+                    long offset = start % capacity;
+                    long length = Math.min(this.ringHead - start, capacity - offset);
+                    glFlushMappedNamedBufferRange(this.uploadBuffer.getId(), offset, length);
+                    start += length;
+                }
+                this.ringFlushStart = this.ringHead;
+            }
         }
         glMemoryBarrier(GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT);
         //Execute all the copies
-        for (var entry : this.uploadList) {
-            glCopyNamedBufferSubData(this.uploadBuffer.getId(), entry.target.getId(), entry.uploadOffset, entry.targetOffset, entry.size);
-        }
+        this.copiesSavedThisFrame += coalesce(this.uploadList, this.sortedUploads, this.copySink);
         this.uploadList.clear();
 
         glMemoryBarrier(GL_BUFFER_UPDATE_BARRIER_BIT);
@@ -108,10 +269,111 @@ public class UploadingBufferStream {
         this.offset = 0;
     }
 
+    private void submitCopy(Buffer source, long sourceOffset, Buffer target, long targetOffset, long size) {
+        glCopyNamedBufferSubData(source.getId(), target.getId(), sourceOffset, targetOffset, size);
+        this.copiesThisFrame++;
+    }
+
+    interface ICopySink {
+        void copy(Buffer source, long sourceOffset, Buffer target, long targetOffset, long size);
+    }
+
+    //Sorts by target then target offset, the sort is stable so uploads to the same range keep their order
+    private static final Comparator<UploadData> UPLOAD_ORDER = Comparator.<UploadData>comparingInt(upload -> upload.target.getId()).thenComparingLong(UploadData::targetOffset);
+
+    //Issues the uploads to the sink, merging runs of uploads whose source and target ranges are both contiguous
+    // into a single copy, returns the number of copies saved. Uploads are sorted by target range first, unless two
+    // uploads to the same target overlap as then the submission order matters, in which case only uploads that
+    // are already adjacent in submission order are merged
+    static int coalesce(List<UploadData> uploads, List<UploadData> scratch, ICopySink sink) {
+        if (uploads.isEmpty()) {
+            return 0;
+        }
+        scratch.clear();
+        scratch.addAll(uploads);
+        scratch.sort(UPLOAD_ORDER);
+        List<UploadData> order = scratch;
+        for (int i = 1; i < scratch.size(); i++) {
+            var prev = scratch.get(i - 1);
+            var entry = scratch.get(i);
+            //Sorted by start, so if any two uploads overlap then some adjacent pair does
+            if (prev.target == entry.target && entry.targetOffset < prev.targetOffset + prev.size) {
+                order = uploads;
+                break;
+            }
+        }
+
+        int copies = 0;
+        var first = order.get(0);
+        Buffer source = first.source;
+        long sourceOffset = first.sourceOffset;
+        Buffer target = first.target;
+        long targetOffset = first.targetOffset;
+        long size = first.size;
+        for (int i = 1; i < order.size(); i++) {
+            var entry = order.get(i);
+            if (entry.source == source && entry.target == target && entry.sourceOffset == sourceOffset + size && entry.targetOffset == targetOffset + size) {
+                size += entry.size;
+            } else {
+                sink.copy(source, sourceOffset, target, targetOffset, size);
+                copies++;
+                source = entry.source;
+                sourceOffset = entry.sourceOffset;
+                target = entry.target;
+                targetOffset = entry.targetOffset;
+                size = entry.size;
+            }
+        }
+        sink.copy(source, sourceOffset, target, targetOffset, size);
+        copies++;
+        scratch.clear();
+        return uploads.size() - copies;
+    }
+
+    public int getLastFrameCopies() {
+        return this.lastFrameCopies;
+    }
+
+    public int getLastFrameCopiesSaved() {
+        return this.lastFrameCopiesSaved;
+    }
+
+    public long getLastFrameBytes() {
+        return this.lastFrameBytes;
+    }
+
+    public int getLastFrameStalls() {
+        return this.lastFrameStalls;
+    }
+
+    public long getLastFrameStallNanos() {
+        return this.lastFrameStallNanos;
+    }
+
+    public long getCapacity() {
+        return this.uploadBuffer.size;
+    }
+
+    public int getResizeCount() {
+        return this.resizeCount;
+    }
+
     public void tick() {
         this.commit();
-        if (!this.thisFrameAllocations.isEmpty()) {
-            this.frames.add(new UploadFrame(new GlFence(), new LongArrayList(this.thisFrameAllocations)));
+        this.lastFrameCopies = this.copiesThisFrame;
+        this.lastFrameCopiesSaved = this.copiesSavedThisFrame;
+        this.copiesThisFrame = 0;
+        this.copiesSavedThisFrame = 0;
+        this.lastFrameBytes = this.bytesThisFrame;
+        this.lastFrameStalls = this.stallsThisFrame;
+        this.lastFrameStallNanos = this.stallNanosThisFrame;
+        this.bytesThisFrame = 0;
+        this.stallsThisFrame = 0;
+        this.stallNanosThisFrame = 0;
+        if (this.ringMode) {
+            this.sealRingFrame();
+        } else if (!this.thisFrameAllocations.isEmpty()) {
+            this.frames.add(new UploadFrame(new GlFence(), new LongArrayList(this.thisFrameAllocations), 0));
             this.thisFrameAllocations.clear();
         }
 
@@ -123,18 +385,120 @@ public class UploadingBufferStream {
             }
             //Release all the allocations from the frame
             var frame = this.frames.pop();
-            frame.allocations.forEach(allocationArena::free);
+            if (this.ringMode) {
+                this.ringTail = frame.ringEnd;
+            } else {
+                frame.allocations.forEach(allocationArena::free);
+            }
             frame.fence.free();
         }
+
+        while (!this.retiredBuffers.isEmpty() && this.retiredBuffers.peek().fence.signaled()) {
+            var retired = this.retiredBuffers.pop();
+            retired.fence.free();
+            retired.buffer.delete();
+        }
+
+        if (++this.windowFrames >= RESIZE_WINDOW_FRAMES) {
+            long target = Math.max(this.minSize, Math.min(this.maxSize, roundUp(this.highWaterMark * 2)));
+            if (target < this.uploadBuffer.size / 2) {
+                this.resize(target);
+            }
+            this.windowFrames = 0;
+            this.highWaterMark = 0;
+        }
+    }
+
+    //Rounds up to a whole mb
+    private static long roundUp(long size) {
+        return (size + (1 << 20) - 1) & -(1L << 20);
     }
 
     public void delete() {
         TickableManager.remove(this);
         this.uploadBuffer.delete();
         this.frames.forEach(frame->frame.fence.free());
+        this.retiredBuffers.forEach(retired -> {
+            retired.fence.free();
+            retired.buffer.delete();
+        });
     }
 
-    private record UploadFrame(GlFence fence, LongArrayList allocations) {}
-    private record UploadData(Buffer target, long uploadOffset, long targetOffset, long size) {}
+    private record UploadFrame(GlFence fence, LongArrayList allocations, long ringEnd) {}
+    private record RetiredBuffer(GlFence fence, PersistentClientMappedBuffer buffer) {}
+    record UploadData(Buffer source, long sourceOffset, Buffer target, long targetOffset, long size) {}
+
+    //Replays random upload frames, with runs of adjacent uploads, interleaved sources and targets and overlapping writes,
+    // through a recording sink into plain arrays and checks that the coalesced copies give byte identical results
+    public static void main(String[] args) {
+        record FakeBuffer(int getId, byte[] data) implements Buffer {
+            @Override
+            public long getSize() {
+                return this.data.length;
+            }
+
+            @Override
+            public void delete() {
+            }
+        }
+        Random r = new Random(7);
+        long calls = 0;
+        long saved = 0;
+        for (int frame = 0; frame < 2000; frame++) {
+            FakeBuffer[] naive = new FakeBuffer[3];
+            FakeBuffer[] merged = new FakeBuffer[3];
+            for (int i = 0; i < 3; i++) {
+                naive[i] = new FakeBuffer(i + 1, new byte[1 << 14]);
+                merged[i] = new FakeBuffer(i + 1, new byte[1 << 14]);
+            }
+            FakeBuffer[] sources = {new FakeBuffer(10, new byte[1 << 20]), new FakeBuffer(11, new byte[1 << 20])};
+            List<UploadData> uploads = new ArrayList<>();
+            int[] sourcePtrs = new int[2];
+            int count = r.nextInt(300) + 1;
+            boolean overlapping = r.nextInt(4) == 0;
+            int[] cursors = new int[3];
+            for (int i = 0; i < count; i++) {
+                int target = r.nextInt(3);
+                int size = 32 << r.nextInt(3);
+                int offset;
+                if (overlapping && r.nextInt(8) == 0) {
+                    offset = r.nextInt((1 << 14) - size);
+                } else {
+                    //Mostly sequential writes, like region metadata of neighbouring region ids
+                    if (r.nextInt(6) == 0 || cursors[target] + size > (1 << 14)) {
+                        cursors[target] = r.nextInt((1 << 14) / 128) * 32;
+                    }
+                    offset = cursors[target];
+                    cursors[target] += size;
+                }
+                //Mostly from the stream itself, sometimes out of a second staging buffer
+                int source = r.nextInt(5) == 0 ? 1 : 0;
+                for (int j = 0; j < size; j++) {
+                    sources[source].data[sourcePtrs[source] + j] = (byte) r.nextInt();
+                }
+                uploads.add(new UploadData(sources[source], sourcePtrs[source], naive[target], offset, size));
+                sourcePtrs[source] += size;
+            }
+            for (var upload : uploads) {
+                System.arraycopy(((FakeBuffer) upload.source).data, (int) upload.sourceOffset, ((FakeBuffer) upload.target).data, (int) upload.targetOffset, (int) upload.size);
+            }
+            List<UploadData> remapped = new ArrayList<>();
+            for (var upload : uploads) {
+                remapped.add(new UploadData(upload.source, upload.sourceOffset, merged[upload.target.getId() - 1], upload.targetOffset, upload.size));
+            }
+            int[] frameCalls = new int[1];
+            saved += coalesce(remapped, new ArrayList<>(), (source, sourceOffset, target, targetOffset, size) -> {
+                System.arraycopy(((FakeBuffer) source).data, (int) sourceOffset, ((FakeBuffer) target).data, (int) targetOffset, (int) size);
+                frameCalls[0]++;
+            });
+            calls += frameCalls[0];
+            for (int i = 0; i < 3; i++) {
+                if (!Arrays.equals(naive[i].data, merged[i].data)) {
+                    throw new IllegalStateException("Coalesced copies differ on frame " + frame);
+                }
+            }
+        }
+        System.out.println("All frames identical, copies issued: " + calls + " saved: " + saved);
+    }
 
 }
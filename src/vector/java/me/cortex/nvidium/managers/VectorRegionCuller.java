@@ -0,0 +1,106 @@
+package me.cortex.nvidium.managers;
+
+import jdk.incubator.vector.*;
+
+//RegionCuller over whole vectors of the gathered batch at a time, only loaded when jdk.incubator.vector is in the boot
+// layer and compiled apart from the rest of the mod so nothing else needs the incubator module. The tests give lane bit
+// masks, visible keys, removals and camera axis regions are picked out of them lane by lane
+final class VectorRegionCuller extends RegionCuller {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private static final long LANE_MASK = -1L >>> (64 - INTS.length());
+
+    private final int[] laneKeys = new int[INTS.length()];
+
+    VectorRegionCuller() {
+        if (INTS.length() != FLOATS.length() || INTS.length() > 64) {
+            throw new IllegalStateException("Unsupported vector shape " + INTS);
+        }
+    }
+
+    private static IntVector abs(IntVector v) {
+        return v.lanewise(VectorOperators.ABS);
+    }
+
+    //Keep distance mask of the regions at i
+    private long keep(int[] rx, int[] ry, int[] rz, int i) {
+        var dx = abs(IntVector.fromArray(INTS, rx, i).lanewise(VectorOperators.LSHL, 3).add(4 - this.camChunkX));
+        var dy = abs(IntVector.fromArray(INTS, ry, i).lanewise(VectorOperators.LSHL, 2).add(2 - this.camChunkY));
+        var dz = abs(IntVector.fromArray(INTS, rz, i).lanewise(VectorOperators.LSHL, 3).add(4 - this.camChunkZ));
+        return dx.max(dy).max(dz).compare(VectorOperators.LE, this.keepDistance).toLong();
+    }
+
+    //Distance keys of the regions at i into laneKeys
+    private void keys(int[] ids, int[] rx, int[] ry, int[] rz, int i) {
+        var x8 = IntVector.fromArray(INTS, rx, i).lanewise(VectorOperators.LSHL, 3);
+        var y4 = IntVector.fromArray(INTS, ry, i).lanewise(VectorOperators.LSHL, 2);
+        var z8 = IntVector.fromArray(INTS, rz, i).lanewise(VectorOperators.LSHL, 3);
+        abs(x8.add(4 - this.camChunkX)).add(abs(y4.add(2 - this.camChunkY))).add(abs(z8.add(4 - this.camChunkZ)))
+                .add(abs(x8.add(3 - this.camChunkX)))
+                .add(abs(y4.add(1 - this.camChunkY)))
+                .add(abs(z8.add(3 - this.camChunkZ)))
+                .lanewise(VectorOperators.ASHR, 1)
+                .lanewise(VectorOperators.LSHL, 16)
+                .or(IntVector.fromArray(INTS, ids, i))
+                .intoArray(this.laneKeys, 0);
+    }
+
+    //Frustum mask of the regions at i, same operation order as the scalar test so both give the same result on a plane
+    private long frustum(int[] rx, int[] ry, int[] rz, int i) {
+        var cx = ((FloatVector) IntVector.fromArray(INTS, rx, i).lanewise(VectorOperators.LSHL, 7).add(64 - this.camBlockX)
+                .convertShape(VectorOperators.I2F, FLOATS, 0)).sub(this.camFracX);
+        var cy = ((FloatVector) IntVector.fromArray(INTS, ry, i).lanewise(VectorOperators.LSHL, 6).add(32 - this.camBlockY)
+                .convertShape(VectorOperators.I2F, FLOATS, 0)).sub(this.camFracY);
+        var cz = ((FloatVector) IntVector.fromArray(INTS, rz, i).lanewise(VectorOperators.LSHL, 7).add(64 - this.camBlockZ)
+                .convertShape(VectorOperators.I2F, FLOATS, 0)).sub(this.camFracZ);
+        var planes = this.regionPlanes;
+        var inside = FLOATS.maskAll(true);
+        for (int p = 0; p < 24; p += 4) {
+            inside = inside.and(cx.mul(planes[p]).add(cy.mul(planes[p + 1])).add(cz.mul(planes[p + 2])).add(planes[p + 3])
+                    .compare(VectorOperators.GE, 0));
+        }
+        return inside.toLong();
+    }
+
+    private long cameraAxis(int[] rx, int[] ry, int[] rz, int i) {
+        return IntVector.fromArray(INTS, rx, i).compare(VectorOperators.EQ, this.camBlockX >> 7)
+                .or(IntVector.fromArray(INTS, ry, i).compare(VectorOperators.EQ, this.camBlockY >> 6))
+                .or(IntVector.fromArray(INTS, rz, i).compare(VectorOperators.EQ, this.camBlockZ >> 7))
+                .toLong();
+    }
+
+    //Each test is its own method that loads its lanes from the arrays and returns a scalar bit mask, c2 stops inlining
+    // part way through one big loop body and boxes every vector passed to or carried past a call it did not inline
+    @Override
+    protected void cullBatch(int[] ids, int[] rx, int[] ry, int[] rz, int count) {
+        int bound = INTS.loopBound(count);
+        for (int i = 0; i < bound; i += INTS.length()) {
+            long keepBits = this.keep(rx, ry, rz, i);
+            if (keepBits == 0) {
+                //Whole vector past the keep distance, skips the frustum like the scalar test does
+                this.removals.addElements(this.removals.size(), ids, i, INTS.length());
+                continue;
+            }
+            long visibleBits = this.frustum(rx, ry, rz, i) & keepBits;
+            if (visibleBits != 0) {
+                this.keys(ids, rx, ry, rz, i);
+                long axisBits = this.cameraAxis(rx, ry, rz, i) & visibleBits;
+                while (visibleBits != 0) {
+                    this.visibleKeys[this.visibleCount++] = this.laneKeys[Long.numberOfTrailingZeros(visibleBits)];
+                    visibleBits &= visibleBits - 1;
+                }
+                while (axisBits != 0) {
+                    this.axisRegions.add(ids[i + Long.numberOfTrailingZeros(axisBits)]);
+                    axisBits &= axisBits - 1;
+                }
+            }
+            long removed = ~keepBits & LANE_MASK;
+            while (removed != 0) {
+                this.removals.add(ids[i + Long.numberOfTrailingZeros(removed)]);
+                removed &= removed - 1;
+            }
+        }
+        this.cullRange(ids, rx, ry, rz, bound, count);
+    }
+}